@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating an event from a map of attributes, which validates the attribute keys, compared
+ * to building one as the DAOs do for events read back from the store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventBenchmark {
+
+    @Param({"4", "12", "32"})
+    public int attributeCount;
+
+    private DateTime timestamp;
+    private Map<String, String> attributes;
+
+    @Setup
+    public void setUp() {
+        timestamp = EventFixtures.START;
+        attributes = EventFixtures.attributes(new Random(EventFixtures.SEED), attributeCount);
+    }
+
+    @Benchmark
+    public Event createEvent() {
+        return Event.createEvent(timestamp, "TESTER", attributes);
+    }
+
+    @Benchmark
+    public Event build() {
+        Event.Builder builder = Event.builder(timestamp, "TESTER");
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            builder.put(attribute.getKey(), attribute.getValue());
+        }
+        return builder.build();
+    }
+}
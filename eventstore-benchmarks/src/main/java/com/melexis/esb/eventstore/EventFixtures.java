@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates the events used by the benchmarks.
+ *
+ * The events only depend on the seed, so every run of a benchmark works on the same data
+ * and the results of different runs can be compared.
+ */
+public final class EventFixtures {
+
+    public static final long SEED = 20120720L;
+    public static final DateTime START = new DateTime(2012, 7, 20, 0, 0, 0, 0, DateTimeZone.UTC);
+
+    /** a vocabulary of attribute names like the ones the testers log */
+    private static final String[] NAMES = {
+            "LOTNAME", "PROCESSID", "EQUIPMENT", "OPERATOR", "RECIPE", "STEP",
+            "TEMPERATURE", "PRESSURE", "WAFER", "SLOT", "STATE", "RESULT"
+    };
+
+    private EventFixtures() {
+    }
+
+    /**
+     * @return count attributes with names from the vocabulary and random values
+     */
+    public static Map<String, String> attributes(Random random, int count) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            String name = i < NAMES.length ? NAMES[i] : "ATTRIBUTE" + i;
+            attributes.put(name, name.toLowerCase() + "-" + random.nextInt(1000));
+        }
+        return attributes;
+    }
+
+    /**
+     * @return count events of the source in time order, a random number of milliseconds apart
+     */
+    public static List<Event> events(String source, int count, int attributes, long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<Event>(count);
+        long millis = START.getMillis();
+        for (int i = 0; i < count; i++) {
+            millis += random.nextInt(1000);
+            events.add(Event.createEvent(new DateTime(millis, DateTimeZone.UTC), source, attributes(random, attributes)));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the heap held by a query result of events read back from the store.
+ *
+ * Like a decoded row every event gets its own copies of the source and the attribute
+ * names. The heap in use is compared after a full collection before and after building
+ * the result, so run it with a single threaded collector and a heap large enough to hold
+ * the result, e.g.
+ *
+ *     java -XX:+UseSerialGC -Xmx4g -cp target/benchmarks.jar com.melexis.esb.eventstore.EventFootprint 1000000 12
+ *
+ * This is not a JMH benchmark, JMH measures time and allocation rates but not retained
+ * heap.
+ */
+public final class EventFootprint {
+
+    private EventFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int attributes = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+        long before = usedHeap();
+        List<Event> result = decodedEvents("TESTER", count, attributes, EventFixtures.SEED);
+        long after = usedHeap();
+
+        System.out.printf("%d events with %d attributes: %d MB, %d bytes per event%n",
+                result.size(), attributes, (after - before) >> 20, (after - before) / result.size());
+    }
+
+    /**
+     * @return the same events as EventFixtures.events, with fresh strings for the names
+     */
+    static List<Event> decodedEvents(String source, int count, int attributes, long seed) {
+        Random random = new Random(seed);
+        List<Event> events = new ArrayList<Event>(count);
+        long millis = EventFixtures.START.getMillis();
+        for (int i = 0; i < count; i++) {
+            millis += random.nextInt(1000);
+            Map<String, String> decoded = new HashMap<String, String>();
+            for (Map.Entry<String, String> attribute : EventFixtures.attributes(random, attributes).entrySet()) {
+                decoded.put(new String(attribute.getKey()), attribute.getValue());
+            }
+            events.add(Event.createEvent(new DateTime(millis, DateTimeZone.UTC), new String(source), decoded));
+        }
+        return events;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventFixtures;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the JSON body of a stored event in EventStoreProcessor and writing the JSON body
+ * of a query result in EventQueryProcessor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    @Param({"4", "12", "32"})
+    public int attributeCount;
+
+    @Param({"1000"})
+    public int resultSize;
+
+    private EventStoreProcessor storeProcessor;
+    private EventQueryProcessor queryProcessor;
+    private String eventJson;
+    private byte[] eventBytes;
+    private List<Event> result;
+
+    @Setup
+    public void setUp() throws IOException {
+        DateTimeHelper dateTimeHelper = new DateTimeHelper();
+        storeProcessor = new EventStoreProcessor();
+        storeProcessor.setDateTimeHelper(dateTimeHelper);
+        queryProcessor = new EventQueryProcessor();
+        queryProcessor.setDateTimeHelper(dateTimeHelper);
+
+        Map<String, String> body = new HashMap<String, String>(
+                EventFixtures.attributes(new Random(EventFixtures.SEED), attributeCount));
+        body.put(EventStoreProcessor.SOURCE_KEY, "TESTER");
+        body.put(EventStoreProcessor.TS_KEY, dateTimeHelper.format(EventFixtures.START));
+        eventJson = new ObjectMapper().writeValueAsString(body);
+        eventBytes = eventJson.getBytes("UTF-8");
+
+        result = EventFixtures.events("TESTER", resultSize, attributeCount, EventFixtures.SEED);
+    }
+
+    @Benchmark
+    public Event parseEvent() throws IOException {
+        return storeProcessor.parse(eventJson, null);
+    }
+
+    @Benchmark
+    public Event parseEventBytes() throws IOException {
+        return storeProcessor.parse(eventBytes, null);
+    }
+
+    @Benchmark
+    public String writeResult() throws IOException {
+        return queryProcessor.toJson(result);
+    }
+}
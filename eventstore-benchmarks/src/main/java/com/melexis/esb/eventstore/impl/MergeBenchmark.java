@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.Ordering;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The merge in time order of the results of the sources of a multi-source query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeBenchmark {
+
+    @Param({"2", "16", "64"})
+    public int sources;
+
+    @Param({"1000"})
+    public int eventsPerSource;
+
+    @Param({"1000", "1000000"})
+    public int limit;
+
+    private final List<List<Event>> results = new ArrayList<List<Event>>();
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < sources; i++) {
+            results.add(EventFixtures.events("TESTER" + i, eventsPerSource, 4, EventFixtures.SEED + i));
+        }
+    }
+
+    @Benchmark
+    public List<Event> merge() {
+        return EventServiceImpl.merge(results, Ordering.<Event>natural(), limit);
+    }
+}
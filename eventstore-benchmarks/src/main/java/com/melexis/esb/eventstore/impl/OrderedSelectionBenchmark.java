@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.Ordering;
+import com.melexis.esb.eventstore.EventFixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selecting the keys of the first limit rows in time order from the rows matching a
+ * secondary index query, which cassandra returns in token order, with
+ * {@link EventDaoCassandraImpl#selectFirst}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderedSelectionBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int matches;
+
+    @Param({"1000"})
+    public int limit;
+
+    private final List<EventDaoCassandraImpl.KeyedTimestamp> rows = new ArrayList<EventDaoCassandraImpl.KeyedTimestamp>();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(EventFixtures.SEED);
+        long start = EventFixtures.START.getMillis();
+        for (int i = 0; i < matches; i++) {
+            // row keys are random uuids, so the token order is unrelated to the time order
+            rows.add(new EventDaoCassandraImpl.KeyedTimestamp(Long.toHexString(random.nextLong()),
+                    start + random.nextInt(24 * 60 * 60 * 1000)));
+        }
+    }
+
+    @Benchmark
+    public List<EventDaoCassandraImpl.KeyedTimestamp> ascending() {
+        return EventDaoCassandraImpl.selectFirst(rows.iterator(), EventDaoCassandraImpl.KeyedTimestamp.ORDER, limit);
+    }
+
+    @Benchmark
+    public List<EventDaoCassandraImpl.KeyedTimestamp> descending() {
+        Ordering<EventDaoCassandraImpl.KeyedTimestamp> order = EventDaoCassandraImpl.KeyedTimestamp.ORDER.reverse();
+        return EventDaoCassandraImpl.selectFirst(rows.iterator(), order, limit);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventFixtures;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.ROW_TO_EVENT_FN;
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.SOURCE;
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.TIMESTAMP;
+
+/**
+ * Decoding the rows of a page read from cassandra into events with ROW_TO_EVENT_FN.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RowDecodingBenchmark {
+
+    @Param({"4", "12", "32"})
+    public int attributeCount;
+
+    private final List<Row<String, String, String>> rows = new ArrayList<Row<String, String, String>>();
+
+    @Setup
+    public void setUp() {
+        List<Event> events = EventFixtures.events("TESTER", EventDaoCassandraImpl.PAGE_SIZE, attributeCount, EventFixtures.SEED);
+        int key = 0;
+        for (Event event : events) {
+            // cassandra returns the columns sorted by name, the names are ASCII so the UTF8Type
+            // order is the order of the strings
+            SortedMap<String, HColumn<String, String>> columns = new TreeMap<String, HColumn<String, String>>();
+            for (Map.Entry<String, String> attribute : event.getAttributes().entrySet()) {
+                columns.put(attribute.getKey(), HFactory.createStringColumn(attribute.getKey(), attribute.getValue()));
+            }
+            columns.put(SOURCE, HFactory.createStringColumn(SOURCE, event.getSource()));
+            columns.put(TIMESTAMP, HFactory.createStringColumn(TIMESTAMP, TimestampCodec.encode(event.getTimestamp())));
+            rows.add(new StringRow(Integer.toString(key++), new ArrayList<HColumn<String, String>>(columns.values())));
+        }
+    }
+
+    @Benchmark
+    public List<Event> decodePage() {
+        List<Event> events = new ArrayList<Event>(rows.size());
+        for (Row<String, String, String> row : rows) {
+            events.add(ROW_TO_EVENT_FN.apply(row));
+        }
+        return events;
+    }
+
+    private static final class StringRow implements Row<String, String, String>, ColumnSlice<String, String> {
+
+        private final String key;
+        private final List<HColumn<String, String>> columns;
+
+        StringRow(String key, List<HColumn<String, String>> columns) {
+            this.key = key;
+            this.columns = columns;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public ColumnSlice<String, String> getColumnSlice() {
+            return this;
+        }
+
+        @Override
+        public List<HColumn<String, String>> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public HColumn<String, String> getColumnByName(String name) {
+            for (HColumn<String, String> column : columns) {
+                if (column.getName().equals(name)) {
+                    return column;
+                }
+            }
+            return null;
+        }
+    }
+}
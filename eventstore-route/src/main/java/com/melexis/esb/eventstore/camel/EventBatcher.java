@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the events of concurrent callers together with a single storeAll.
+ *
+ * A caller joins the open batch and waits until it is stored. The caller which fills
+ * the batch to its maximum size, or whose wait for the batch exceeds the maximum delay,
+ * stores it on behalf of all callers in the batch. So every caller returns only when its
+ * own event is written, and a JMS consumer which acknowledges its message afterwards
+ * never acknowledges an event which is not stored.
+ *
+ * When only some events of a batch fail, as reported by a BatchStoreException, those are
+ * stored again one at a time, so an event which cannot be stored does not fail the events
+ * written in the same batch_mutate. Only the callers of the events which still fail get
+ * the failure.
+ */
+class EventBatcher {
+
+    private final EventService eventService;
+    private final int maxSize;
+    private final long maxDelay;
+
+    /** guarded by this */
+    private Batch open;
+
+    EventBatcher(EventService eventService, int maxSize, long maxDelay) {
+        this.eventService = eventService;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Store the event with the events of the other callers.
+     *
+     * @throws RuntimeException the failure to store this event
+     */
+    void store(Event event) throws InterruptedException {
+        Batch batch;
+        boolean storing = false;
+        synchronized (this) {
+            if (open == null) {
+                open = new Batch(System.currentTimeMillis() + maxDelay);
+            }
+            batch = open;
+            batch.events.add(event);
+            if (batch.events.size() >= maxSize) {
+                open = null;
+                storing = true;
+            }
+        }
+
+        if (!storing) {
+            long delay = batch.deadline - System.currentTimeMillis();
+            if (!batch.stored.await(Math.max(delay, 0), TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    if (open == batch) {
+                        open = null;
+                        storing = true;
+                    }
+                }
+            }
+        }
+
+        if (storing) {
+            batch.store();
+        }
+        batch.stored.await();
+        batch.check(event);
+    }
+
+    private final class Batch {
+        final long deadline;
+        final List<Event> events = new ArrayList<Event>();
+        final CountDownLatch stored = new CountDownLatch(1);
+
+        volatile RuntimeException failure;
+        /** the failure per event when only some events failed */
+        volatile Map<Event, RuntimeException> failures;
+
+        Batch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        void store() {
+            try {
+                eventService.storeAll(events);
+            } catch (BatchStoreException e) {
+                failures = storeEach(e.getFailedEvents());
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                stored.countDown();
+            }
+        }
+
+        private Map<Event, RuntimeException> storeEach(List<Event> failed) {
+            Map<Event, RuntimeException> failures = new HashMap<Event, RuntimeException>();
+            for (Event event : failed) {
+                try {
+                    eventService.store(event);
+                } catch (RuntimeException e) {
+                    failures.put(event, e);
+                }
+            }
+            return failures;
+        }
+
+        void check(Event event) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (failures != null && failures.containsKey(event)) {
+                throw failures.get(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.EventService;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.joda.time.DateTime;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.SortedMap;
+
+/**
+ * Answers the number of events of a source per time bucket.
+ *
+ * The from and till parameters are required, granularity is MINUTE, HOUR or DAY and
+ * HOUR by default. With the attribute and value parameters only the events with that
+ * value for the attribute are counted. The body is a JSON object mapping the start of
+ * each bucket with events, in milliseconds since the epoch, to its count.
+ */
+public class EventCountProcessor implements Processor {
+
+    public static final Granularity DEFAULT_GRANULARITY = Granularity.HOUR;
+
+    private EventService eventService;
+    private DateTimeHelper dateTimeHelper;
+    private String urlPrefix;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Message in = exchange.getIn();
+        Message out = exchange.getOut();
+        if (EventQueryProcessor.rejectUnlessReady(eventService, out)) {
+            return;
+        }
+
+        String source = getSource(in);
+        DateTime from = dateTimeHelper.parse((String) in.getHeader("from"));
+        DateTime till = dateTimeHelper.parse((String) in.getHeader("till"));
+        Granularity granularity = getGranularity(in);
+        String attribute = (String) in.getHeader("attribute");
+        String value = (String) in.getHeader("value");
+
+        SortedMap<Long, Long> counts;
+        if (attribute != null && value != null) {
+            counts = eventService.countEventsByAttribute(attribute, value, source, from, till, granularity);
+            out.setHeader("attribute", attribute);
+            out.setHeader("value", value);
+        } else {
+            counts = eventService.countEvents(source, from, till, granularity);
+        }
+
+        out.setHeader("Source", source);
+        out.setHeader("from", dateTimeHelper.format(from));
+        out.setHeader("till", dateTimeHelper.format(till));
+        out.setHeader("granularity", granularity.name());
+        out.setBody(mapper.writeValueAsString(counts));
+    }
+
+    /**
+     * @return the granularity parameter, HOUR when it is missing
+     */
+    static Granularity getGranularity(Message in) {
+        String granularity = (String) in.getHeader("granularity");
+        if (granularity == null || granularity.trim().length() == 0) {
+            return DEFAULT_GRANULARITY;
+        }
+        return Granularity.valueOf(granularity.trim().toUpperCase());
+    }
+
+    private String getSource(Message in) {
+        String source = (String) in.getHeader("Source");
+        HttpServletRequest req = in.getBody(HttpServletRequest.class);
+        if (req != null) {
+            source = req.getPathInfo().replaceFirst(urlPrefix + "/", "");
+        }
+        return source;
+    }
+
+    public void setEventService(EventService eventService) {
+        this.eventService = eventService;
+    }
+
+    public void setDateTimeHelper(DateTimeHelper dateTimeHelper) {
+        this.dateTimeHelper = dateTimeHelper;
+    }
+
+    public void setUrlPrefix(String urlprefix) {
+        this.urlPrefix = urlprefix;
+    }
+}
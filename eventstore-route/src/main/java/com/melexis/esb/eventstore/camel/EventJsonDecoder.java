@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.melexis.esb.eventstore.camel.EventStoreProcessor.SOURCE_KEY;
+import static com.melexis.esb.eventstore.camel.EventStoreProcessor.TS_KEY;
+
+/**
+ * Decodes a JSON object of string attributes into an event in a single pass.
+ *
+ * The attributes go straight from the parser into an Event.Builder, the reserved keys
+ * _source and _ts are taken out on the way and the other keys are checked as
+ * Event.createEvent does. Scalar values are taken as their text, like a map of strings
+ * would read them.
+ */
+class EventJsonDecoder {
+
+    private final JsonFactory factory;
+    private final DateTimeHelper dateTimeHelper;
+
+    EventJsonDecoder(JsonFactory factory, DateTimeHelper dateTimeHelper) {
+        this.factory = factory;
+        this.dateTimeHelper = dateTimeHelper;
+    }
+
+    /**
+     * @param source the source of the event, or null to take it from the reserved attribute _source
+     */
+    Event decode(String json, String source) throws IOException {
+        return decode(factory.createJsonParser(json), source);
+    }
+
+    Event decode(byte[] json, String source) throws IOException {
+        return decode(factory.createJsonParser(json), source);
+    }
+
+    Event decode(InputStream json, String source) throws IOException {
+        return decode(factory.createJsonParser(json), source);
+    }
+
+    private Event decode(JsonParser parser, String source) throws IOException {
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("An event must be a JSON object.");
+            }
+
+            Event.Builder event = Event.builder(null, source);
+            String ts = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                String value = value(parser, key);
+
+                if (key.equals(SOURCE_KEY)) {
+                    // source header overrides data
+                    if (source == null) {
+                        source = value;
+                        event.source(value);
+                    }
+                } else if (key.equals(TS_KEY)) {
+                    ts = value;
+                } else if (key.startsWith("_")) {
+                    throw new IllegalArgumentException("Attributes passed to Event.createEvents " +
+                            "may not contain reserved keys (starting with '_') like : " + key);
+                } else {
+                    event.put(key, value);
+                }
+            }
+
+            if (source == null) {
+                throw new IllegalArgumentException("Cannot log events of unknown sources. Add " +
+                        "a '_source' attribute to the event data or set the 'Source' header " +
+                        "on the message exchange.");
+            }
+            event.timestamp(ts == null ? dateTimeHelper.now() : dateTimeHelper.parse(ts));
+            return event.build();
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static String value(JsonParser parser, String key) throws IOException {
+        JsonToken token = parser.nextToken();
+        if (token == null || !token.isScalarValue()) {
+            throw new IllegalArgumentException("The value of attribute " + key + " must be a string, not " + token);
+        }
+        if (token == JsonToken.VALUE_NULL) {
+            throw new IllegalArgumentException("The value of attribute " + key + " is null.");
+        }
+        return parser.getText();
+    }
+}
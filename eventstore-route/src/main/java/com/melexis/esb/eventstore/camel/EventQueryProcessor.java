@@ -17,22 +17,35 @@
 package com.melexis.esb.eventstore.camel;
 
 import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
 import com.melexis.esb.eventstore.EventService;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.esb.eventstore.Summary;
 import com.melexis.foundation.util.DateTimeHelper;
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
 import org.apache.camel.Processor;
 import org.apache.http.HttpMessage;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.type.TypeReference;
 import org.joda.time.DateTime;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 
 /**
  * Created with IntelliJ IDEA.
@@ -46,14 +59,36 @@ public class EventQueryProcessor implements Processor {
     public static final String SOURCE_KEY = "_source";
     public static final String TS_KEY = "_ts";
     public static final int DEFAULT_LIMIT = 1000;
+    /** seconds a client should wait before retrying a query while the store is not ready */
+    public static final int RETRY_AFTER = 10;
+    /** the number of events after which a streamed response is flushed to the client */
+    public static final int FLUSH_EVERY = 100;
+    /** the request parameter and response header holding the continuation of a paged query */
+    public static final String CONTINUATION = "continuation";
+    /**
+     * seconds clients and proxies may reuse the response of a closed time window, short as
+     * late events can still change it
+     */
+    public static final int DEFAULT_MAX_AGE = 60;
+    /** the largest limit of a query on a closed time window which is answered as a whole */
+    public static final int DEFAULT_MAX_BUFFERED = 10000;
+    /** milliseconds after which a time window is considered closed */
+    public static final long DEFAULT_CLOSED_AFTER = 60L * 60 * 1000;
     private EventService eventService;
     private DateTimeHelper dateTimeHelper;
+    private int maxAge = DEFAULT_MAX_AGE;
+    private long closedAfter = DEFAULT_CLOSED_AFTER;
+    private int maxBuffered = DEFAULT_MAX_BUFFERED;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private ObjectMapper mapper = new ObjectMapper();
 
 
     public EventQueryProcessor() {
         mapper.configure(SerializationConfig.Feature.WRITE_DATES_AS_TIMESTAMPS, false);
+        // a streamed response is flushed every FLUSH_EVERY events instead of after every event
+        mapper.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
     }
 
     private static final TypeReference<Map<String, String>> VALUE_TYPE_REF =
@@ -65,6 +100,9 @@ public class EventQueryProcessor implements Processor {
     public void process(Exchange exchange) throws Exception {
         Message in = exchange.getIn();
         Message out = exchange.getOut();
+        if (rejectUnlessReady(eventService, out)) {
+            return;
+        }
 
         String source = getSource(in);
         DateTime from = dateTimeHelper.parse((String) in.getHeader("from"));
@@ -73,14 +111,248 @@ public class EventQueryProcessor implements Processor {
         if (in.getHeader("limit") != null) {
             limit = Integer.parseInt((String) in.getHeader("limit"));
         }
-        List<Event> events = eventService.findEvents(source, from, till, limit);
+
+        String attribute = (String) in.getHeader("summarize");
+        if (attribute != null) {
+            summarize(out, source, attribute, from, till, EventCountProcessor.getGranularity(in));
+            return;
+        }
+
+        Set<String> fields = getFields(in);
 
         out.setHeader("Source", source);
         out.setHeader("from", dateTimeHelper.format(from));
         out.setHeader("till", dateTimeHelper.format(till));
         out.setHeader("limit", limit);
-        out.setBody(mapper.writeValueAsString(events));
+        if (fields != null) {
+            out.setHeader("fields", in.getHeader("fields"));
+        }
+
+        // a closed window is answered as a whole, so it gets an ETag and can be cached, unless
+        // it may hold too many events to keep in memory
+        boolean closed = isClosed(from, till) && limit <= maxBuffered;
+        String continuation = (String) in.getHeader(CONTINUATION);
+        if (continuation != null) {
+            page(in, out, source, from, till, limit, fields,
+                    continuation.trim().length() == 0 ? null : continuation, closed);
+            return;
+        }
+
+        HttpServletResponse response = in.getBody(HttpServletResponse.class);
+        if (response != null && !closed) {
+            out.setHeader("Cache-Control", "no-cache");
+            Iterable<Event> events = eventService.iterateEvents(source, from, till, limit, fields);
+            stream(response, out, events);
+        } else {
+            List<Event> events = eventService.findEvents(source, from, till, limit, fields);
+            respond(in, out, events, closed);
+        }
+
+    }
+
+    /**
+     * Answer a page of the events, for clients reading a range in several requests.
+     *
+     * The first page is requested with an empty continuation parameter. The continuation
+     * header of the response holds the value of the parameter for the next page, it is
+     * left out when there are no more events. An invalid continuation is answered with
+     * 400 Bad Request, and 501 Not Implemented when the event store cannot page.
+     */
+    private void page(Message in,
+                      Message out,
+                      String source,
+                      DateTime from,
+                      DateTime till,
+                      int limit,
+                      Set<String> fields,
+                      String continuation,
+                      boolean closed) throws IOException {
+        EventPage page;
+        try {
+            page = eventService.findEventPage(source, from, till, limit, fields, continuation);
+        } catch (IllegalArgumentException e) {
+            out.setHeader(Exchange.HTTP_RESPONSE_CODE, 400);
+            out.setBody(e.getMessage());
+            return;
+        } catch (UnsupportedOperationException e) {
+            out.setHeader(Exchange.HTTP_RESPONSE_CODE, 501);
+            out.setBody(e.getMessage());
+            return;
+        }
+        if (page.getContinuation() != null) {
+            out.setHeader(CONTINUATION, page.getContinuation());
+        }
+        respond(in, out, page.getEvents(), closed);
+    }
+
+    /**
+     * Answer the events with their ETag, or 304 Not Modified without a body when the
+     * request has it in its If-None-Match header.
+     *
+     * The events of a closed window are not expected to change anymore, so clients and
+     * proxies may reuse them for max-age seconds. Other responses have to be revalidated.
+     */
+    private void respond(Message in, Message out, List<Event> events, boolean closed) throws IOException {
+        String etag = etag(events);
+        out.setHeader("ETag", etag);
+        out.setHeader("Cache-Control", closed && maxAge > 0 ? "max-age=" + maxAge : "no-cache");
+        if (matches((String) in.getHeader("If-None-Match"), etag)) {
+            out.setHeader(Exchange.HTTP_RESPONSE_CODE, HttpServletResponse.SC_NOT_MODIFIED);
+            out.setBody(null);
+            return;
+        }
+        out.setBody(toJson(events));
+    }
+
+    /**
+     * @return whether both bounds lie more than the closed-after time in the past
+     */
+    boolean isClosed(DateTime from, DateTime till) {
+        if (from == null || till == null) {
+            return false;
+        }
+        long horizon = dateTimeHelper.now().getMillis() - closedAfter;
+        return Math.max(from.getMillis(), till.getMillis()) < horizon;
+    }
+
+    /**
+     * @return a strong entity tag of the events, the MD5 digest of their timestamps,
+     * sources and attributes, which is cheaper than digesting their JSON
+     */
+    static String etag(List<Event> events) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported.", e);
+        }
+        for (Event event : events) {
+            update(digest, Long.toString(event.getTimestamp().getMillis()));
+            update(digest, event.getSource());
+            for (Map.Entry<String, String> attribute : event.getAttributes().entrySet()) {
+                update(digest, attribute.getKey());
+                update(digest, attribute.getValue());
+            }
+            digest.update((byte) 1);
+        }
+        return String.format("\"%032x\"", new BigInteger(1, digest.digest()));
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(UTF_8));
+        digest.update((byte) 0);
+    }
 
+    /**
+     * @return whether the If-None-Match header lists the entity tag, weak tags match as well
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the events to the response while they are read, without a Content-Length so
+     * the servlet container sends them chunked.
+     *
+     * The headers of the out message are copied to the response, as it is committed before
+     * the route completes, so a failure while reading the events cannot change the status
+     * 200 anymore. The array is then left without its closing bracket and the failure is
+     * thrown, the client cannot mistake the events sent so far for the complete result.
+     */
+    void stream(HttpServletResponse response, Message out, Iterable<Event> events) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        for (Map.Entry<String, Object> header : out.getHeaders().entrySet()) {
+            response.setHeader(header.getKey(), String.valueOf(header.getValue()));
+        }
+
+        JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+        // close would otherwise end the array when the events fail
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        try {
+            generator.writeStartArray();
+            int count = 0;
+            for (Event event : events) {
+                mapper.writeValue(generator, event);
+                if (++count % FLUSH_EVERY == 0) {
+                    generator.flush();
+                }
+            }
+            generator.writeEndArray();
+        } finally {
+            generator.close();
+        }
+        out.setBody(null);
+    }
+
+    String toJson(List<Event> events) throws IOException {
+        return mapper.writeValueAsString(events);
+    }
+
+    /**
+     * Answer 503 Service Unavailable while the event store is not connected.
+     *
+     * @return whether the request was rejected
+     */
+    static boolean rejectUnlessReady(EventService eventService, Message out) {
+        if (eventService.isReady()) {
+            return false;
+        }
+        out.setHeader(Exchange.HTTP_RESPONSE_CODE, 503);
+        out.setHeader("Retry-After", RETRY_AFTER);
+        out.setBody("The event store is not ready yet.");
+        return true;
+    }
+
+    /**
+     * Answer the summary of the numeric values of the attribute per time bucket instead
+     * of the events, for charts of long time ranges.
+     */
+    private void summarize(Message out,
+                           String source,
+                           String attribute,
+                           DateTime from,
+                           DateTime till,
+                           Granularity granularity) throws IOException {
+        SortedMap<Long, Summary> summaries = eventService.summarize(source, attribute, from, till, granularity);
+
+        out.setHeader("Source", source);
+        out.setHeader("from", dateTimeHelper.format(from));
+        out.setHeader("till", dateTimeHelper.format(till));
+        out.setHeader("summarize", attribute);
+        out.setHeader("granularity", granularity.name());
+        out.setBody(mapper.writeValueAsString(summaries));
+    }
+
+    /**
+     * @return the attributes listed in the comma separated fields parameter, or null to
+     * return all attributes
+     */
+    private Set<String> getFields(Message in) {
+        String fields = (String) in.getHeader("fields");
+        if (fields == null || fields.trim().length() == 0) {
+            return null;
+        }
+        Set<String> names = new LinkedHashSet<String>();
+        for (String name : fields.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim());
+            }
+        }
+        return names;
     }
 
     private String getSource(Message in) {
@@ -103,4 +375,27 @@ public class EventQueryProcessor implements Processor {
     public void setUrlPrefix(String urlprefix) {
         this.urlPrefix = urlprefix;
     }
+
+    /**
+     * Set the seconds clients and proxies may reuse the events of a closed window, 0 makes
+     * them revalidate every response.
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Set the time in milliseconds after which a window is considered closed.
+     */
+    public void setClosedAfter(long closedAfter) {
+        this.closedAfter = closedAfter;
+    }
+
+    /**
+     * Set the largest limit of a query on a closed window which is answered as a whole with
+     * an ETag, queries with a higher limit are streamed like those on open windows.
+     */
+    public void setMaxBuffered(int maxBuffered) {
+        this.maxBuffered = maxBuffered;
+    }
 }
@@ -20,13 +20,18 @@ import com.melexis.esb.eventstore.Event;
 import com.melexis.esb.eventstore.EventService;
 import com.melexis.foundation.util.DateTimeHelper;
 import org.apache.camel.*;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.type.TypeReference;
-import org.joda.time.DateTime;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.codehaus.jackson.JsonFactory;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 
 /**
  * Created with IntelliJ IDEA.
@@ -35,50 +40,144 @@ import java.util.Map;
  * Time: 10:47 AM
  * To change this template use File | Settings | File Templates.
  */
-public class EventStoreProcessor implements Processor {
+public class EventStoreProcessor implements AsyncProcessor {
+
+    private final static Logger log = LoggerFactory.getLogger(EventStoreProcessor.class);
 
     public static final String SOURCE_KEY = "_source";
     public static final String TS_KEY = "_ts";
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    public static final long DEFAULT_BATCH_DELAY = 50;
+    public static final int DEFAULT_PARTITION_CAPACITY = 100;
+    public static final String PARTITIONS_MBEAN = "com.melexis.esb.eventstore:type=Ingest,name=partitions";
     private EventService eventService;
-    private DateTimeHelper dateTimeHelper;
 
-    private ObjectMapper mapper = new ObjectMapper();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long batchDelay = DEFAULT_BATCH_DELAY;
+    private volatile EventBatcher batcher;
+
+    private int partitions;
+    private int partitionCapacity = DEFAULT_PARTITION_CAPACITY;
+    private PartitionedWriter writer;
+    private boolean transacted;
+    private boolean asyncConsumer;
+    private ProducerTemplate deadLetters;
+    private String deadLetterUri;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private EventJsonDecoder decoder;
+
+    /**
+     * Start the partition workers when partitions are configured, and publish their queue
+     * depths over JMX. The messages of the queued events are already acknowledged, so up
+     * to partitions times the partition capacity events are lost when the process dies.
+     *
+     * @throws IllegalStateException when partitions are configured for a consumer which is
+     *                               transacted or waits for the exchanges to complete
+     */
+    public void start() throws JMException {
+        if (partitions > 0) {
+            if (transacted || !asyncConsumer) {
+                throw new IllegalStateException("Partitioned ingest needs an asynchronous consumer which is not transacted");
+            }
+            log.warn("Partitioned ingest acknowledges messages before their events are stored, up to {} "
+                    + "queued events are lost when the process dies", partitions * partitionCapacity);
+            writer = new PartitionedWriter(eventService, partitions, partitionCapacity, batchSize);
+            if (deadLetters != null && deadLetterUri != null) {
+                writer.setDeadLetters(deadLetters, deadLetterUri);
+            }
+            writer.start();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(writer, new ObjectName(PARTITIONS_MBEAN));
+        }
+    }
 
-    private static final TypeReference<Map<String, String>> VALUE_TYPE_REF =
-            new TypeReference<Map<String, String>>() {};
+    /**
+     * Stop the partition workers once the events in their queues are stored.
+     */
+    public void stop() throws JMException, InterruptedException {
+        if (writer != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(PARTITIONS_MBEAN));
+            writer.stop();
+            writer = null;
+        }
+    }
 
     @Override
     public void process(Exchange exchange) throws Exception {
-        Message in = exchange.getIn();
-        String eventJson = (String) in.getBody();
+        if (writer != null) {
+            AsyncProcessorHelper.process(this, exchange);
+            return;
+        }
 
-        // source header overrides data
-        String source = (String) in.getHeader("Source");
+        Event event = parse(exchange.getIn());
+        if (batchSize > 1) {
+            batcher().store(event);
+        } else {
+            eventService.store(event);
+        }
 
-        Map<String,String> attributes = mapper.readValue(eventJson, VALUE_TYPE_REF);
+    }
 
-        // fall back to reserved attribute _source
-        if ((source == null) && attributes.containsKey(SOURCE_KEY)) {
-            source = attributes.get(SOURCE_KEY);
-            attributes.remove(SOURCE_KEY);
+    /**
+     * With partitions the event is queued in the partition of its source and the exchange
+     * completes asynchronously when it is stored. An event which cannot be parsed fails
+     * synchronously.
+     */
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        try {
+            if (writer == null) {
+                process(exchange);
+            } else {
+                writer.add(parse(exchange.getIn()), exchange, callback);
+                return false;
+            }
+        } catch (Exception e) {
+            exchange.setException(e);
         }
+        callback.done(true);
+        return true;
+    }
 
-        if (source == null) {
-            throw new IllegalArgumentException("Cannot log events of unknown sources. Add " +
-                    "a '_source' attribute to the event data or set the 'Source' header " +
-                    "on the message exchange.");
+    private EventBatcher batcher() {
+        if (batcher == null) {
+            synchronized (this) {
+                if (batcher == null) {
+                    batcher = new EventBatcher(eventService, batchSize, batchDelay);
+                }
+            }
         }
+        return batcher;
+    }
 
-        DateTime timeStamp = dateTimeHelper.now();
-        if (attributes.containsKey(TS_KEY)) {
-            String ts = attributes.get(TS_KEY);
-            timeStamp = dateTimeHelper.parse(ts);
-            attributes.remove(TS_KEY);
+    /**
+     * Decode the body straight from the bytes of a BytesMessage or a stream, without
+     * making a String of it first.
+     */
+    private Event parse(Message in) throws IOException {
+        // source header overrides data
+        String source = (String) in.getHeader("Source");
+
+        Object body = in.getBody();
+        if (body instanceof String) {
+            return parse((String) body, source);
+        } else if (body instanceof byte[]) {
+            return parse((byte[]) body, source);
+        } else if (body instanceof InputStream) {
+            return decoder.decode((InputStream) body, source);
         }
+        return parse(in.getBody(String.class), source);
+    }
 
-        Event event = Event.createEvent(timeStamp,source,attributes);
-        eventService.store(event);
+    /**
+     * @param source the source of the event, or null to take it from the reserved attribute _source
+     */
+    Event parse(String eventJson, String source) throws IOException {
+        return decoder.decode(eventJson, source);
+    }
 
+    Event parse(byte[] eventJson, String source) throws IOException {
+        return decoder.decode(eventJson, source);
     }
 
     public void setEventService(EventService eventService) {
@@ -86,6 +185,66 @@ public class EventStoreProcessor implements Processor {
     }
 
     public void setDateTimeHelper(DateTimeHelper dateTimeHelper) {
-        this.dateTimeHelper = dateTimeHelper;
+        this.decoder = new EventJsonDecoder(jsonFactory, dateTimeHelper);
+    }
+
+    /**
+     * Store the events of up to batchSize concurrent exchanges together, 1 by default
+     * which stores every event on its own. Each exchange still completes only after its
+     * event is stored, so batches only form when the route has concurrent consumers.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the maximum time in milliseconds an exchange waits for a batch to fill.
+     */
+    public void setBatchDelay(long batchDelay) {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * Store events with this many workers, each storing the events of the sources whose
+     * hash falls in its partition in order. 0 by default, which stores the events in the
+     * consumer thread. A worker stores up to batchSize waiting events together.
+     */
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Set the number of events a partition queues before the consumer has to wait, 100 by
+     * default. The queued events are acknowledged but not yet stored, keep it small.
+     */
+    public void setPartitionCapacity(int partitionCapacity) {
+        this.partitionCapacity = partitionCapacity;
+    }
+
+    /**
+     * Whether the consumer of the route is transacted, which cannot be combined with partitions.
+     */
+    public void setTransacted(boolean transacted) {
+        this.transacted = transacted;
+    }
+
+    /**
+     * Whether the consumer of the route continues without waiting for the exchanges to
+     * complete, which partitions need.
+     */
+    public void setAsyncConsumer(boolean asyncConsumer) {
+        this.asyncConsumer = asyncConsumer;
+    }
+
+    /**
+     * Send the messages of the events which the partition workers cannot store with the
+     * template, they are already acknowledged.
+     */
+    public void setDeadLetters(ProducerTemplate deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    public void setDeadLetterUri(String deadLetterUri) {
+        this.deadLetterUri = deadLetterUri;
     }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventService;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stores events with a worker thread per partition, the partition of an event is chosen
+ * by the hash of its source.
+ *
+ * All events of a source go through the same queue and worker, so they are stored in the
+ * order in which they were added while different sources are stored concurrently. A worker
+ * stores all events waiting in its queue, up to the batch size, with a single storeAll and
+ * then completes their exchanges. Adding to a full queue blocks, which slows down the
+ * consumer instead of buffering without bound.
+ *
+ * The messages of the exchanges are acknowledged when they are added, so an event which
+ * cannot be stored is not redelivered. When only some events of a batch fail they are
+ * stored again one at a time, the events which still fail are sent to the dead letter
+ * endpoint with the body and headers of their message. Without a dead letter endpoint, or
+ * when sending fails, the exchange fails and the event is lost.
+ */
+public class PartitionedWriter implements PartitionedWriterMBean {
+
+    private static final long POLL_INTERVAL = 100;
+
+    private final EventService eventService;
+    private final int batchSize;
+    private final List<BlockingQueue<Pending>> queues = new ArrayList<BlockingQueue<Pending>>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    private ProducerTemplate deadLetters;
+    private String deadLetterUri;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    /** add holds the read lock, so no event is added once stop has the write lock */
+    private final ReadWriteLock stoppingLock = new ReentrantReadWriteLock();
+    private volatile boolean stopping;
+
+    public PartitionedWriter(EventService eventService, int partitions, int capacity, int batchSize) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("At least one partition is needed, not " + partitions);
+        }
+        this.eventService = eventService;
+        this.batchSize = Math.max(1, batchSize);
+        for (int i = 0; i < partitions; i++) {
+            queues.add(new LinkedBlockingQueue<Pending>(capacity));
+        }
+    }
+
+    /**
+     * Send the messages of the events which cannot be stored to the endpoint.
+     */
+    public void setDeadLetters(ProducerTemplate deadLetters, String deadLetterUri) {
+        this.deadLetters = deadLetters;
+        this.deadLetterUri = deadLetterUri;
+    }
+
+    public synchronized void start() {
+        stopping = false;
+        for (int i = 0; i < queues.size(); i++) {
+            final BlockingQueue<Pending> queue = queues.get(i);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(queue);
+                }
+            }, "eventstore-ingest-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Stop the workers after they have stored the events in their queues. Events left in
+     * the queues by a worker which died are failed.
+     */
+    public synchronized void stop() throws InterruptedException {
+        stoppingLock.writeLock().lock();
+        try {
+            stopping = true;
+        } finally {
+            stoppingLock.writeLock().unlock();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        workers.clear();
+
+        List<Pending> left = new ArrayList<Pending>();
+        for (BlockingQueue<Pending> queue : queues) {
+            queue.drainTo(left);
+        }
+        for (Pending pending : left) {
+            fail(pending, new IllegalStateException("The writer stopped before the event was stored"));
+        }
+    }
+
+    /**
+     * Queue the event of the exchange, the callback is called when it is stored.
+     */
+    public void add(Event event, Exchange exchange, AsyncCallback callback) throws InterruptedException {
+        stoppingLock.readLock().lock();
+        try {
+            if (stopping) {
+                throw new IllegalStateException("The writer is stopped");
+            }
+            queues.get(partition(event.getSource())).put(new Pending(event, exchange, callback));
+        } finally {
+            stoppingLock.readLock().unlock();
+        }
+    }
+
+    int partition(String source) {
+        return (source.hashCode() & Integer.MAX_VALUE) % queues.size();
+    }
+
+    private void work(BlockingQueue<Pending> queue) {
+        List<Pending> batch = new ArrayList<Pending>(batchSize);
+        while (true) {
+            Pending first;
+            try {
+                // the worker is not interrupted to stop, that could abort a store
+                first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (stopping) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            store(batch);
+            batch.clear();
+        }
+    }
+
+    private void store(List<Pending> batch) {
+        List<Event> events = new ArrayList<Event>(batch.size());
+        for (Pending pending : batch) {
+            events.add(pending.event);
+        }
+
+        RuntimeException failure = null;
+        Map<Event, RuntimeException> failures = null;
+        try {
+            eventService.storeAll(events);
+        } catch (BatchStoreException e) {
+            failures = storeEach(e.getFailedEvents());
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+
+        for (Pending pending : batch) {
+            RuntimeException e = failures == null ? failure : failures.get(pending.event);
+            if (e != null) {
+                fail(pending, e);
+            } else {
+                stored.incrementAndGet();
+                pending.callback.done(false);
+            }
+        }
+    }
+
+    /**
+     * @return the failure per event of the events which could not be stored
+     */
+    private Map<Event, RuntimeException> storeEach(List<Event> failedEvents) {
+        Map<Event, RuntimeException> failures = new HashMap<Event, RuntimeException>();
+        for (Event event : failedEvents) {
+            try {
+                eventService.store(event);
+            } catch (RuntimeException e) {
+                failures.put(event, e);
+            }
+        }
+        return failures;
+    }
+
+    private void fail(Pending pending, RuntimeException failure) {
+        failed.incrementAndGet();
+        if (deadLetters != null) {
+            try {
+                Message in = pending.exchange.getIn();
+                deadLetters.sendBodyAndHeaders(deadLetterUri, in.getBody(), in.getHeaders());
+                deadLettered.incrementAndGet();
+                pending.callback.done(false);
+                return;
+            } catch (RuntimeException e) {
+                // the exchange fails with the failure to store
+            }
+        }
+        pending.exchange.setException(failure);
+        pending.callback.done(false);
+    }
+
+    public int getPartitions() {
+        return queues.size();
+    }
+
+    public int[] getQueueDepths() {
+        int[] depths = new int[queues.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = queues.get(i).size();
+        }
+        return depths;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Pending> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    public long getStored() {
+        return stored.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    private static final class Pending {
+        final Event event;
+        final Exchange exchange;
+        final AsyncCallback callback;
+
+        Pending(Event event, Exchange exchange, AsyncCallback callback) {
+            this.event = event;
+            this.exchange = exchange;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+/**
+ * The JMX view of the partitions of a PartitionedWriter.
+ */
+public interface PartitionedWriterMBean {
+
+    int getPartitions();
+
+    /**
+     * @return the number of events waiting in each partition
+     */
+    int[] getQueueDepths();
+
+    int getQueueDepth();
+
+    long getStored();
+
+    /**
+     * @return the number of events which could not be stored
+     */
+    long getFailed();
+
+    /**
+     * @return the number of failed events sent to the dead letter endpoint
+     */
+    long getDeadLettered();
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventService;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class EventBatcherTest {
+
+    private static final DateTime TEST_TS = new DateTime(2012, 3, 4, 5, 6, 7, 890);
+
+    private EventService service;
+    private final List<List<Event>> batches = Collections.synchronizedList(new ArrayList<List<Event>>());
+    private final List<Event> stored = Collections.synchronizedList(new ArrayList<Event>());
+    private volatile Event failing;
+
+    @Before
+    public void setUp() {
+        service = mock(EventService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                List<Event> events = new ArrayList<Event>();
+                for (Object event : (Collection<?>) invocation.getArguments()[0]) {
+                    events.add((Event) event);
+                }
+                batches.add(events);
+                if (failing != null && events.contains(failing)) {
+                    // the whole batch_mutate holding the event fails
+                    throw new BatchStoreException(events, 1, new IllegalStateException());
+                }
+                return null;
+            }
+        }).when(service).storeAll(anyCollectionOf(Event.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Event event = (Event) invocation.getArguments()[0];
+                if (event.equals(failing)) {
+                    throw new IllegalArgumentException("failing");
+                }
+                stored.add(event);
+                return null;
+            }
+        }).when(service).store(any(Event.class));
+    }
+
+    private static Event event(int i) {
+        return Event.createEvent(TEST_TS.plusSeconds(i), "TEST_SOURCE", Collections.<String, String>emptyMap());
+    }
+
+    private List<Future<Void>> storeConcurrently(final EventBatcher batcher, int count) {
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < count; i++) {
+            final Event event = event(i);
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    batcher.store(event);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    @Test
+    public void testStoresConcurrentEventsTogether() throws Exception {
+        EventBatcher batcher = new EventBatcher(service, 4, 10000);
+
+        for (Future<Void> result : storeConcurrently(batcher, 4)) {
+            result.get();
+        }
+
+        assertEquals(1, batches.size());
+        assertEquals(4, batches.get(0).size());
+    }
+
+    @Test
+    public void testStoresIncompleteBatchAfterDelay() throws Exception {
+        EventBatcher batcher = new EventBatcher(service, 100, 50);
+
+        long start = System.currentTimeMillis();
+        batcher.store(event(1));
+
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testFailsOnlyFailedEvents() throws Exception {
+        EventBatcher batcher = new EventBatcher(service, 4, 10000);
+        failing = event(2);
+
+        int failures = 0;
+        for (Future<Void> result : storeConcurrently(batcher, 4)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+                failures++;
+            }
+        }
+
+        assertEquals(1, batches.size());
+        assertEquals(1, failures);
+        // the other events of the failed batch are stored one at a time
+        assertEquals(3, stored.size());
+        assertFalse(stored.contains(failing));
+    }
+
+    @Test
+    public void testFailsAllEventsWhenBatchFails() throws Exception {
+        EventBatcher batcher = new EventBatcher(service, 1, 10000);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                throw new IllegalStateException("down");
+            }
+        }).when(service).storeAll(anyCollectionOf(Event.class));
+
+        try {
+            batcher.store(event(1));
+            fail("the store should fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
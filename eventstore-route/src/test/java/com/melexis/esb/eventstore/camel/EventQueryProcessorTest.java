@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.EventService;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultMessage;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class EventQueryProcessorTest {
+
+    public static final String TEST_SOURCE = "TEST_SOURCE";
+    private static final DateTime FROM = new DateTime(2012, 3, 4, 5, 6, 7, 890);
+    private static final DateTime TILL = new DateTime(2012, 3, 5, 5, 6, 7, 890);
+    private static final DateTime NOW = TILL.plusMinutes(10);
+
+    private EventQueryProcessor processor;
+    private EventService service;
+    private Message in;
+    private Message out;
+    private Exchange exchange;
+
+    @Before
+    public void setUp() throws Exception {
+        DateTimeHelper dateTimeHelper = mock(DateTimeHelper.class);
+        when(dateTimeHelper.parse("from")).thenReturn(FROM);
+        when(dateTimeHelper.parse("till")).thenReturn(TILL);
+        when(dateTimeHelper.parse("past")).thenReturn(FROM.minusDays(1));
+        when(dateTimeHelper.now()).thenReturn(NOW);
+
+        service = mock(EventService.class);
+        when(service.isReady()).thenReturn(true);
+
+        processor = new EventQueryProcessor();
+        processor.setEventService(service);
+        processor.setDateTimeHelper(dateTimeHelper);
+
+        in = new DefaultMessage();
+        in.setHeader("Source", TEST_SOURCE);
+        in.setHeader("from", "from");
+        in.setHeader("till", "till");
+        exchange = mock(Exchange.class);
+        when(exchange.getIn()).thenReturn(in);
+        out = new DefaultMessage();
+        when(exchange.getOut()).thenReturn(out);
+    }
+
+    @Test
+    public void testQueryAllFields() throws Exception {
+        processor.process(exchange);
+
+        verify(service).findEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null);
+    }
+
+    @Test
+    public void testQuerySelectedFields() throws Exception {
+        in.setHeader("fields", "LOTNAME, PROCESSID,");
+
+        processor.process(exchange);
+
+        Set<String> fields = new HashSet<String>(Arrays.asList("LOTNAME", "PROCESSID"));
+        verify(service).findEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, fields);
+    }
+
+    @Test
+    public void testSummarize() throws Exception {
+        in.setHeader("summarize", "TEMPERATURE");
+        in.setHeader("granularity", "day");
+
+        processor.process(exchange);
+
+        verify(service).summarize(TEST_SOURCE, "TEMPERATURE", FROM, TILL, Granularity.DAY);
+        verify(service, never()).findEvents(anyString(), any(DateTime.class), any(DateTime.class), anyInt(), anySetOf(String.class));
+    }
+
+    @Test
+    public void testStreamsToResponse() throws Exception {
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+        when(service.iterateEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null))
+                .thenReturn(Collections.singletonList(Event.createEvent(FROM, TEST_SOURCE, new HashMap<String, String>())));
+        in.setBody(response);
+
+        processor.process(exchange);
+
+        verify(service).iterateEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null);
+        verify(service, never()).findEvents(anyString(), any(DateTime.class), any(DateTime.class), anyInt(), anySetOf(String.class));
+        verify(response).setContentType("application/json");
+        verify(response).setHeader("Source", TEST_SOURCE);
+    }
+
+    @Test
+    public void testFailureLeavesStreamedArrayOpen() throws Exception {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        Iterable<Event> failing = new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return new Iterator<Event>() {
+                    private int count;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (count == EventQueryProcessor.FLUSH_EVERY + 1) {
+                            throw new IllegalStateException("unavailable");
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public Event next() {
+                        return Event.createEvent(FROM.plus(count++), TEST_SOURCE, new HashMap<String, String>());
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+        when(service.iterateEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null)).thenReturn(failing);
+        in.setBody(response);
+
+        try {
+            processor.process(exchange);
+            fail("the failure should be thrown");
+        } catch (IllegalStateException expected) {
+        }
+
+        String json = body.toString("UTF-8").trim();
+        assertTrue(json.startsWith("[{"));
+        assertTrue(json.endsWith("}"));
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        in.setHeader("continuation", "");
+        when(service.findEventPage(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null, null))
+                .thenReturn(new EventPage(Collections.<Event>emptyList(), "next"));
+
+        processor.process(exchange);
+
+        assertEquals("next", out.getHeader("continuation"));
+        verify(service, never()).findEvents(anyString(), any(DateTime.class), any(DateTime.class), anyInt(), anySetOf(String.class));
+    }
+
+    @Test
+    public void testInvalidContinuation() throws Exception {
+        in.setHeader("continuation", "invalid");
+        when(service.findEventPage(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null, "invalid"))
+                .thenThrow(new IllegalArgumentException("Invalid continuation token invalid"));
+
+        processor.process(exchange);
+
+        assertEquals(400, out.getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    public void testPagingNotSupported() throws Exception {
+        in.setHeader("continuation", "");
+        when(service.findEventPage(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null, null))
+                .thenThrow(new UnsupportedOperationException("Paging needs the bucketedEventDao"));
+
+        processor.process(exchange);
+
+        assertEquals(501, out.getHeader(Exchange.HTTP_RESPONSE_CODE));
+    }
+
+    @Test
+    public void testClosedWindowIsCacheable() throws Exception {
+        in.setHeader("till", "past");
+        in.setBody(mock(HttpServletResponse.class));
+
+        processor.process(exchange);
+
+        verify(service).findEvents(TEST_SOURCE, FROM, FROM.minusDays(1), EventQueryProcessor.DEFAULT_LIMIT, null);
+        assertEquals("max-age=" + EventQueryProcessor.DEFAULT_MAX_AGE, out.getHeader("Cache-Control"));
+        assertEquals(EventQueryProcessor.etag(Collections.<Event>emptyList()), out.getHeader("ETag"));
+    }
+
+    @Test
+    public void testStreamsLargeClosedWindow() throws Exception {
+        int limit = EventQueryProcessor.DEFAULT_MAX_BUFFERED + 1;
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(mock(ServletOutputStream.class));
+        when(service.iterateEvents(TEST_SOURCE, FROM, FROM.minusDays(1), limit, null))
+                .thenReturn(Collections.<Event>emptyList());
+        in.setHeader("till", "past");
+        in.setHeader("limit", Integer.toString(limit));
+        in.setBody(response);
+
+        processor.process(exchange);
+
+        verify(service).iterateEvents(TEST_SOURCE, FROM, FROM.minusDays(1), limit, null);
+        verify(service, never()).findEvents(anyString(), any(DateTime.class), any(DateTime.class), anyInt(), anySetOf(String.class));
+        verify(response).setHeader("Cache-Control", "no-cache");
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        Event event = Event.createEvent(FROM, TEST_SOURCE, Collections.singletonMap("LOTNAME", "A12345"));
+        when(service.findEvents(TEST_SOURCE, FROM, TILL, EventQueryProcessor.DEFAULT_LIMIT, null))
+                .thenReturn(Collections.singletonList(event));
+        in.setHeader("If-None-Match", "\"other\", " + EventQueryProcessor.etag(Collections.singletonList(event)));
+
+        processor.process(exchange);
+
+        assertEquals(304, out.getHeader(Exchange.HTTP_RESPONSE_CODE));
+        assertEquals("no-cache", out.getHeader("Cache-Control"));
+        assertNull(out.getBody());
+    }
+
+    @Test
+    public void testNotReady() throws Exception {
+        when(service.isReady()).thenReturn(false);
+
+        processor.process(exchange);
+
+        assertEquals(503, out.getHeader(Exchange.HTTP_RESPONSE_CODE));
+        verify(service, never()).findEvents(anyString(), any(DateTime.class), any(DateTime.class), anyInt(), anySetOf(String.class));
+    }
+}
@@ -31,9 +31,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -139,5 +142,63 @@ public class EventStoreProcessorTest {
         verify(service).store(event);
     }
 
+    @Test
+    public void testEventWithBytesBody() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        attributes.put("_source",TEST_SOURCE);
+        in.setBody(mapper.writeValueAsBytes(attributes));
+
+        processor.process(exchange);
+
+        verify(service).store(event);
+    }
+
+    @Test
+    public void testEventWithNumberValue() throws Exception {
+        in.setBody("{\"_source\":\"" + TEST_SOURCE + "\",\"COUNT\":42}");
+
+        processor.process(exchange);
+
+        attributes.put("COUNT", "42");
+        verify(service).store(new Event(TEST_DATE_TIME, TEST_SOURCE, attributes));
+    }
+
+    @Test
+    public void testBatchedEvent() throws Exception {
+        processor.setBatchSize(10);
+        processor.setBatchDelay(1);
+        attributes.put("_source",TEST_SOURCE);
+        in.setBody(new ObjectMapper().writeValueAsString(attributes));
+
+        processor.process(exchange);
+
+        verify(service).storeAll(Collections.singletonList(event));
+        verify(service, never()).store(any(Event.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEventWithReservedAttribute() throws Exception {
+        in.setBody("{\"_source\":\"" + TEST_SOURCE + "\",\"_other\":\"value\"}");
+
+        processor.process(exchange);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsPartitionsWithTransactedConsumer() throws Exception {
+        processor.setPartitions(4);
+        processor.setAsyncConsumer(true);
+        processor.setTransacted(true);
+
+        processor.start();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsPartitionsWithSynchronousConsumer() throws Exception {
+        processor.setPartitions(4);
+        processor.setAsyncConsumer(false);
+
+        processor.start();
+    }
+
 
 }
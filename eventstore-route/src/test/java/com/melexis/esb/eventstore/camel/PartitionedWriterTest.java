@@ -0,0 +1,176 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.camel;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventService;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultMessage;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PartitionedWriterTest {
+
+    private static final DateTime TEST_TS = new DateTime(2012, 3, 4, 5, 6, 7, 890);
+
+    private final List<Event> stored = Collections.synchronizedList(new ArrayList<Event>());
+    private volatile Event failing;
+    private PartitionedWriter writer;
+
+    @Before
+    public void setUp() {
+        EventService service = mock(EventService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                List<Event> events = new ArrayList<Event>();
+                for (Object event : (Collection<?>) invocation.getArguments()[0]) {
+                    events.add((Event) event);
+                }
+                if (failing != null && events.contains(failing)) {
+                    List<Event> others = new ArrayList<Event>(events);
+                    others.remove(failing);
+                    stored.addAll(others);
+                    throw new BatchStoreException(Collections.singletonList(failing), 1, new IllegalStateException());
+                }
+                stored.addAll(events);
+                return null;
+            }
+        }).when(service).storeAll(anyCollectionOf(Event.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Event event = (Event) invocation.getArguments()[0];
+                if (event.equals(failing)) {
+                    throw new IllegalArgumentException("failing");
+                }
+                stored.add(event);
+                return null;
+            }
+        }).when(service).store(any(Event.class));
+
+        writer = new PartitionedWriter(service, 4, 100, 10);
+        writer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.stop();
+    }
+
+    private static Event event(String source, int i) {
+        return Event.createEvent(TEST_TS.plusSeconds(i), source, Collections.<String, String>emptyMap());
+    }
+
+    @Test
+    public void testKeepsOrderPerSource() throws Exception {
+        AsyncCallback callback = mock(AsyncCallback.class);
+        for (int i = 0; i < 100; i++) {
+            for (int source = 0; source < 8; source++) {
+                writer.add(event("source" + source, i), mock(Exchange.class), callback);
+            }
+        }
+        writer.stop();
+
+        assertEquals(800, stored.size());
+        int[] last = new int[8];
+        Arrays.fill(last, -1);
+        for (Event event : stored) {
+            int source = Integer.parseInt(event.getSource().substring("source".length()));
+            int i = (int) ((event.getTimestamp().getMillis() - TEST_TS.getMillis()) / 1000);
+            assertEquals(last[source] + 1, i);
+            last[source] = i;
+        }
+        verify(callback, times(800)).done(false);
+    }
+
+    @Test
+    public void testFailsOnlyFailedEvents() throws Exception {
+        failing = event("source", 1);
+        Exchange ok = mock(Exchange.class);
+        Exchange failed = mock(Exchange.class);
+
+        writer.add(event("source", 0), ok, mock(AsyncCallback.class));
+        writer.add(failing, failed, mock(AsyncCallback.class));
+        writer.stop();
+
+        verify(ok, never()).setException(any(Throwable.class));
+        verify(failed).setException(any(IllegalArgumentException.class));
+        assertEquals(1, writer.getFailed());
+        assertEquals(1, writer.getStored());
+    }
+
+    @Test
+    public void testSendsFailedEventsToTheDeadLetters() throws Exception {
+        ProducerTemplate deadLetters = mock(ProducerTemplate.class);
+        writer.setDeadLetters(deadLetters, "mock:dead");
+        failing = event("source", 1);
+        Exchange failed = mock(Exchange.class);
+        Message in = new DefaultMessage();
+        in.setBody("{}");
+        in.setHeader("Source", "source");
+        when(failed.getIn()).thenReturn(in);
+        AsyncCallback callback = mock(AsyncCallback.class);
+
+        writer.add(failing, failed, callback);
+        writer.stop();
+
+        verify(deadLetters).sendBodyAndHeaders("mock:dead", "{}", in.getHeaders());
+        verify(failed, never()).setException(any(Throwable.class));
+        verify(callback).done(false);
+        assertEquals(1, writer.getFailed());
+        assertEquals(1, writer.getDeadLettered());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsEventsAfterStop() throws Exception {
+        writer.stop();
+
+        writer.add(event("source", 0), mock(Exchange.class), mock(AsyncCallback.class));
+    }
+
+    @Test
+    public void testPartitionsBySource() {
+        assertEquals(writer.partition("source"), writer.partition("source"));
+        assertEquals(4, writer.getQueueDepths().length);
+    }
+}
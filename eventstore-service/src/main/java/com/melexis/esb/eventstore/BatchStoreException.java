@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Thrown when one or more batches of a multi-event store failed.
+ *
+ * The events of the batches which were written successfully are stored, only the
+ * events returned by {@link #getFailedEvents()} need to be retried.
+ */
+public class BatchStoreException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Event> failedEvents;
+    private final int failedBatches;
+
+    public BatchStoreException(List<Event> failedEvents, int failedBatches, Throwable cause) {
+        super(String.format("Failed to store %d events in %d batches", failedEvents.size(), failedBatches), cause);
+        this.failedEvents = ImmutableList.copyOf(failedEvents);
+        this.failedBatches = failedBatches;
+    }
+
+    public List<Event> getFailedEvents() {
+        return failedEvents;
+    }
+
+    public int getFailedBatches() {
+        return failedBatches;
+    }
+}
@@ -16,24 +16,57 @@
 
 package com.melexis.esb.eventstore;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import org.joda.time.DateTime;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * An immutable class to capture events happening.
+ *
+ * The attributes are kept in two parallel arrays sorted by key instead of a map. The
+ * keys and sources come from a small vocabulary, so they are interned and shared by
+ * all events. Lookups use a binary search over the keys.
  */
 public class Event implements Comparable {
-    private DateTime timestamp;
-    private String source;
-    private Map<String,String> attributes;
 
+    private static final Interner<String> NAMES = Interners.newWeakInterner();
+    private static final String[] EMPTY = new String[0];
+
+    private final DateTime timestamp;
+    private final String source;
+    private final String[] keys;
+    private final String[] values;
+    /** the view returned by getAttributes, created on first use */
+    private Map<String, String> attributes;
 
     public Event(DateTime ts, String source, Map<String, String> attributes) {
         this.timestamp = ts;   // DateTime is immutable
-        this.source = source;
-        this.attributes = ImmutableMap.copyOf(attributes);
+        this.source = intern(source);
+
+        Builder builder = new Builder(ts, source, attributes.size());
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue());
+        }
+        builder.sort();
+        this.keys = builder.keys;
+        this.values = builder.values;
+    }
+
+    private Event(Builder builder) {
+        this.timestamp = builder.timestamp;
+        this.source = intern(builder.source);
+        this.keys = builder.keys;
+        this.values = builder.values;
     }
 
     public static Event createEvent(DateTime timestamp, String source, Map<String, String> attributes) {
@@ -43,6 +76,15 @@ public class Event implements Comparable {
 
     }
 
+    /**
+     * Start building an event with the given timestamp and source. Unlike createEvent
+     * this does not check the attribute keys, it is meant for events read back from the
+     * event store.
+     */
+    public static Builder builder(DateTime timestamp, String source) {
+        return new Builder(timestamp, source, 8);
+    }
+
     private static void validateAttributes(Map<String, String> attributes) {
         for(String key : attributes.keySet()) {
             if (key.startsWith("_")) {
@@ -52,6 +94,10 @@ public class Event implements Comparable {
         }
     }
 
+    private static String intern(String name) {
+        return name == null ? null : NAMES.intern(name);
+    }
+
     public DateTime getTimestamp() {
         return timestamp;
     }
@@ -60,13 +106,23 @@ public class Event implements Comparable {
         return source;
     }
 
+    /**
+     * An unmodifiable view of the attributes, sorted by key.
+     */
     public Map<String,String> getAttributes() {
-        return attributes;
+        Map<String, String> view = attributes;
+        if (view == null) {
+            // racy, but the view has no state of its own so any instance will do
+            view = new Attributes();
+            attributes = view;
+        }
+        return view;
     }
 
     public String get(String key) {
         if (!key.startsWith("_")) {
-            return attributes.get(key);
+            int i = Arrays.binarySearch(keys, key);
+            return i >= 0 ? values[i] : null;
         } else if(key.equals("_source")) {
             return getSource();
         } else if(key.equals("_timestamp")) {
@@ -83,7 +139,7 @@ public class Event implements Comparable {
 
         Event event = (Event) o;
 
-        if (attributes != null ? !attributes.equals(event.attributes) : event.attributes != null) return false;
+        if (!Arrays.equals(keys, event.keys) || !Arrays.equals(values, event.values)) return false;
         if (source != null ? !source.equals(event.source) : event.source != null) return false;
         if (timestamp != null ? !timestamp.equals(event.timestamp) : event.timestamp != null) return false;
 
@@ -94,7 +150,7 @@ public class Event implements Comparable {
     public int hashCode() {
         int result = timestamp != null ? timestamp.hashCode() : 0;
         result = 31 * result + (source != null ? source.hashCode() : 0);
-        result = 31 * result + (attributes != null ? attributes.hashCode() : 0);
+        result = 31 * result + attributesHashCode();
         return result;
     }
 
@@ -114,7 +170,166 @@ public class Event implements Comparable {
         return "Event{" +
                 "timestamp=" + timestamp +
                 ", source='" + source + '\'' +
-                ", attributes=" + attributes +
+                ", attributes=" + getAttributes() +
                 '}';
     }
+
+    /** the hash code of the attributes as a map */
+    private int attributesHashCode() {
+        int result = 0;
+        for (int i = 0; i < keys.length; i++) {
+            result += keys[i].hashCode() ^ values[i].hashCode();
+        }
+        return result;
+    }
+
+    private final class Attributes extends AbstractMap<String, String> {
+
+        @Override
+        public int size() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && Arrays.binarySearch(keys, key) >= 0;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            int i = Arrays.binarySearch(keys, key);
+            return i >= 0 ? values[i] : null;
+        }
+
+        @Override
+        public int hashCode() {
+            return attributesHashCode();
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public int size() {
+                    return keys.length;
+                }
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int i;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < keys.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (i >= keys.length) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<String, String>(keys[i], values[i]);
+                            i++;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects the attributes of an event without an intermediate map.
+     */
+    public static final class Builder {
+
+        private DateTime timestamp;
+        private String source;
+        private String[] keys;
+        private String[] values;
+        private int size;
+        private boolean built;
+
+        private Builder(DateTime timestamp, String source, int capacity) {
+            this.timestamp = timestamp;
+            this.source = source;
+            this.keys = capacity == 0 ? EMPTY : new String[capacity];
+            this.values = capacity == 0 ? EMPTY : new String[capacity];
+        }
+
+        /**
+         * Set the timestamp, for decoders which only find it between the attributes.
+         */
+        public Builder timestamp(DateTime timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        /**
+         * Set the source, for decoders which only find it between the attributes.
+         */
+        public Builder source(String source) {
+            this.source = source;
+            return this;
+        }
+
+        public Builder put(String key, String value) {
+            checkNotNull(key, "null attribute key");
+            checkNotNull(value, "null value for attribute %s", key);
+            if (built) {
+                throw new IllegalStateException("Event already built.");
+            }
+            if (size == keys.length) {
+                int capacity = Math.max(8, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            keys[size] = intern(key);
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        public Event build() {
+            if (built) {
+                throw new IllegalStateException("Event already built.");
+            }
+            sort();
+            built = true;
+            return new Event(this);
+        }
+
+        /** sorts the attributes by key and trims the arrays */
+        private void sort() {
+            if (size < keys.length) {
+                keys = Arrays.copyOf(keys, size);
+                values = Arrays.copyOf(values, size);
+            }
+            // insertion sort, events have few attributes and are often already sorted
+            for (int i = 1; i < size; i++) {
+                String key = keys[i];
+                String value = values[i];
+                int j = i - 1;
+                while (j >= 0 && keys[j].compareTo(key) > 0) {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                if (j >= 0 && keys[j].equals(key)) {
+                    throw new IllegalArgumentException("Duplicate attribute " + key);
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+        }
+    }
 }
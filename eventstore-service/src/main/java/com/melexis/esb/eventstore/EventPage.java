@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A page of the events of a query, with the continuation token to read the next page.
+ */
+public class EventPage {
+
+    private final List<Event> events;
+    private final String continuation;
+
+    public EventPage(List<Event> events, String continuation) {
+        this.events = ImmutableList.copyOf(events);
+        this.continuation = continuation;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the opaque token to pass to the next query to continue after the last event
+     * of this page, or null when there are no more events
+     */
+    public String getContinuation() {
+        return continuation;
+    }
+}
@@ -23,12 +23,21 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 
 /**
  *
  */
 public interface EventService {
 
+    /**
+     * @return whether the event store is connected to its storage. Until it is, stores
+     *         and queries fail with an {@link EventStoreNotReadyException}, possibly after
+     *         waiting a while.
+     */
+    boolean isReady();
+
     void store(Event event);
 
     void store(Date timestamp, String source, Map<String,String> attributes);
@@ -36,6 +45,13 @@ public interface EventService {
     void store(String isoTimestamp, String source, Map<String,String> attributes);
     void store(String source, Map<String,String> attributes);
 
+    void storeAll(Collection<Event> events);
+
+    /**
+     * Block until all events stored before this call are written to the event store.
+     */
+    void flush();
+
 
     List<Event> findEvents(String source, DateTime from, DateTime till);
     List<Event> findEvents(String source, Date from, Date till);
@@ -53,7 +69,90 @@ public interface EventService {
     List<Event> findEvents(Collection<String> sources, Date from, Date till, int limit);
     List<Event> findEvents(Collection<String> sources, String isoFrom, String isoTill, int limit);
 
+    /**
+     * Find events reading only the given attributes, all attributes when fields is null.
+     *
+     * The source and timestamp of the events are always returned.
+     */
+    List<Event> findEvents(String source, DateTime from, DateTime till, int limit, Set<String> fields);
+    List<Event> findEvents(Collection<String> sources, DateTime from, DateTime till, int limit, Set<String> fields);
+
+    /**
+     * Find a page of at most limit events of a source, with only the given attributes or
+     * all attributes when fields is null.
+     *
+     * Pass the continuation of the page to the next call with the same source and bounds
+     * to read the following page, or null to read the first page. The continuation of the
+     * last page is null.
+     *
+     * @throws IllegalArgumentException when the continuation is not valid
+     * @throws UnsupportedOperationException when the configured DAO cannot page, only the
+     *         bucketedEventDao can
+     */
+    EventPage findEventPage(String source, DateTime from, DateTime till, int limit, Set<String> fields, String continuation);
+
     List<Event> findEventsForLotNameAndSource(final String lotname, final String source, int limit);
 
     List<Event> findEventsForProcessIdAndSource(final String processId, final String source, int limit);
+
+    /**
+     * Find the events of a source with the given value for an attribute.
+     *
+     * Lookups are fast for the attributes listed in eventstore.index.attributes, other
+     * attributes are found by scanning the events of the source in the time range.
+     */
+    List<Event> findEventsByAttribute(String name, String value, String source, DateTime from, DateTime till, int limit);
+
+    /**
+     * Count the events of a source per time bucket.
+     *
+     * Both from and till are required. The result maps the start of every bucket with
+     * events, in milliseconds since the epoch, to the number of events in it.
+     */
+    SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity);
+
+    /**
+     * Count the events of a source with the given value for an attribute per time bucket.
+     *
+     * Counting is fast for the attributes listed in eventstore.count.attributes, the
+     * events of other attributes are read and counted.
+     */
+    SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                 String value,
+                                                 String source,
+                                                 DateTime from,
+                                                 DateTime till,
+                                                 Granularity granularity);
+
+    /**
+     * Summarize the numeric values of an attribute of a source per time bucket.
+     *
+     * Both from and till are required. Only the attribute is read from the events, which
+     * are summarized while they are read. Values which are not a number are skipped.
+     *
+     * @return the summary of every bucket with values, by the start of the bucket in
+     *         milliseconds since the epoch
+     */
+    SortedMap<Long, Summary> summarize(String source,
+                                       String attribute,
+                                       DateTime from,
+                                       DateTime till,
+                                       Granularity granularity);
+
+    /**
+     * Iterate over the events of a source, reading them lazily while iterating.
+     *
+     * Use this instead of findEvents for large time windows.
+     */
+    Iterable<Event> iterateEvents(String source, DateTime from, DateTime till, int limit);
+
+    /**
+     * Iterate over the events of a source with only the given attributes, or all
+     * attributes when fields is null.
+     */
+    Iterable<Event> iterateEvents(String source, DateTime from, DateTime till, int limit, Set<String> fields);
+
+    Iterable<Event> iterateEventsForLotNameAndSource(final String lotname, final String source, int limit);
+
+    Iterable<Event> iterateEventsForProcessIdAndSource(final String processId, final String source, int limit);
 }
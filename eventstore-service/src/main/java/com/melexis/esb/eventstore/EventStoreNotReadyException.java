@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore;
+
+/**
+ * Thrown when the event store is used before it is connected to its storage.
+ *
+ * The store connects in the background after it is started, see
+ * {@link EventService#isReady()}. The operation can be retried later.
+ */
+public class EventStoreNotReadyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public EventStoreNotReadyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore;
+
+/**
+ * The size of the time buckets in which events are counted.
+ *
+ * Buckets are aligned on the epoch in UTC, so a DAY bucket starts at midnight UTC.
+ */
+public enum Granularity {
+
+    MINUTE(60L * 1000),
+    HOUR(60L * 60 * 1000),
+    DAY(24L * 60 * 60 * 1000);
+
+    private final long millis;
+
+    private Granularity(long millis) {
+        this.millis = millis;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return the start of the bucket holding the given moment, in milliseconds
+     */
+    public long bucketStart(long millis) {
+        long remainder = millis % this.millis;
+        return remainder < 0 ? millis - remainder - this.millis : millis - remainder;
+    }
+}
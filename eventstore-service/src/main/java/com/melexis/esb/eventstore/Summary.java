@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore;
+
+/**
+ * The minimum, maximum, average, number and last of the numeric values of an attribute
+ * in a time bucket.
+ */
+public class Summary {
+
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+    private double last;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Add a value of the attribute observed at the given moment in milliseconds.
+     */
+    public void add(long timestamp, double value) {
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        if (timestamp >= lastTimestamp) {
+            last = value;
+            lastTimestamp = timestamp;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getAvg() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double getLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return "Summary{" +
+                "count=" + count +
+                ", min=" + min +
+                ", max=" + max +
+                ", avg=" + getAvg() +
+                ", last=" + last +
+                '}';
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.ForwardingIterator;
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventStoreNotReadyException;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+
+/**
+ * Connection handling and batched writes shared by the cassandra backed DAOs.
+ *
+ * The keyspace and column families are verified in the background, so creating a DAO
+ * does not wait for cassandra. Until they are verified operations wait at most the ready
+ * timeout and then fail with an {@link EventStoreNotReadyException}.
+ *
+ * Subclasses describe the mutations for a single event in {@link #addInsertions}.
+ */
+public abstract class AbstractCassandraEventDao implements EventDao {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_READY_TIMEOUT = 10000;
+    public static final String SCAN_TYPE = "Scan";
+
+    private final static Logger log = Logger.getLogger(AbstractCassandraEventDao.class);
+
+    protected final Keyspace keyspace;
+    private final String keyspaceName;
+    private final KeyspaceConnector connector;
+    private long readyTimeout = DEFAULT_READY_TIMEOUT;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private EventStoreMetrics metrics = new EventStoreMetrics();
+
+    protected AbstractCassandraEventDao(Cluster cluster,
+                                        String keyspaceName,
+                                        int replicationFactor,
+                                        List<ColumnFamilyDefinition> columnFamilies) {
+        this.keyspace = HFactory.createKeyspace(keyspaceName, cluster);
+        this.keyspaceName = keyspaceName;
+        this.connector = new KeyspaceConnector(cluster, keyspaceName, replicationFactor, columnFamilies);
+        connector.start();
+    }
+
+    public boolean isReady() {
+        return connector.isReady();
+    }
+
+    /**
+     * @return whether the keyspace became ready within the timeout in milliseconds
+     */
+    public boolean awaitReady(long timeout) throws InterruptedException {
+        return connector.awaitReady(timeout);
+    }
+
+    /**
+     * Wait at most the ready timeout for the keyspace to become ready.
+     *
+     * @throws EventStoreNotReadyException when it is not ready in time
+     */
+    protected void checkReady() {
+        if (connector.isReady()) {
+            return;
+        }
+        try {
+            if (connector.awaitReady(readyTimeout)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new EventStoreNotReadyException(String.format("The keyspace %s is not ready.", keyspaceName));
+    }
+
+    /**
+     * Stop connecting to the keyspace when it is not ready yet.
+     */
+    public void disconnect() {
+        connector.stop();
+    }
+
+    /**
+     * Set the time in milliseconds operations wait for the keyspace before they fail,
+     * 0 fails immediately.
+     */
+    public void setReadyTimeout(long readyTimeout) {
+        this.readyTimeout = readyTimeout;
+    }
+
+    public Keyspace getKeyspace() {
+        return keyspace;
+    }
+
+    /**
+     * Set the maximum number of events written in a single batch_mutate by storeAll.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Set the estimated maximum number of bytes written in a single batch_mutate by storeAll.
+     *
+     * This must stay well below the thrift frame size of the cassandra nodes.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Publish the rows read and returned by every kind of scan of the queries with the type Scan.
+     */
+    public void setMetrics(EventStoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    protected OperationStats scanStats(String scan) {
+        return metrics.stats(SCAN_TYPE, scan);
+    }
+
+    /**
+     * Count the rows read from the iterator as scanned.
+     */
+    protected static <T> Iterator<T> scanning(final Iterator<T> rows, final OperationStats stats) {
+        return new ForwardingIterator<T>() {
+            @Override
+            protected Iterator<T> delegate() {
+                return rows;
+            }
+
+            @Override
+            public T next() {
+                T row = super.next();
+                stats.scanned(1);
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Start a lazy scan by reading its first row, and count the rows read from the iterator
+     * as returned. So the latency of the scan is the time to its first row.
+     */
+    protected static <T> Iterator<T> started(final Iterator<T> rows, final OperationStats stats) {
+        stats.record(new OperationStats.Call<Boolean>() {
+            @Override
+            protected Boolean call() {
+                return rows.hasNext();
+            }
+
+            @Override
+            protected int rows(Boolean result) {
+                return 0;
+            }
+        });
+        return new ForwardingIterator<T>() {
+            @Override
+            protected Iterator<T> delegate() {
+                return rows;
+            }
+
+            @Override
+            public T next() {
+                T row = super.next();
+                stats.returned(1);
+                return row;
+            }
+        };
+    }
+
+    /**
+     * Add the mutations to store the event to the mutator.
+     */
+    protected abstract void addInsertions(Mutator<String> mutator, Event event);
+
+    /**
+     * Called after the insertions of the events were written successfully.
+     */
+    protected void inserted(List<Event> events) {
+    }
+
+    public void store(Event event) {
+        checkReady();
+        Mutator<String> mutator = createMutator(keyspace, StringSerializer.get());
+        addInsertions(mutator, event);
+        mutator.execute();
+        inserted(Collections.singletonList(event));
+    }
+
+    public void storeAll(Collection<Event> events) {
+        checkReady();
+        List<Event> failed = new ArrayList<Event>();
+        int failedBatches = 0;
+        HectorException cause = null;
+
+        List<Event> batch = new ArrayList<Event>();
+        long batchBytes = 0;
+        for (Event event : events) {
+            int size = EventSizes.estimate(event);
+            if (!batch.isEmpty() && (batch.size() >= maxBatchSize || batchBytes + size > maxBatchBytes)) {
+                HectorException e = executeBatch(batch);
+                if (e != null) {
+                    failed.addAll(batch);
+                    failedBatches++;
+                    cause = e;
+                }
+                batch.clear();
+                batchBytes = 0;
+            }
+            batch.add(event);
+            batchBytes += size;
+        }
+
+        if (!batch.isEmpty()) {
+            HectorException e = executeBatch(batch);
+            if (e != null) {
+                failed.addAll(batch);
+                failedBatches++;
+                cause = e;
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            throw new BatchStoreException(failed, failedBatches, cause);
+        }
+    }
+
+    /**
+     * Write the batch in a single batch_mutate.
+     *
+     * @return the exception when the batch failed, null otherwise
+     */
+    private HectorException executeBatch(List<Event> batch) {
+        Mutator<String> mutator = createMutator(keyspace, StringSerializer.get());
+        for (Event event : batch) {
+            addInsertions(mutator, event);
+        }
+        try {
+            mutator.execute();
+            inserted(batch);
+            return null;
+        } catch (HectorException e) {
+            log.warn(String.format("Failed to store a batch of %d events.", batch.size()), e);
+            return e;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Charsets;
+import com.melexis.esb.eventstore.Event;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Packs event attributes in a single column value.
+ *
+ * The format is the number of attributes followed by the length prefixed UTF-8 bytes of
+ * each key and value.
+ */
+final class AttributeCodec {
+
+    private AttributeCodec() {
+    }
+
+    static byte[] encode(Map<String, String> attributes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(EventSizes.COLUMN_OVERHEAD * attributes.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write attributes to a byte array.", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Event.Builder decode(byte[] value, Event.Builder event) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+        try {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String key = readString(in);
+                event.put(key, readString(in));
+            }
+            return event;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt attribute column value.", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the results of findEvents for closed time windows.
+ *
+ * A window is closed when both bounds lie more than the closed-after horizon in the
+ * past. Events for such a window are not expected anymore, so its result can be reused.
+ * The cache is bounded by the number of windows and by the estimated size of their
+ * events, the least recently used windows are evicted first.
+ *
+ * An event stored through this DAO into a cached window, i.e. a late event, removes
+ * that window from the cache. Events stored around this DAO are not seen, so all writes
+ * have to go through it.
+ */
+public class CachingEventDao extends ForwardingEventDao {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_CLOSED_AFTER = 60L * 60 * 1000;
+
+    private final DateTimeHelper dateTimeHelper;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long closedAfter = DEFAULT_CLOSED_AFTER;
+
+    /** guarded by itself, iterates from least to most recently used */
+    private final LinkedHashMap<Window, CachedResult> cache = new LinkedHashMap<Window, CachedResult>(16, 0.75f, true);
+    private long bytes;
+    /** guarded by cache, counts the late events, a result read meanwhile may miss one */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public CachingEventDao(EventDao delegate, DateTimeHelper dateTimeHelper) {
+        super(delegate);
+        this.dateTimeHelper = dateTimeHelper;
+    }
+
+    @Override
+    public void store(Event event) {
+        super.store(event);
+        invalidate(event);
+    }
+
+    @Override
+    public void storeAll(Collection<Event> events) {
+        try {
+            super.storeAll(events);
+        } finally {
+            // also after a partial failure, some events may be stored
+            for (Event event : events) {
+                invalidate(event);
+            }
+        }
+    }
+
+    @Override
+    public List<Event> findEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        if (!isClosed(from, till)) {
+            return super.findEvents(source, from, till, max);
+        }
+
+        Window window = new Window(source, from.getMillis(), till.getMillis(), max);
+        List<Event> cached = get(window);
+        if (cached != null) {
+            return cached;
+        }
+
+        long before = generation();
+        List<Event> events = ImmutableList.copyOf(super.findEvents(source, from, till, max));
+        put(window, events, before);
+        return events;
+    }
+
+    @Override
+    public Iterable<Event> iterateEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        if (isClosed(from, till)) {
+            List<Event> cached = get(new Window(source, from.getMillis(), till.getMillis(), max));
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return super.iterateEvents(source, from, till, max);
+    }
+
+    /**
+     * Projected results are not cached, but are taken from a cached complete result.
+     */
+    @Override
+    public List<Event> findEvents(String source,
+                                  @Nullable DateTime from,
+                                  @Nullable DateTime till,
+                                  int max,
+                                  @Nullable Set<String> fields) {
+        if (fields == null) {
+            return findEvents(source, from, till, max);
+        }
+        if (isClosed(from, till)) {
+            List<Event> cached = get(new Window(source, from.getMillis(), till.getMillis(), max));
+            if (cached != null) {
+                return Lists.transform(cached, EventProjection.projecting(fields));
+            }
+        }
+        return super.findEvents(source, from, till, max, fields);
+    }
+
+    @Override
+    public Iterable<Event> iterateEvents(String source,
+                                         @Nullable DateTime from,
+                                         @Nullable DateTime till,
+                                         int max,
+                                         @Nullable Set<String> fields) {
+        if (fields == null) {
+            return iterateEvents(source, from, till, max);
+        }
+        if (isClosed(from, till)) {
+            List<Event> cached = get(new Window(source, from.getMillis(), till.getMillis(), max));
+            if (cached != null) {
+                return Lists.transform(cached, EventProjection.projecting(fields));
+            }
+        }
+        return super.iterateEvents(source, from, till, max, fields);
+    }
+
+    private boolean isClosed(@Nullable DateTime from, @Nullable DateTime till) {
+        if (maxEntries <= 0 || from == null || till == null) {
+            return false;
+        }
+        long horizon = dateTimeHelper.now().getMillis() - closedAfter;
+        return Math.max(from.getMillis(), till.getMillis()) < horizon;
+    }
+
+    private List<Event> get(Window window) {
+        CachedResult result;
+        synchronized (cache) {
+            result = cache.get(window);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result.events;
+    }
+
+    private long generation() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+
+    /**
+     * @param before the generation read before the events were queried, when a late event
+     *               was stored since then the events may not contain it and are not cached
+     */
+    private void put(Window window, List<Event> events, long before) {
+        CachedResult result = new CachedResult(events);
+        if (result.bytes > maxBytes) {
+            return;
+        }
+
+        synchronized (cache) {
+            if (generation != before) {
+                return;
+            }
+            CachedResult previous = cache.put(window, result);
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += result.bytes;
+
+            Iterator<CachedResult> lru = cache.values().iterator();
+            while ((cache.size() > maxEntries || bytes > maxBytes) && lru.hasNext()) {
+                bytes -= lru.next().bytes;
+                lru.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void invalidate(Event event) {
+        long millis = event.getTimestamp().getMillis();
+
+        // cached windows lie before the horizon at the time they were cached, which is
+        // before the current horizon, so only late events can fall in one of them
+        if (millis >= dateTimeHelper.now().getMillis() - closedAfter) {
+            return;
+        }
+
+        synchronized (cache) {
+            generation++;
+            Iterator<Map.Entry<Window, CachedResult>> entries = cache.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Window, CachedResult> entry = entries.next();
+                if (entry.getKey().contains(event.getSource(), millis)) {
+                    bytes -= entry.getValue().bytes;
+                    entries.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+            bytes = 0;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getEstimatedBytes() {
+        synchronized (cache) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Set the maximum number of cached windows, 0 disables the cache.
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Set the maximum estimated size in bytes of the events in the cache.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Set the time in milliseconds after which a window is considered closed.
+     */
+    public void setClosedAfter(long closedAfter) {
+        this.closedAfter = closedAfter;
+    }
+
+    private static final class Window {
+        final String source;
+        final long from;
+        final long till;
+        final int max;
+
+        Window(String source, long from, long till, int max) {
+            this.source = source;
+            this.from = from;
+            this.till = till;
+            this.max = max;
+        }
+
+        boolean contains(String source, long millis) {
+            return this.source.equals(source)
+                    && millis >= Math.min(from, till)
+                    && millis <= Math.max(from, till);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Window window = (Window) o;
+            return from == window.from && till == window.till && max == window.max && source.equals(window.source);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = source.hashCode();
+            result = 31 * result + (int) (from ^ (from >>> 32));
+            result = 31 * result + (int) (till ^ (till >>> 32));
+            result = 31 * result + max;
+            return result;
+        }
+    }
+
+    private static final class CachedResult {
+        final List<Event> events;
+        final long bytes;
+
+        CachedResult(List<Event> events) {
+            long size = 0;
+            for (Event event : events) {
+                size += EventSizes.estimate(event);
+            }
+            this.events = events;
+            this.bytes = size;
+        }
+    }
+}
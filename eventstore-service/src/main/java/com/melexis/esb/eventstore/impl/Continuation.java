@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The position of an event in the store, handed out to clients as an opaque token to
+ * continue a query after that event.
+ *
+ * The position is the timestamp of the event and a key which orders events with the same
+ * timestamp, its meaning depends on the DAO. The token is the hexadecimal encoding of both,
+ * which is URL safe, clients should not rely on its format.
+ */
+final class Continuation {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    final long millis;
+    final String key;
+
+    Continuation(long millis, String key) {
+        this.millis = millis;
+        this.key = key;
+    }
+
+    String encode() {
+        byte[] bytes = (millis + ":" + key).getBytes(Charsets.UTF_8);
+        char[] token = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            token[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+            token[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+        }
+        return new String(token);
+    }
+
+    /**
+     * @throws IllegalArgumentException when the token was not made by encode
+     */
+    static Continuation decode(String token) {
+        try {
+            if (token.length() % 2 != 0) {
+                throw new IllegalArgumentException("odd length");
+            }
+            byte[] bytes = new byte[token.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(token.substring(2 * i, 2 * i + 2), 16);
+            }
+            String position = new String(bytes, Charsets.UTF_8);
+            int separator = position.indexOf(':');
+            return new Continuation(Long.parseLong(position.substring(0, separator)), position.substring(separator + 1));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token " + token, e);
+        }
+    }
+}
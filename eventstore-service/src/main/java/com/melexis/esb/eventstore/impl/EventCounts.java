@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.Granularity;
+import org.joda.time.DateTime;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Counts events per time bucket while reading them, for stores without counters.
+ */
+final class EventCounts {
+
+    private EventCounts() {
+    }
+
+    /**
+     * @return the earliest moment of the buckets overlapping the range
+     */
+    static DateTime first(DateTime from, DateTime till, Granularity granularity) {
+        checkBounds(from, till);
+        return new DateTime(granularity.bucketStart(Math.min(from.getMillis(), till.getMillis())));
+    }
+
+    /**
+     * @return the latest moment of the buckets overlapping the range
+     */
+    static DateTime last(DateTime from, DateTime till, Granularity granularity) {
+        checkBounds(from, till);
+        long hi = Math.max(from.getMillis(), till.getMillis());
+        return new DateTime(granularity.bucketStart(hi) + granularity.getMillis() - 1);
+    }
+
+    static void checkBounds(DateTime from, DateTime till) {
+        if (from == null || till == null) {
+            throw new IllegalArgumentException("Counting events requires both a from and a till.");
+        }
+    }
+
+    static SortedMap<Long, Long> count(Iterable<Event> events, Granularity granularity) {
+        SortedMap<Long, Long> counts = new TreeMap<Long, Long>();
+        for (Event event : events) {
+            long bucket = granularity.bucketStart(event.getTimestamp().getMillis());
+            Long count = counts.get(bucket);
+            counts.put(bucket, count == null ? 1L : count + 1);
+        }
+        return counts;
+    }
+}
@@ -17,15 +17,38 @@
 package com.melexis.esb.eventstore.impl;
 
 import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
 import org.joda.time.DateTime;
 
 import javax.annotation.Nullable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
 
 public interface EventDao {
 
+    /**
+     * @return whether the storage is connected. Until it is, operations fail with an
+     *         {@link com.melexis.esb.eventstore.EventStoreNotReadyException}.
+     */
+    boolean isReady();
+
     void store(Event event);
 
+    /**
+     * Store a collection of events.
+     *
+     * The events are written in as few round-trips as possible. Implementations may
+     * split the collection in several batches, when a batch fails the remaining batches
+     * are still written and a {@link com.melexis.esb.eventstore.BatchStoreException}
+     * listing the events of the failed batches is thrown at the end.
+     *
+     * @param events  The events to store
+     */
+    void storeAll(Collection<Event> events);
+
     /**
      * Find events for the specified source.
      *
@@ -46,6 +69,14 @@ public interface EventDao {
      * case is paging events on a screen. In this case return one more than the pagesize
      * and use its timestamp as the start of the next page.
      *
+     * The max parameter bounds the events read, not always the rows scanned. The
+     * indexedEventDao reads the timestamp of every event of the source in the range from
+     * its secondary index before it knows which are the first max, so its queries take
+     * longer as the range holds more events even with a small max. The index returns the
+     * rows in token order and only filters them on their timestamp, so it cannot stop
+     * early. The bucketedEventDao reads its buckets in time order and stops after max
+     * events.
+     *
      * @param source  The id string of the source of the event
      * @param from    The earliest time to return events from
      * @param till    The latest moment to return events from
@@ -54,6 +85,43 @@ public interface EventDao {
      */
     List<Event> findEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max);
 
+    /**
+     * Find events for the specified source, reading only the given attributes.
+     *
+     * See {@link #findEvents(String, DateTime, DateTime, int)}. The returned events hold
+     * only those of the given attributes they have, their source and timestamp are always
+     * read.
+     *
+     * @param fields  The names of the attributes to read, all attributes when null
+     */
+    List<Event> findEvents(String source,
+                           @Nullable DateTime from,
+                           @Nullable DateTime till,
+                           int max,
+                           @Nullable Set<String> fields);
+
+    /**
+     * Find a page of the events for the specified source.
+     *
+     * See {@link #findEvents(String, DateTime, DateTime, int, Set)}. The page holds at most
+     * max events, its continuation is passed to the next call with the same source and
+     * bounds to read the events after the last event of the page. Events with the same
+     * timestamp are neither skipped nor repeated between pages.
+     *
+     * @param continuation  The continuation of the previous page, null for the first page
+     * @return the events of the page and the continuation of the next page, which is
+     *         null when there are no more events
+     * @throws IllegalArgumentException when the continuation is not one of this DAO
+     * @throws UnsupportedOperationException when the DAO cannot page without reading all
+     *         events of the source for every page
+     */
+    EventPage findEventPage(String source,
+                            @Nullable DateTime from,
+                            @Nullable DateTime till,
+                            int max,
+                            @Nullable Set<String> fields,
+                            @Nullable String continuation);
+
     /**
      * Find all events for a given lotname.
      *
@@ -116,4 +184,116 @@ public interface EventDao {
                                                 @Nullable DateTime end,
                                                 int max);
 
+    /**
+     * Find the events of a source with the given value for an attribute.
+     *
+     * The bounds, order and max are interpreted as in {@link #findEvents}. Attributes
+     * configured as indexed are looked up directly, other attributes are found by
+     * scanning the events of the source.
+     *
+     * @param name    The name of the attribute
+     * @param value   The value the attribute must have
+     * @param source  The id string of the source of the event
+     * @param from    The earliest time to return events from
+     * @param till    The latest moment to return events from
+     * @param max     The maximum number of events to return
+     * @return all events found, if any. Returns an empty list if no elements are found,
+     */
+    List<Event> findEventsByAttribute(String name,
+                                      String value,
+                                      String source,
+                                      @Nullable DateTime from,
+                                      @Nullable DateTime till,
+                                      int max);
+
+    /**
+     * Count the events of a source per time bucket.
+     *
+     * Both bounds are required, their order does not matter. Every bucket overlapping
+     * the range is counted completely.
+     *
+     * @param source       The id string of the source of the event
+     * @param from         A moment in the first bucket to count
+     * @param till         A moment in the last bucket to count
+     * @param granularity  The size of the buckets
+     * @return the number of events by the start of their bucket in milliseconds, buckets
+     *         without events are left out
+     */
+    SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity);
+
+    /**
+     * Count the events of a source with the given value for an attribute per time bucket.
+     *
+     * See {@link #countEvents}.
+     */
+    SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                 String value,
+                                                 String source,
+                                                 DateTime from,
+                                                 DateTime till,
+                                                 Granularity granularity);
+
+    /**
+     * Iterate over the events for the specified source.
+     *
+     * The bounds, order and max are interpreted as in {@link #findEvents}. The events are
+     * read lazily, a page at a time, while iterating, so large ranges can be processed
+     * without holding them in memory.
+     *
+     * Every call to iterator() executes the query again.
+     *
+     * @param source  The id string of the source of the event
+     * @param from    The earliest time to return events from
+     * @param till    The latest moment to return events from
+     * @param max     The maximum number of events to return
+     * @return the events found, if any.
+     */
+    Iterable<Event> iterateEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max);
+
+    /**
+     * Iterate over the events for the specified source, reading only the given attributes.
+     *
+     * See {@link #iterateEvents(String, DateTime, DateTime, int)} and
+     * {@link #findEvents(String, DateTime, DateTime, int, Set)}.
+     */
+    Iterable<Event> iterateEvents(String source,
+                                  @Nullable DateTime from,
+                                  @Nullable DateTime till,
+                                  int max,
+                                  @Nullable Set<String> fields);
+
+    /**
+     * Iterate over the events of a source with the given value for an attribute.
+     *
+     * See {@link #iterateEvents} and {@link #findEventsByAttribute}.
+     */
+    Iterable<Event> iterateEventsByAttribute(String name,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime from,
+                                             @Nullable DateTime till,
+                                             int max);
+
+    /**
+     * Iterate over the events for a given lotname.
+     *
+     * See {@link #iterateEvents} and {@link #findEventsForLotnameAndSource}.
+     */
+    Iterable<Event> iterateEventsForLotnameAndSource(final String lotname,
+                                                     final String source,
+                                                     @Nullable DateTime from,
+                                                     @Nullable DateTime till,
+                                                     int max);
+
+    /**
+     * Iterate over the events for a given processId.
+     *
+     * See {@link #iterateEvents} and {@link #findEventsForProcessIdAndSource}.
+     */
+    Iterable<Event> iterateEventsForProcessIdAndSource(final String processId,
+                                                       final String source,
+                                                       @Nullable DateTime start,
+                                                       @Nullable DateTime end,
+                                                       int max);
+
 }
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
+import me.prettyprint.cassandra.serializers.BytesArraySerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import me.prettyprint.cassandra.serializers.UUIDSerializer;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
+import me.prettyprint.hector.api.ddl.ComparatorType;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.SliceQuery;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+
+/**
+ * EventDao storing the events of a source in wide rows, one row per time bucket.
+ *
+ * The row key is the source and the start of the bucket in milliseconds, the column
+ * names are time UUIDs of the event timestamp and the column values hold the packed
+ * attributes. A range query is a contiguous slice of the rows of the buckets overlapping
+ * the range, in time order.
+ *
+ * An index row per source keeps the start and size of every bucket holding events, so
+ * open ended queries and sparse sources do not probe empty buckets.
+ *
+ * The bucket size can be set per source. It should be chosen so a bucket holds at most a
+ * few hundred thousand events. Changing the size only affects new events, but the largest
+ * size used for existing data has to stay configured for range queries to find them. The
+ * buckets written before and after the change may overlap, queries merge the events of
+ * overlapping buckets. A new bucket which starts at the same moment as an old one shares
+ * its row and index column, the index then holds the size written last, so the events of
+ * the old bucket past the end of the new one are no longer found, e.g. the events after
+ * the first hour of a day when the size went from a day to an hour. Do not change the size
+ * of a source whose existing events are still queried.
+ */
+public class EventDaoBucketedImpl extends AbstractCassandraEventDao {
+
+    public static final long DEFAULT_BUCKET_SIZE = 24L * 60 * 60 * 1000;
+    public static final String INDEX_SUFFIX = "Index";
+    /** the statistics of the scans of the bucket rows */
+    public static final String BUCKET_SCAN = "bucket";
+
+    private static final StringSerializer STRING_SERIALIZER = StringSerializer.get();
+    private static final UUIDSerializer UUID_SERIALIZER = UUIDSerializer.get();
+    private static final BytesArraySerializer BYTES_SERIALIZER = BytesArraySerializer.get();
+    private static final LongSerializer LONG_SERIALIZER = LongSerializer.get();
+
+    private static final int PAGE_SIZE = 1000;
+
+    private final String columnFamily;
+    private final String indexColumnFamily;
+
+    private long defaultBucketSize = DEFAULT_BUCKET_SIZE;
+    private Map<String, Long> bucketSizes = new HashMap<String, Long>();
+    private long maxBucketSize = DEFAULT_BUCKET_SIZE;
+
+    /**
+     * last bucket per source whose index column was written successfully, to avoid rewriting
+     * the index column for every event
+     */
+    private final ConcurrentMap<String, Long> lastBuckets = new ConcurrentHashMap<String, Long>();
+
+    public EventDaoBucketedImpl(Cluster cluster, String keyspaceName, String columnFamily) {
+        this(cluster, keyspaceName, columnFamily, 3);
+    }
+
+    public EventDaoBucketedImpl(Cluster cluster, String keyspaceName, String columnFamily, int replicationFactor) {
+        super(cluster, keyspaceName, replicationFactor, schema(keyspaceName, columnFamily));
+        this.columnFamily = columnFamily;
+        this.indexColumnFamily = columnFamily + INDEX_SUFFIX;
+    }
+
+    private static List<ColumnFamilyDefinition> schema(String keyspace, String columnFamily) {
+        ColumnFamilyDefinition buckets = HFactory.createColumnFamilyDefinition(keyspace,
+                columnFamily,
+                ComparatorType.TIMEUUIDTYPE);
+        buckets.setKeyValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
+        buckets.setDefaultValidationClass("org.apache.cassandra.db.marshal.BytesType");
+
+        ColumnFamilyDefinition index = HFactory.createColumnFamilyDefinition(keyspace,
+                columnFamily + INDEX_SUFFIX,
+                ComparatorType.LONGTYPE);
+        index.setKeyValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
+        index.setDefaultValidationClass("org.apache.cassandra.db.marshal.LongType");
+
+        return Arrays.asList(buckets, index);
+    }
+
+    public String getColumnFamily() {
+        return columnFamily;
+    }
+
+    /**
+     * Set the bucket size in milliseconds for sources without a specific size.
+     */
+    public void setDefaultBucketSize(long defaultBucketSize) {
+        this.defaultBucketSize = defaultBucketSize;
+        updateMaxBucketSize();
+    }
+
+    /**
+     * Set the bucket sizes in milliseconds per source, as a comma separated list of
+     * source=millis pairs, e.g. "audit_log=3600000,ewafermap=86400000".
+     */
+    public void setBucketSizes(String bucketSizes) {
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        for (String pair : bucketSizes.split(",")) {
+            if (pair.trim().length() == 0) {
+                continue;
+            }
+            int separator = pair.lastIndexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Bucket sizes must be given as source=millis, not : " + pair);
+            }
+            sizes.put(pair.substring(0, separator).trim(), Long.parseLong(pair.substring(separator + 1).trim()));
+        }
+        this.bucketSizes = sizes;
+        updateMaxBucketSize();
+    }
+
+    private void updateMaxBucketSize() {
+        long max = defaultBucketSize;
+        for (long size : bucketSizes.values()) {
+            max = Math.max(max, size);
+        }
+        maxBucketSize = max;
+    }
+
+    long bucketSize(String source) {
+        Long size = bucketSizes.get(source);
+        return size != null ? size : defaultBucketSize;
+    }
+
+    static long bucketStart(long millis, long bucketSize) {
+        // floor, also for moments before the epoch
+        return millis - (((millis % bucketSize) + bucketSize) % bucketSize);
+    }
+
+    static String rowKey(String source, long bucket) {
+        return source + "/" + bucket;
+    }
+
+    @Override
+    protected void addInsertions(Mutator<String> mutator, Event event) {
+        String source = event.getSource();
+        long millis = event.getTimestamp().getMillis();
+        long size = bucketSize(source);
+        long bucket = bucketStart(millis, size);
+
+        mutator.addInsertion(rowKey(source, bucket), columnFamily,
+                createColumn(TimeUUIDs.newTimeUUID(millis), AttributeCodec.encode(event.getAttributes()),
+                        UUID_SERIALIZER, BYTES_SERIALIZER));
+
+        // the index column is written again until a batch holding it succeeded
+        Long last = lastBuckets.get(source);
+        if (last == null || last != bucket) {
+            mutator.addInsertion(source, indexColumnFamily,
+                    createColumn(bucket, size, LONG_SERIALIZER, LONG_SERIALIZER));
+        }
+    }
+
+    @Override
+    protected void inserted(List<Event> events) {
+        for (Event event : events) {
+            String source = event.getSource();
+            lastBuckets.put(source, bucketStart(event.getTimestamp().getMillis(), bucketSize(source)));
+        }
+    }
+
+    public List<Event> findEvents(String source, @Nullable DateTime start, @Nullable DateTime end, int max) {
+        return Lists.newArrayList(iterateEvents(source, start, end, max));
+    }
+
+    public List<Event> findEventsForLotnameAndSource(String lotname,
+                                                     String source,
+                                                     @Nullable DateTime start,
+                                                     @Nullable DateTime end,
+                                                     int max) {
+        return Lists.newArrayList(iterateEventsForLotnameAndSource(lotname, source, start, end, max));
+    }
+
+    public List<Event> findEventsForProcessIdAndSource(String processId,
+                                                       String source,
+                                                       @Nullable DateTime start,
+                                                       @Nullable DateTime end,
+                                                       int max) {
+        return Lists.newArrayList(iterateEventsForProcessIdAndSource(processId, source, start, end, max));
+    }
+
+    public List<Event> findEvents(String source,
+                                  @Nullable DateTime start,
+                                  @Nullable DateTime end,
+                                  int max,
+                                  @Nullable Set<String> fields) {
+        return Lists.newArrayList(iterateEvents(source, start, end, max, fields));
+    }
+
+    /**
+     * The continuation holds the time UUID of the last event of the page. The next page
+     * starts slicing the bucket of that event right after its column.
+     */
+    public EventPage findEventPage(String source,
+                                   @Nullable DateTime start,
+                                   @Nullable DateTime end,
+                                   int max,
+                                   @Nullable Set<String> fields,
+                                   @Nullable String continuation) {
+        boolean reversed = start != null && end != null && start.isAfter(end);
+        long lo = reversed ? end.getMillis() : (start == null ? Long.MIN_VALUE : start.getMillis());
+        long hi = reversed ? start.getMillis() : (end == null ? Long.MAX_VALUE : end.getMillis());
+
+        UUID after = null;
+        if (continuation != null) {
+            Continuation position = Continuation.decode(continuation);
+            after = UUID.fromString(position.key);
+            if (reversed) {
+                hi = Math.min(hi, position.millis);
+            } else {
+                lo = Math.max(lo, position.millis);
+            }
+        }
+
+        if (max <= 0 || lo > hi) {
+            return new EventPage(Collections.<Event>emptyList(), null);
+        }
+        checkReady();
+
+        BucketIterator events = new BucketIterator(source, lo, hi, reversed, Math.min(max, PAGE_SIZE - 1) + 1, after);
+        OperationStats stats = scanStats(BUCKET_SCAN);
+        Iterator<Event> read = started(scanning(events, stats), stats);
+        List<Event> page = new ArrayList<Event>();
+        UUID last = null;
+        while (page.size() < max && read.hasNext()) {
+            page.add(read.next());
+            last = events.current;
+        }
+
+        String next = events.hasNext() ? new Continuation(TimeUUIDs.getMillis(last), last.toString()).encode() : null;
+        return new EventPage(Lists.transform(page, EventProjection.projecting(fields)), next);
+    }
+
+    public List<Event> findEventsByAttribute(String name,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime start,
+                                             @Nullable DateTime end,
+                                             int max) {
+        return Lists.newArrayList(iterateEventsByAttribute(name, value, source, start, end, max));
+    }
+
+    /**
+     * There are no indexes in this layout, the events of the source are scanned.
+     */
+    public Iterable<Event> iterateEventsByAttribute(String name,
+                                                    String value,
+                                                    String source,
+                                                    @Nullable DateTime start,
+                                                    @Nullable DateTime end,
+                                                    int max) {
+        return scan(source, start, end, max, attributeEquals(name, value));
+    }
+
+    /**
+     * There are no counters in this layout, the events of the buckets are read and counted.
+     */
+    public SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity) {
+        return EventCounts.count(iterateEvents(source,
+                EventCounts.first(from, till, granularity), EventCounts.last(from, till, granularity),
+                Integer.MAX_VALUE), granularity);
+    }
+
+    public SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                        String value,
+                                                        String source,
+                                                        DateTime from,
+                                                        DateTime till,
+                                                        Granularity granularity) {
+        return EventCounts.count(iterateEventsByAttribute(name, value, source,
+                EventCounts.first(from, till, granularity), EventCounts.last(from, till, granularity),
+                Integer.MAX_VALUE), granularity);
+    }
+
+    public Iterable<Event> iterateEvents(String source, @Nullable DateTime start, @Nullable DateTime end, int max) {
+        return scan(source, start, end, max, Predicates.<Event>alwaysTrue());
+    }
+
+    /**
+     * The attributes of an event are packed in a single column, so all of them are read
+     * and the other attributes are dropped afterwards.
+     */
+    public Iterable<Event> iterateEvents(String source,
+                                         @Nullable DateTime start,
+                                         @Nullable DateTime end,
+                                         int max,
+                                         @Nullable Set<String> fields) {
+        return Iterables.transform(iterateEvents(source, start, end, max), EventProjection.projecting(fields));
+    }
+
+    public Iterable<Event> iterateEventsForLotnameAndSource(String lotname,
+                                                            String source,
+                                                            @Nullable DateTime start,
+                                                            @Nullable DateTime end,
+                                                            int max) {
+        return scan(source, start, end, max, attributeEquals(EventDaoCassandraImpl.LOTNAME, lotname));
+    }
+
+    public Iterable<Event> iterateEventsForProcessIdAndSource(String processId,
+                                                              String source,
+                                                              @Nullable DateTime start,
+                                                              @Nullable DateTime end,
+                                                              int max) {
+        return scan(source, start, end, max, attributeEquals(EventDaoCassandraImpl.PROCESSID, processId));
+    }
+
+    private static Predicate<Event> attributeEquals(final String name, final String value) {
+        return new Predicate<Event>() {
+            @Override
+            public boolean apply(@Nullable Event event) {
+                return value.equals(event.getAttributes().get(name));
+            }
+        };
+    }
+
+    /**
+     * Slice the buckets of the source overlapping the range in time order, stopping after
+     * max events matching the filter.
+     */
+    private Iterable<Event> scan(final String source, @Nullable DateTime start, @Nullable DateTime end,
+                                 final int max, final Predicate<Event> filter) {
+        final boolean reversed = start != null && end != null && start.isAfter(end);
+        final long lo = reversed ? end.getMillis() : (start == null ? Long.MIN_VALUE : start.getMillis());
+        final long hi = reversed ? start.getMillis() : (end == null ? Long.MAX_VALUE : end.getMillis());
+
+        if (max <= 0 || lo > hi) {
+            return Collections.emptyList();
+        }
+
+        // without a filter every column read is returned, so do not read more than needed
+        final int pageSize = filter == Predicates.<Event>alwaysTrue() ? Math.min(max, PAGE_SIZE) : PAGE_SIZE;
+
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                checkReady();
+                OperationStats stats = scanStats(BUCKET_SCAN);
+                Iterator<Event> events = scanning(new BucketIterator(source, lo, hi, reversed, pageSize, null), stats);
+                return started(Iterators.limit(Iterators.filter(events, filter), max), stats);
+            }
+        };
+    }
+
+    /**
+     * @return the start and size of the buckets of the source which overlap the range
+     */
+    private SortedMap<Long, Long> findBuckets(String source, long lo, long hi) {
+        SortedMap<Long, Long> buckets = new TreeMap<Long, Long>();
+
+        SliceQuery<String, Long, Long> query =
+                createSliceQuery(keyspace, STRING_SERIALIZER, LONG_SERIALIZER, LONG_SERIALIZER);
+        query.setColumnFamily(indexColumnFamily);
+        query.setKey(source);
+
+        Long first = lo == Long.MIN_VALUE ? null : lo - maxBucketSize;
+        Long last = hi == Long.MAX_VALUE ? null : hi;
+        while (true) {
+            query.setRange(first, last, false, PAGE_SIZE);
+            List<HColumn<Long, Long>> columns = query.execute().get().getColumns();
+            for (HColumn<Long, Long> column : columns) {
+                if (column.getName() + column.getValue() > lo) {
+                    buckets.put(column.getName(), column.getValue());
+                }
+            }
+            if (columns.size() < PAGE_SIZE) {
+                break;
+            }
+            first = columns.get(columns.size() - 1).getName() + 1;
+        }
+        return buckets;
+    }
+
+    private static Event toEvent(String source, HColumn<UUID, byte[]> column) {
+        DateTime ts = new DateTime(TimeUUIDs.getMillis(column.getName()));
+        return AttributeCodec.decode(column.getValue(), Event.builder(ts, source)).build();
+    }
+
+    /**
+     * Group the buckets which overlap, which happens when the bucket size of a source was
+     * changed.
+     *
+     * @param buckets the start and size of the buckets
+     * @return the starts of the buckets in each group, the groups in time order
+     */
+    static List<List<Long>> overlapping(SortedMap<Long, Long> buckets) {
+        List<List<Long>> groups = new ArrayList<List<Long>>();
+        List<Long> group = null;
+        long groupEnd = Long.MIN_VALUE;
+        for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+            if (group == null || bucket.getKey() >= groupEnd) {
+                group = new ArrayList<Long>();
+                groups.add(group);
+            }
+            group.add(bucket.getKey());
+            groupEnd = Math.max(groupEnd, bucket.getKey() + bucket.getValue());
+        }
+        return groups;
+    }
+
+    /**
+     * Reads the events of the buckets overlapping a range a page at a time.
+     *
+     * Overlapping buckets are sliced together and their columns merged, so the events stay
+     * in time order.
+     */
+    private class BucketIterator extends AbstractIterator<Event> {
+
+        private final String source;
+        private final long lo;
+        private final long hi;
+        private final boolean reversed;
+        private final int pageSize;
+        private final UUID after;
+
+        private SortedMap<Long, Long> buckets;
+        private Iterator<List<Long>> groups;
+        private Iterator<HColumn<UUID, byte[]>> columns = Iterators.emptyIterator();
+
+        /** the column name of the event returned last */
+        UUID current;
+
+        /**
+         * @param after  the column to continue after, in the buckets holding its moment
+         */
+        BucketIterator(String source, long lo, long hi, boolean reversed, int pageSize, @Nullable UUID after) {
+            this.source = source;
+            this.lo = lo;
+            this.hi = hi;
+            this.reversed = reversed;
+            this.pageSize = pageSize;
+            this.after = after;
+        }
+
+        @Override
+        protected Event computeNext() {
+            while (!columns.hasNext()) {
+                if (!nextGroup()) {
+                    return endOfData();
+                }
+            }
+            HColumn<UUID, byte[]> column = columns.next();
+            current = column.getName();
+            return toEvent(source, column);
+        }
+
+        private boolean nextGroup() {
+            if (groups == null) {
+                buckets = findBuckets(source, lo, hi);
+                List<List<Long>> found = overlapping(buckets);
+                groups = (reversed ? Lists.reverse(found) : found).iterator();
+            }
+            if (!groups.hasNext()) {
+                return false;
+            }
+
+            List<Long> group = groups.next();
+            long groupEnd = Long.MIN_VALUE;
+            for (long bucket : group) {
+                groupEnd = Math.max(groupEnd, bucket + buckets.get(bucket));
+            }
+            long groupLo = Math.max(lo, group.get(0));
+            long groupHi = Math.min(hi, groupEnd - 1);
+
+            if (group.size() == 1) {
+                columns = new RowIterator(group.get(0), groupLo, groupHi);
+            } else {
+                List<PeekingIterator<HColumn<UUID, byte[]>>> rows = new ArrayList<PeekingIterator<HColumn<UUID, byte[]>>>();
+                for (long bucket : group) {
+                    rows.add(Iterators.peekingIterator(new RowIterator(bucket, groupLo, groupHi)));
+                }
+                columns = new MergingIterator(rows);
+            }
+            return true;
+        }
+
+        /**
+         * Slices the columns of a bucket row between two moments a page at a time.
+         */
+        private class RowIterator extends AbstractIterator<HColumn<UUID, byte[]>> {
+
+            private final SliceQuery<String, UUID, byte[]> query;
+            private final UUID first;
+            private final UUID last;
+            private UUID lastRead;
+            private boolean exhausted;
+            private Iterator<HColumn<UUID, byte[]>> page = Iterators.emptyIterator();
+
+            RowIterator(long bucket, long rowLo, long rowHi) {
+                query = createSliceQuery(keyspace, STRING_SERIALIZER, UUID_SERIALIZER, BYTES_SERIALIZER);
+                query.setColumnFamily(columnFamily);
+                query.setKey(rowKey(source, bucket));
+                first = reversed ? TimeUUIDs.endOf(rowHi) : TimeUUIDs.startOf(rowLo);
+                last = reversed ? TimeUUIDs.startOf(rowLo) : TimeUUIDs.endOf(rowHi);
+                long afterMillis = after == null ? 0 : TimeUUIDs.getMillis(after);
+                lastRead = after != null && afterMillis >= rowLo && afterMillis <= rowHi ? after : null;
+            }
+
+            @Override
+            protected HColumn<UUID, byte[]> computeNext() {
+                while (!page.hasNext()) {
+                    if (exhausted) {
+                        return endOfData();
+                    }
+                    fetchPage();
+                }
+                return page.next();
+            }
+
+            private void fetchPage() {
+                // after the first page, start at the last column read and skip it
+                boolean continuing = lastRead != null;
+                int count = continuing ? pageSize + 1 : pageSize;
+
+                query.setRange(continuing ? lastRead : first, last, reversed, count);
+                List<HColumn<UUID, byte[]>> columns = query.execute().get().getColumns();
+
+                exhausted = columns.size() < count;
+                if (continuing && !columns.isEmpty() && columns.get(0).getName().equals(lastRead)) {
+                    columns = columns.subList(1, columns.size());
+                }
+                if (!columns.isEmpty()) {
+                    lastRead = columns.get(columns.size() - 1).getName();
+                }
+                page = columns.iterator();
+            }
+        }
+
+        /**
+         * Merges the columns of overlapping bucket rows in the order of the slices.
+         */
+        private class MergingIterator extends AbstractIterator<HColumn<UUID, byte[]>> {
+
+            private final List<PeekingIterator<HColumn<UUID, byte[]>>> rows;
+
+            MergingIterator(List<PeekingIterator<HColumn<UUID, byte[]>>> rows) {
+                this.rows = rows;
+            }
+
+            @Override
+            protected HColumn<UUID, byte[]> computeNext() {
+                PeekingIterator<HColumn<UUID, byte[]>> next = null;
+                for (PeekingIterator<HColumn<UUID, byte[]>> row : rows) {
+                    if (row.hasNext() && (next == null || before(row.peek().getName(), next.peek().getName()))) {
+                        next = row;
+                    }
+                }
+                return next == null ? endOfData() : next.next();
+            }
+
+            private boolean before(UUID a, UUID b) {
+                int order = TimeUUIDs.compare(a, b);
+                return reversed ? order > 0 : order < 0;
+            }
+        }
+    }
+}
@@ -17,22 +17,29 @@
 package com.melexis.esb.eventstore.impl;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
+import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.model.IndexedSlicesQuery;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.service.ThriftColumnDef;
-import me.prettyprint.cassandra.service.ThriftKsDef;
-import me.prettyprint.cassandra.service.template.ColumnFamilyTemplate;
-import me.prettyprint.cassandra.service.template.ColumnFamilyUpdater;
-import me.prettyprint.cassandra.service.template.ThriftColumnFamilyTemplate;
 import me.prettyprint.hector.api.Cluster;
-import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.ddl.*;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.SliceCounterQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
 import org.apache.cassandra.thrift.ColumnDef;
 import org.apache.cassandra.thrift.IndexType;
 import org.apache.log4j.Logger;
@@ -40,20 +47,52 @@ import org.joda.time.DateTime;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
 
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createIndexedSlicesQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createStringColumn;
 
-public class EventDaoCassandraImpl implements EventDao {
+public class EventDaoCassandraImpl extends AbstractCassandraEventDao {
+
+    private final static Logger log = Logger.getLogger(EventDaoCassandraImpl.class);
 
     public static final StringSerializer SERIALIZER = StringSerializer.get();
     public static final String LOTNAME = "LOTNAME";
     public static final String SOURCE = "SOURCE";
     public static final String PROCESSID = "PROCESSID";
     public static final String TIMESTAMP = "TIMESTAMP";
+
+    /** number of rows fetched per round-trip when paging through query results */
+    public static final int PAGE_SIZE = 1000;
+    /** the maximum number of attributes read per event */
+    public static final int MAX_COLUMNS = 1000;
+    /** the attributes with lookup rows by default, see {@link #addLookupInsertion} */
+    public static final List<String> DEFAULT_INDEXED_ATTRIBUTES = Collections.unmodifiableList(Arrays.asList(LOTNAME, PROCESSID));
+    public static final String LOOKUP_SUFFIX = "Lookup";
+    /** the key of the lookup row listing the attributes whose lookup rows are complete */
+    private static final String BUILT_KEY = "_built";
+    /**
+     * the format of the lookup row keys, a marker in the {@link #BUILT_KEY} row only counts
+     * when it holds the current format
+     */
+    private static final String LOOKUP_FORMAT = "2";
+    /** sorts after the event keys in the lookup column names */
+    private static final String LOOKUP_END = "~";
+    public static final String COUNTS_SUFFIX = "Counts";
+    /** the statistics of the scans of the secondary index on the source and on other attributes */
+    public static final String SOURCE_INDEX_SCAN = "sourceIndex";
+    public static final String ATTRIBUTE_INDEX_SCAN = "attributeIndex";
+    /** the statistics of the scans of the lookup rows */
+    public static final String LOOKUP_SCAN = "lookup";
+    /** the number of buckets in a row of the counts column family */
+    private static final int BUCKETS_PER_COUNT_ROW = 1024;
     public static final Function<Row<String,String,String>,Event> ROW_TO_EVENT_FN = new Function<Row<String, String, String>, Event>() {
         @Override
         public Event apply(@Nullable Row<String, String, String> row) {
-            Map<String, String> attributes = new HashMap<String, String>();
             final List<HColumn<String, String>> columns = row.getColumnSlice().getColumns();
             String source = "";
             DateTime ts = null;
@@ -61,73 +100,58 @@ public class EventDaoCassandraImpl implements EventDao {
                 if (column.getName().equals(SOURCE)) {
                     source = column.getValue();
                 } else if (column.getName().equals(TIMESTAMP)) {
-                    ts = new DateTime(column.getValue());
-                } else {
-                    String key = column.getName();
-                    String value = column.getValue();
-                    attributes.put(key, value);
+                    ts = TimestampCodec.decode(column.getValue());
                 }
             }
 
-            final Event event = Event.createEvent(ts, source, attributes);
-            return event;
+            final Event.Builder event = Event.builder(ts, source);
+            for (HColumn<String, String> column : columns) {
+                String key = column.getName();
+                if (!key.equals(SOURCE) && !key.equals(TIMESTAMP)) {
+                    event.put(key, column.getValue());
+                }
+            }
+            return event.build();
         }
     };
 
-    private final static Logger log = Logger.getLogger(EventDaoCassandraImpl.class);
-
-    private final Keyspace keyspace;
     private final String columnFamily;
-    private final int replicationFactor;
 
-    public Keyspace getKeyspace() {
-        return keyspace;
-    }
+    private final String lookupColumnFamily;
+    private volatile List<String> indexedAttributes = DEFAULT_INDEXED_ATTRIBUTES;
+    private final Set<String> builtAttributes = new CopyOnWriteArraySet<String>();
+    private boolean lookupQueries = false;
+    private boolean rebuildOnStart = true;
+    private Thread rebuildThread;
+
+    private final String countsColumnFamily;
+    private volatile List<String> countedAttributes = Collections.emptyList();
+    private boolean counting = true;
 
     public String getColumnFamily() {
         return columnFamily;
     }
 
+    public String getLookupColumnFamily() {
+        return lookupColumnFamily;
+    }
+
+    public String getCountsColumnFamily() {
+        return countsColumnFamily;
+    }
+
     public EventDaoCassandraImpl(Cluster cluster, String keyspaceName, String columnFamily) {
         this(cluster, keyspaceName, columnFamily, 3);
     }
 
     public EventDaoCassandraImpl(Cluster cluster, String keyspaceName, String columnFamily, int replicationFactor) {
-        this.replicationFactor = replicationFactor;
+        super(cluster, keyspaceName, replicationFactor, schema(keyspaceName, columnFamily));
         this.columnFamily = columnFamily;
-
-        this.keyspace = connectWithExponentialBackoff(cluster, keyspaceName, columnFamily);
-    }
-
-    private Keyspace connectWithExponentialBackoff(Cluster cluster, String keyspaceName, String columnFamily) {
-        long time = 1;
-        long millis = 0;
-
-        while (time < 15) { // retry 15 times ( e^15 = 3269 sec
-            try {
-                Thread.sleep(millis);
-
-                KeyspaceDefinition keyspaceDef = cluster.describeKeyspace(keyspaceName);
-
-                // If keyspace does not exist, the CFs don't exist either. => create them.
-                // TODO: This is a blunt instrument. Needs refactoring when adding a new DAO.
-                if (keyspaceDef == null) {
-                    createSchema(cluster, keyspaceName, columnFamily);
-                }
-                return HFactory.createKeyspace(keyspaceName, cluster);
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted while retrying connection to cassandra.", e);
-            } catch (Exception e) {
-                time++;
-                millis = (long) Math.exp((double) time);
-                log.warn(String.format("Exception while trying to connect to cassandra.  Retrying in %d ms.", millis), e);
-            }
-        }
-
-        throw new RuntimeException("Giving up after 15 retries");
+        this.lookupColumnFamily = columnFamily + LOOKUP_SUFFIX;
+        this.countsColumnFamily = columnFamily + COUNTS_SUFFIX;
     }
 
-    private void createSchema(Cluster cluster, String keyspace, String columnFamily) {
+    private static List<ColumnFamilyDefinition> schema(String keyspace, String columnFamily) {
 
         List<ColumnDef> columns = new ArrayList<ColumnDef>();
         columns.add(newIndexedColumnDef(LOTNAME, "UTF8Type"));
@@ -144,54 +168,359 @@ public class EventDaoCassandraImpl implements EventDao {
         cfDef.setKeyValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
         cfDef.setDefaultValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
 
-        KeyspaceDefinition newKeyspace = HFactory.createKeyspaceDefinition(keyspace,
-                ThriftKsDef.DEF_STRATEGY_CLASS,
-                replicationFactor,
-                Arrays.asList(cfDef));
+        ColumnFamilyDefinition lookupDef = HFactory.createColumnFamilyDefinition(keyspace,
+                columnFamily + LOOKUP_SUFFIX,
+                ComparatorType.UTF8TYPE);
+        lookupDef.setColumnType(ColumnType.STANDARD);
+        lookupDef.setKeyValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
+        lookupDef.setDefaultValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
+
+        ColumnFamilyDefinition countsDef = HFactory.createColumnFamilyDefinition(keyspace,
+                columnFamily + COUNTS_SUFFIX,
+                ComparatorType.LONGTYPE);
+        countsDef.setColumnType(ColumnType.STANDARD);
+        countsDef.setKeyValidationClass("org.apache.cassandra.db.marshal.UTF8Type");
+        countsDef.setDefaultValidationClass("org.apache.cassandra.db.marshal.CounterColumnType");
+
+        return Arrays.asList(cfDef, lookupDef, countsDef);
+    }
+
+    /**
+     * Read which lookup rows are complete and fill the lookup rows of the other indexed
+     * attributes, in the background once the keyspace is ready.
+     */
+    public synchronized void start() {
+        rebuildThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<String> missing = Collections.emptyList();
+                try {
+                    awaitReady(Long.MAX_VALUE);
+                    builtAttributes.addAll(loadBuiltAttributes());
+
+                    missing = new ArrayList<String>(indexedAttributes);
+                    missing.removeAll(builtAttributes);
+                    if (missing.isEmpty() || !rebuildOnStart) {
+                        return;
+                    }
+
+                    log.info(String.format("Building the lookup rows of %s in the background.", missing));
+                    new LookupIndexRebuild(EventDaoCassandraImpl.this, missing).run();
+                } catch (InterruptedException e) {
+                    log.info(String.format("Stopped building the lookup rows of %s.", missing));
+                } catch (RuntimeException e) {
+                    log.error(String.format("Failed to build the lookup rows of %s.", missing), e);
+                }
+            }
+        }, "eventstore-lookup-rebuild");
+        rebuildThread.setDaemon(true);
+        rebuildThread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        disconnect();
+        if (rebuildThread != null) {
+            rebuildThread.interrupt();
+            rebuildThread.join();
+            rebuildThread = null;
+        }
+    }
+
+    /**
+     * Read the attributes whose lookup rows are complete, and delete the markers of the
+     * attributes which are no longer indexed. Their lookup rows miss the events stored
+     * from now on, so they have to be filled again when the attribute is indexed again.
+     */
+    private Set<String> loadBuiltAttributes() {
+        SliceQuery<String, String, String> query = createSliceQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
+        query.setColumnFamily(lookupColumnFamily);
+        query.setKey(BUILT_KEY);
+        query.setRange("", "", false, MAX_COLUMNS);
+
+        List<String> indexed = indexedAttributes;
+        Set<String> built = new HashSet<String>();
+        List<String> unindexed = new ArrayList<String>();
+        for (HColumn<String, String> column : query.execute().get().getColumns()) {
+            if (!indexed.contains(column.getName())) {
+                unindexed.add(column.getName());
+            } else if (LOOKUP_FORMAT.equals(column.getValue())) {
+                // older markers hold the time the rows were built, rows in the old format are built again
+                built.add(column.getName());
+            }
+        }
+
+        if (!unindexed.isEmpty()) {
+            log.info(String.format("Forgetting the lookup rows of %s, which are no longer indexed.", unindexed));
+            Mutator<String> mutator = HFactory.createMutator(keyspace, SERIALIZER);
+            for (String attribute : unindexed) {
+                mutator.addDeletion(BUILT_KEY, lookupColumnFamily, attribute, SERIALIZER);
+            }
+            mutator.execute();
+            builtAttributes.removeAll(unindexed);
+        }
+        return built;
+    }
+
+    /**
+     * Record that the lookup rows of the attributes hold all events, from now on the
+     * queries on these attributes use them.
+     */
+    void markBuilt(Collection<String> attributes) {
+        Mutator<String> mutator = HFactory.createMutator(keyspace, SERIALIZER);
+        for (String attribute : attributes) {
+            mutator.addInsertion(BUILT_KEY, lookupColumnFamily, createStringColumn(attribute, LOOKUP_FORMAT));
+        }
+        mutator.execute();
+        builtAttributes.addAll(attributes);
+    }
+
+    /**
+     * Set the comma separated attributes which get lookup rows.
+     */
+    public void setIndexedAttributes(String attributes) {
+        this.indexedAttributes = parseNames(attributes);
+    }
+
+    private static List<String> parseNames(String csv) {
+        List<String> names = new ArrayList<String>();
+        for (String name : csv.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim());
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    public List<String> getIndexedAttributes() {
+        return indexedAttributes;
+    }
+
+    /**
+     * @return the indexed attributes whose lookup rows are complete and used by queries
+     */
+    public Set<String> getBuiltAttributes() {
+        return Collections.unmodifiableSet(builtAttributes);
+    }
+
+    /**
+     * Use the lookup rows of all indexed attributes, also when they are not complete.
+     */
+    public void setLookupQueries(boolean lookupQueries) {
+        this.lookupQueries = lookupQueries;
+    }
+
+    /**
+     * Fill the lookup rows of newly indexed attributes when started, enabled by default.
+     */
+    public void setRebuildOnStart(boolean rebuildOnStart) {
+        this.rebuildOnStart = rebuildOnStart;
+    }
+
+    /**
+     * Set the comma separated attributes whose events are also counted per value.
+     */
+    public void setCountedAttributes(String attributes) {
+        this.countedAttributes = parseNames(attributes);
+    }
 
-        // Add the schema to the cluster.
-        cluster.addKeyspace(newKeyspace);
+    public List<String> getCountedAttributes() {
+        return countedAttributes;
     }
 
-    public void store(Event event) {
+    /**
+     * Update the event counts when storing events, enabled by default.
+     */
+    public void setCounting(boolean counting) {
+        this.counting = counting;
+    }
 
-        ColumnFamilyTemplate<String, String> template
-                = new ThriftColumnFamilyTemplate<String, String>(keyspace, columnFamily,
-                SERIALIZER, SERIALIZER);
+    private boolean useLookup(String attribute) {
+        return indexedAttributes.contains(attribute) && (lookupQueries || builtAttributes.contains(attribute));
+    }
 
-        ColumnFamilyUpdater<String, String> updater = template.createUpdater(UUID.randomUUID().toString());
-        updater.setString(SOURCE, event.getSource());
-        updater.setString(TIMESTAMP, event.getTimestamp().toString());
+    @Override
+    protected void addInsertions(Mutator<String> mutator, Event event) {
+        String key = UUID.randomUUID().toString();
+        mutator.addInsertion(key, columnFamily, createStringColumn(SOURCE, event.getSource()));
+        mutator.addInsertion(key, columnFamily, createStringColumn(TIMESTAMP, TimestampCodec.encode(event.getTimestamp())));
         for (Map.Entry<String, String> entry : event.getAttributes().entrySet()) {
-            updater.setString(entry.getKey(), entry.getValue());
+            mutator.addInsertion(key, columnFamily, createStringColumn(entry.getKey(), entry.getValue()));
+        }
+
+        String timestamp = TimestampCodec.encode(event.getTimestamp());
+        for (String attribute : indexedAttributes) {
+            String value = event.get(attribute);
+            if (value != null) {
+                addLookupInsertion(mutator, attribute, value, event.getSource(), timestamp, key);
+            }
         }
-        template.update(updater);
 
+        if (counting) {
+            addCountIncrements(mutator, event);
+        }
     }
 
-    public List<Event> findEvents(String source, DateTime start, DateTime end, int max) {
+    /**
+     * Add the event with the given row key to the lookup row of an attribute value and
+     * source.
+     *
+     * A lookup row holds a column per event, named after the timestamp and the key of
+     * the event row, so a slice of the lookup row gives the keys in time order.
+     */
+    void addLookupInsertion(Mutator<String> mutator,
+                            String attribute,
+                            String value,
+                            String source,
+                            String timestamp,
+                            String key) {
+        mutator.addInsertion(lookupKey(attribute, value, source), lookupColumnFamily,
+                createStringColumn(timestamp + "/" + key, ""));
+    }
 
-        String from = (start == null) ? "" : start.toString();
-        String till = (end == null) ? "" : end.toString();
+    /**
+     * The parts are separated by ':', which is escaped in the parts, so different parts
+     * never give the same key.
+     */
+    static String lookupKey(String attribute, String value, String source) {
+        return escape(attribute) + ":" + escape(source) + ":" + escape(value);
+    }
 
-        IndexedSlicesQuery<String, String, String> query =
-                createIndexedSlicesQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
-        query.setColumnFamily(columnFamily);
+    private static String escape(String part) {
+        if (part.indexOf(':') < 0 && part.indexOf('\\') < 0) {
+            return part;
+        }
+        return part.replace("\\", "\\\\").replace(":", "\\:");
+    }
 
-        query.addEqualsExpression(SOURCE, source);
+    /**
+     * Increment the count of the bucket of the event for every granularity, once for the
+     * source and once for each counted attribute of the event.
+     *
+     * Counter increments are not idempotent, a batch which is retried after a timeout
+     * may be counted twice.
+     */
+    private void addCountIncrements(Mutator<String> mutator, Event event) {
+        long millis = event.getTimestamp().getMillis();
+        for (Granularity granularity : Granularity.values()) {
+            long bucket = granularity.bucketStart(millis);
+            long row = countRowStart(granularity, bucket);
+            mutator.addCounter(countKey(granularity, row, event.getSource(), null, null), countsColumnFamily,
+                    createCounterColumn(bucket, 1L, LongSerializer.get()));
+            for (String attribute : countedAttributes) {
+                String value = event.get(attribute);
+                if (value != null) {
+                    mutator.addCounter(countKey(granularity, row, event.getSource(), attribute, value),
+                            countsColumnFamily, createCounterColumn(bucket, 1L, LongSerializer.get()));
+                }
+            }
+        }
+    }
 
-        addDateTimeConstraints(start, end, from, till, query);
+    /**
+     * A counts row holds the counters of {@link #BUCKETS_PER_COUNT_ROW} consecutive
+     * buckets, a column per bucket named after its start.
+     *
+     * The source, attribute and value are escaped like the parts of a lookup key, and '='
+     * as well, so a source or attribute holding the separators never shares a row with
+     * another one.
+     */
+    private static String countKey(Granularity granularity,
+                                   long row,
+                                   String source,
+                                   @Nullable String attribute,
+                                   @Nullable String value) {
+        String key = granularity.name() + ":" + row + ":" + escapeCountPart(source);
+        return attribute == null ? key : key + ":" + escapeCountPart(attribute) + "=" + escapeCountPart(value);
+    }
+
+    private static String escapeCountPart(String part) {
+        String escaped = escape(part);
+        return escaped.indexOf('=') < 0 ? escaped : escaped.replace("=", "\\=");
+    }
 
-        query.setRange("A", "z", false, 1000);
+    private static long countRowStart(Granularity granularity, long bucket) {
+        long span = granularity.getMillis() * BUCKETS_PER_COUNT_ROW;
+        long remainder = bucket % span;
+        return remainder < 0 ? bucket - remainder - span : bucket - remainder;
+    }
 
-        List<Row<String, String, String>> rows = query.execute().get().getList();
+    @Override
+    public SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity) {
+        return readCounts(null, null, source, from, till, granularity);
+    }
 
-        final List<Event> results = Lists.transform(rows, ROW_TO_EVENT_FN);
+    /**
+     * Reads the counters of the counted attributes, the events of other attributes are
+     * read and counted.
+     */
+    @Override
+    public SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                        String value,
+                                                        String source,
+                                                        DateTime from,
+                                                        DateTime till,
+                                                        Granularity granularity) {
+        if (countedAttributes.contains(name)) {
+            return readCounts(name, value, source, from, till, granularity);
+        }
+        return EventCounts.count(iterateEventsByAttribute(name, value, source,
+                EventCounts.first(from, till, granularity), EventCounts.last(from, till, granularity),
+                Integer.MAX_VALUE), granularity);
+    }
 
-        return orderedResultSet(from, till, results, max);
+    private SortedMap<Long, Long> readCounts(@Nullable String attribute,
+                                             @Nullable String value,
+                                             String source,
+                                             DateTime from,
+                                             DateTime till,
+                                             Granularity granularity) {
+        checkReady();
+        long first = EventCounts.first(from, till, granularity).getMillis();
+        long last = granularity.bucketStart(EventCounts.last(from, till, granularity).getMillis());
+
+        SliceCounterQuery<String, Long> query = createCounterSliceQuery(keyspace, SERIALIZER, LongSerializer.get());
+        query.setColumnFamily(countsColumnFamily);
+
+        SortedMap<Long, Long> counts = new TreeMap<Long, Long>();
+        long span = granularity.getMillis() * BUCKETS_PER_COUNT_ROW;
+        for (long row = countRowStart(granularity, first); row <= last; row += span) {
+            query.setKey(countKey(granularity, row, source, attribute, value));
+            query.setRange(Math.max(first, row), Math.min(last, row + span - 1), false, BUCKETS_PER_COUNT_ROW);
+            for (HCounterColumn<Long> column : query.execute().get().getColumns()) {
+                counts.put(column.getName(), column.getValue());
+            }
+        }
+        return counts;
     }
 
+    public List<Event> findEvents(String source, DateTime start, DateTime end, int max) {
+        return find(null, null, source, start, end, max, null);
+    }
 
+    @Override
+    public List<Event> findEvents(String source,
+                                  @Nullable DateTime start,
+                                  @Nullable DateTime end,
+                                  int max,
+                                  @Nullable Set<String> fields) {
+        return find(null, null, source, start, end, max, fields);
+    }
+
+    /**
+     * Not supported, use the bucketedEventDao to page. The secondary index returns the rows
+     * of a source in token order and only filters them on their timestamp, so every page
+     * would read the index rows of all events of the source again.
+     */
+    @Override
+    public EventPage findEventPage(String source,
+                                   @Nullable DateTime start,
+                                   @Nullable DateTime end,
+                                   int max,
+                                   @Nullable Set<String> fields,
+                                   @Nullable String continuation) {
+        throw new UnsupportedOperationException("Paging needs the bucketedEventDao, the indexedEventDao "
+                + "would scan all events of the source for every page");
+    }
 
     @Override
     public List<Event> findEventsForLotnameAndSource(final String lotname,
@@ -199,51 +528,326 @@ public class EventDaoCassandraImpl implements EventDao {
                                                      @Nullable DateTime start,
                                                      @Nullable DateTime end,
                                                      int max) {
-        String from = (start == null) ? "" : start.toString();
-        String till = (end == null) ? "" : end.toString();
+        return findEventsByAttribute(LOTNAME, lotname, source, start, end, max);
+    }
 
-        IndexedSlicesQuery<String, String, String> query =
-                createIndexedSlicesQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
+    @Override
+    public List<Event> findEventsForProcessIdAndSource(final String processId,
+                                                       final String source,
+                                                       @Nullable DateTime start,
+                                                       @Nullable DateTime end,
+                                                       int max) {
+        return findEventsByAttribute(PROCESSID, processId, source, start, end, max);
+    }
 
-        query.setColumnFamily(columnFamily);
+    @Override
+    public Iterable<Event> iterateEvents(String source, @Nullable DateTime start, @Nullable DateTime end, int max) {
+        return iterate(null, null, source, start, end, max, null);
+    }
 
-        query.addEqualsExpression(LOTNAME, lotname);
-        query.addEqualsExpression(SOURCE, source);
-        query.setRange("A", "z", false, 1000);
-        query.setStartKey("");
+    @Override
+    public Iterable<Event> iterateEvents(String source,
+                                         @Nullable DateTime start,
+                                         @Nullable DateTime end,
+                                         int max,
+                                         @Nullable Set<String> fields) {
+        return iterate(null, null, source, start, end, max, fields);
+    }
 
-        addDateTimeConstraints(start, end, from, till, query);
+    @Override
+    public Iterable<Event> iterateEventsForLotnameAndSource(String lotname,
+                                                            String source,
+                                                            @Nullable DateTime start,
+                                                            @Nullable DateTime end,
+                                                            int max) {
+        return iterateEventsByAttribute(LOTNAME, lotname, source, start, end, max);
+    }
 
-        final List<Row<String, String, String>> rows = query.execute().get().getList();
-        final List<Event> results = Lists.transform(rows, ROW_TO_EVENT_FN);
+    @Override
+    public Iterable<Event> iterateEventsForProcessIdAndSource(String processId,
+                                                              String source,
+                                                              @Nullable DateTime start,
+                                                              @Nullable DateTime end,
+                                                              int max) {
+        return iterateEventsByAttribute(PROCESSID, processId, source, start, end, max);
+    }
 
-        return orderedResultSet(from, till, results, max);
+    /**
+     * Uses the lookup rows of the attribute once they are complete, before that or when
+     * the attribute is not indexed the secondary index on the source is scanned.
+     */
+    @Override
+    public List<Event> findEventsByAttribute(String name,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime start,
+                                             @Nullable DateTime end,
+                                             int max) {
+        if (useLookup(name)) {
+            return Lists.newArrayList(selectFromLookup(name, value, source, start, end, max));
+        }
+        return find(name, value, source, start, end, max, null);
     }
 
     @Override
-    public List<Event> findEventsForProcessIdAndSource(final String processId,
-                                                       final String source,
-                                                       @Nullable DateTime start,
-                                                       @Nullable DateTime end,
-                                                       int max) {
-        String from = (start == null) ? "" : start.toString();
-        String till = (end == null) ? "" : end.toString();
+    public Iterable<Event> iterateEventsByAttribute(String name,
+                                                    String value,
+                                                    String source,
+                                                    @Nullable DateTime start,
+                                                    @Nullable DateTime end,
+                                                    int max) {
+        if (useLookup(name)) {
+            return lookup(name, value, source, start, end, max);
+        }
+        return iterate(name, value, source, start, end, max, null);
+    }
+
+    private List<Event> find(@Nullable String attribute,
+                             @Nullable String value,
+                             String source,
+                             @Nullable DateTime start,
+                             @Nullable DateTime end,
+                             int max,
+                             @Nullable Set<String> fields) {
+        return Lists.newArrayList(selectOrdered(attribute, value, source, start, end, max, fields));
+    }
+
+    private Iterable<Event> iterate(@Nullable final String attribute,
+                                    @Nullable final String value,
+                                    final String source,
+                                    @Nullable final DateTime start,
+                                    @Nullable final DateTime end,
+                                    final int max,
+                                    @Nullable final Set<String> fields) {
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return selectOrdered(attribute, value, source, start, end, max, fields);
+            }
+        };
+    }
+
+    private Iterable<Event> lookup(final String attribute,
+                                   final String value,
+                                   final String source,
+                                   @Nullable final DateTime start,
+                                   @Nullable final DateTime end,
+                                   final int max) {
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return selectFromLookup(attribute, value, source, start, end, max);
+            }
+        };
+    }
+
+    /**
+     * Select the first max events in time order from the lookup row of an attribute value.
+     *
+     * The lookup row is sliced in time order a page at a time and the rows of the keys
+     * read are fetched with a multiget. Rows which do not match the source and value are
+     * dropped, these can only be left by lookup rows of an older format.
+     */
+    private Iterator<Event> selectFromLookup(String attribute,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime start,
+                                             @Nullable DateTime end,
+                                             int max) {
+        if (max <= 0) {
+            return Iterators.emptyIterator();
+        }
+        checkReady();
+
+        boolean reversed = isReversed(start, end);
+        DateTime lo = reversed ? end : start;
+        DateTime hi = reversed ? start : end;
+        String first = lo == null ? "" : TimestampCodec.encode(lo);
+        String last = hi == null ? "" : TimestampCodec.encode(hi) + LOOKUP_END;
+
+        Iterator<String> keys = new LookupIterator(lookupKey(attribute, value, source),
+                reversed ? last : first,
+                reversed ? first : last,
+                reversed,
+                Math.min(max, PAGE_SIZE));
+        OperationStats stats = scanStats(LOOKUP_SCAN);
+        Iterator<Event> events = fetchAll(scanning(keys, stats), null);
+        return started(Iterators.limit(Iterators.filter(events, matching(attribute, value, source)), max), stats);
+    }
+
+    /**
+     * Select the first max events in time order.
+     *
+     * The secondary index returns rows in token order, so the order cannot be delegated
+     * to cassandra. Instead only the TIMESTAMP column of the matching rows is read and the
+     * keys of the first max rows are kept. The complete rows of those keys are then read
+     * lazily, a page at a time, with a multiget, reading only the given fields when
+     * these are not null.
+     *
+     * The index entries of all matching rows are still read, see
+     * {@link EventDao#findEvents(String, DateTime, DateTime, int)}.
+     */
+    private Iterator<Event> selectOrdered(@Nullable String attribute,
+                                          @Nullable String value,
+                                          String source,
+                                          @Nullable DateTime start,
+                                          @Nullable DateTime end,
+                                          int max,
+                                          @Nullable Set<String> fields) {
+        if (max <= 0) {
+            return Iterators.emptyIterator();
+        }
+        checkReady();
+
+        List<KeyedTimestamp> selected = selectKeys(attribute, value, source, start, end, isReversed(start, end), max);
+        return fetchAll(keys(selected).iterator(), fields == null ? null : columnNames(fields));
+    }
+
+    /**
+     * Scan the secondary index for the TIMESTAMP column of the matching rows.
+     *
+     * @param reversed  whether to select the last rows instead of the first
+     * @return the keys and timestamps of the first max matching rows in the order of the query
+     */
+    private List<KeyedTimestamp> selectKeys(@Nullable String attribute,
+                                            @Nullable String value,
+                                            String source,
+                                            @Nullable DateTime start,
+                                            @Nullable DateTime end,
+                                            boolean reversed,
+                                            final int max) {
+        final Ordering<KeyedTimestamp> order = reversed
+                ? KeyedTimestamp.ORDER.reverse()
+                : KeyedTimestamp.ORDER;
+
+        IndexedSlicesQuery<String, String, String> query = newQuery(attribute, value, source, start, end);
+        query.setColumnNames(TIMESTAMP);
+
+        OperationStats stats = scanStats(attribute == null ? SOURCE_INDEX_SCAN : ATTRIBUTE_INDEX_SCAN);
+        final Iterator<KeyedTimestamp> selecting = Iterators.transform(scanning(new IndexedRowIterator(query, PAGE_SIZE), stats),
+                new Function<Row<String, String, String>, KeyedTimestamp>() {
+                    @Override
+                    public KeyedTimestamp apply(@Nullable Row<String, String, String> row) {
+                        String ts = row.getColumnSlice().getColumnByName(TIMESTAMP).getValue();
+                        return new KeyedTimestamp(row.getKey(), TimestampCodec.decodeMillis(ts));
+                    }
+                });
+        return stats.record(new OperationStats.ListCall<KeyedTimestamp>() {
+            @Override
+            protected List<KeyedTimestamp> call() {
+                return selectFirst(selecting, order, max);
+            }
+        });
+    }
+
+    /**
+     * @return the first max matches in the given order
+     */
+    static List<KeyedTimestamp> selectFirst(Iterator<KeyedTimestamp> matches, Ordering<KeyedTimestamp> order, int max) {
+        // the head of the queue is the match which drops out first when there are more than max
+        PriorityQueue<KeyedTimestamp> selected =
+                new PriorityQueue<KeyedTimestamp>(Math.min(max, PAGE_SIZE) + 1, order.reverse());
+        while (matches.hasNext()) {
+            selected.add(matches.next());
+            if (selected.size() > max) {
+                selected.poll();
+            }
+        }
+        return order.sortedCopy(selected);
+    }
+
+    private static List<String> keys(List<KeyedTimestamp> selected) {
+        List<String> keys = new ArrayList<String>(selected.size());
+        for (KeyedTimestamp keyed : selected) {
+            keys.add(keyed.key);
+        }
+        return keys;
+    }
+
+    /**
+     * @param columns the columns to read, all columns when null
+     * @return the events of the rows with the given keys, read lazily a page at a time
+     */
+    private Iterator<Event> fetchAll(Iterator<String> keys, @Nullable final String[] columns) {
+        return Iterators.concat(Iterators.transform(Iterators.partition(keys, PAGE_SIZE),
+                new Function<List<String>, Iterator<Event>>() {
+                    @Override
+                    public Iterator<Event> apply(@Nullable List<String> page) {
+                        return fetchRows(page, columns).iterator();
+                    }
+                }));
+    }
+
+    /**
+     * @return the names of the columns holding the source, timestamp and given attributes
+     */
+    private static String[] columnNames(Set<String> fields) {
+        Set<String> columns = new LinkedHashSet<String>(fields.size() + 2);
+        columns.add(SOURCE);
+        columns.add(TIMESTAMP);
+        columns.addAll(fields);
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * @param columns the columns to read, all columns when null
+     * @return the events stored in the rows with the given keys, in the order of the keys
+     */
+    private List<Event> fetchRows(List<String> keys, @Nullable String[] columns) {
+        MultigetSliceQuery<String, String, String> query =
+                createMultigetSliceQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
+        query.setColumnFamily(columnFamily);
+        query.setKeys(keys.toArray(new String[keys.size()]));
+        if (columns == null) {
+            query.setRange("", "", false, MAX_COLUMNS);
+        } else {
+            query.setColumnNames(columns);
+        }
+        Rows<String, String, String> rows = query.execute().get();
+
+        List<Event> events = new ArrayList<Event>(keys.size());
+        for (String key : keys) {
+            Row<String, String, String> row = rows.getByKey(key);
+            // skip rows deleted since their timestamp was read
+            if (row != null && !row.getColumnSlice().getColumns().isEmpty()) {
+                events.add(ROW_TO_EVENT_FN.apply(row));
+            }
+        }
+        return events;
+    }
+
+    private static Predicate<Event> matching(final String attribute, final String value, final String source) {
+        return new Predicate<Event>() {
+            @Override
+            public boolean apply(@Nullable Event event) {
+                return source.equals(event.getSource()) && value.equals(event.get(attribute));
+            }
+        };
+    }
+
+    private static boolean isReversed(@Nullable DateTime start, @Nullable DateTime end) {
+        return start != null && end != null && start.isAfter(end);
+    }
+
+    private IndexedSlicesQuery<String, String, String> newQuery(@Nullable String attribute,
+                                                                @Nullable String value,
+                                                                String source,
+                                                                @Nullable DateTime start,
+                                                                @Nullable DateTime end) {
+        String from = (start == null) ? "" : TimestampCodec.encode(start);
+        String till = (end == null) ? "" : TimestampCodec.encode(end);
 
         IndexedSlicesQuery<String, String, String> query =
                 createIndexedSlicesQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
         query.setColumnFamily(columnFamily);
 
-        query.addEqualsExpression(PROCESSID, processId);
+        if (attribute != null) {
+            query.addEqualsExpression(attribute, value);
+        }
         query.addEqualsExpression(SOURCE, source);
-        query.setRange("A", "z", false, 1000);
-        query.setStartKey("");
 
         addDateTimeConstraints(start, end, from, till, query);
-
-        final List<Row<String, String, String>> rows = query.execute().get().getList();
-        final List<Event> results = Lists.transform(rows, ROW_TO_EVENT_FN);
-
-        return orderedResultSet(from, till, results, max);
+        return query;
     }
 
     private final static void addDateTimeConstraints(DateTime start,
@@ -251,7 +855,7 @@ public class EventDaoCassandraImpl implements EventDao {
                                                      String from,
                                                      String till,
                                                      IndexedSlicesQuery<String, String, String> query) {
-        if ((till.compareTo(from) > 0) || till.equals("")) {
+        if (!isReversed(start, end)) {
             query.addGteExpression(TIMESTAMP, from);
             if (end != null) {
                 query.addLteExpression(TIMESTAMP, till);
@@ -273,25 +877,83 @@ public class EventDaoCassandraImpl implements EventDao {
         return cd;
     }
 
-    private final static List<Event> orderedResultSet(String from, String till, List<Event> results, int max) {
-        final int toIndex = max > results.size() ? results.size() : max;
-        List<Event> events;
-        if ((till.compareTo(from) > 0) || till.equals("")) {
-            events = Ordering.natural().onResultOf(new Function<Event, Comparable>() {
-                @Override
-                public Comparable apply(@Nullable Event event) {
-                    return event.getTimestamp();
+    /**
+     * Iterates over the event keys in a range of a lookup row, a page of columns at a time.
+     */
+    private class LookupIterator extends AbstractIterator<String> {
+
+        private final SliceQuery<String, String, String> query;
+        private final String first;
+        private final String last;
+        private final boolean reversed;
+        private final int pageSize;
+
+        private Iterator<HColumn<String, String>> page = Iterators.emptyIterator();
+        private String lastRead;
+        private boolean exhausted;
+
+        LookupIterator(String rowKey, String first, String last, boolean reversed, int pageSize) {
+            this.query = createSliceQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
+            this.query.setColumnFamily(lookupColumnFamily);
+            this.query.setKey(rowKey);
+            this.first = first;
+            this.last = last;
+            this.reversed = reversed;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        protected String computeNext() {
+            while (!page.hasNext()) {
+                if (exhausted) {
+                    return endOfData();
                 }
-            }).sortedCopy(results);
-        } else {
-            events =  Ordering.natural().onResultOf(new Function<Event, Comparable>() {
-                @Override
-                public Comparable apply(@Nullable Event event) {
-                    return event.getTimestamp();
+                fetchPage();
+            }
+            String name = page.next().getName();
+            return name.substring(name.indexOf('/') + 1);
+        }
+
+        private void fetchPage() {
+            // after the first page, start at the last column read and skip it
+            boolean continuing = lastRead != null;
+            int count = continuing ? pageSize + 1 : pageSize;
+
+            query.setRange(continuing ? lastRead : first, last, reversed, count);
+            List<HColumn<String, String>> columns = query.execute().get().getColumns();
+
+            exhausted = columns.size() < count;
+            if (continuing && !columns.isEmpty()) {
+                columns = columns.subList(1, columns.size());
+            }
+            if (!columns.isEmpty()) {
+                lastRead = columns.get(columns.size() - 1).getName();
+            }
+            page = columns.iterator();
+        }
+    }
+
+    /**
+     * The row key and timestamp of a matching row.
+     */
+    static final class KeyedTimestamp {
+
+        static final Ordering<KeyedTimestamp> ORDER = new Ordering<KeyedTimestamp>() {
+            @Override
+            public int compare(KeyedTimestamp left, KeyedTimestamp right) {
+                if (left.millis != right.millis) {
+                    return left.millis < right.millis ? -1 : 1;
                 }
-            }).reverse().sortedCopy(results);
+                return left.key.compareTo(right.key);
+            }
+        };
+
+        final String key;
+        final long millis;
+
+        KeyedTimestamp(String key, long millis) {
+            this.key = key;
+            this.millis = millis;
         }
-        return events.subList(0, toIndex);
     }
 }
-
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventDao keeping the events in memory, for tests and as a cache on edge nodes.
+ *
+ * The events of a source are kept in a concurrent skip list in time order, events with
+ * the same timestamp in the order they were stored. The indexed attributes, LOTNAME and
+ * PROCESSID by default, have a skip list per source and value holding the same events,
+ * so these queries do not scan the source. Stores and queries do not lock, queries see
+ * the events stored while they iterate if they fall in the remaining range.
+ *
+ * Nothing is evicted, use {@link #removeBefore} to bound the memory used.
+ */
+public class EventDaoMemoryImpl implements EventDao {
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Key, Event>> bySource =
+            new ConcurrentHashMap<String, ConcurrentNavigableMap<Key, Event>>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Key, Event>> byAttribute =
+            new ConcurrentHashMap<String, ConcurrentNavigableMap<Key, Event>>();
+
+    private volatile List<String> indexedAttributes = EventDaoCassandraImpl.DEFAULT_INDEXED_ATTRIBUTES;
+
+    /** orders the events with the same timestamp */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Set the comma separated attributes which are indexed. Only events stored after
+     * this are indexed, so set it before storing events.
+     */
+    public void setIndexedAttributes(String attributes) {
+        List<String> names = new ArrayList<String>();
+        for (String name : attributes.split(",")) {
+            if (name.trim().length() > 0) {
+                names.add(name.trim());
+            }
+        }
+        this.indexedAttributes = Collections.unmodifiableList(names);
+    }
+
+    public List<String> getIndexedAttributes() {
+        return indexedAttributes;
+    }
+
+    public boolean isReady() {
+        return true;
+    }
+
+    public void store(Event event) {
+        Key key = new Key(event.getTimestamp().getMillis(), sequence.getAndIncrement());
+        events(bySource, event.getSource()).put(key, event);
+        for (String attribute : indexedAttributes) {
+            String value = event.get(attribute);
+            if (value != null) {
+                events(byAttribute, attributeKey(attribute, value, event.getSource())).put(key, event);
+            }
+        }
+    }
+
+    public void storeAll(Collection<Event> events) {
+        for (Event event : events) {
+            store(event);
+        }
+    }
+
+    /**
+     * Remove all events before the given moment.
+     */
+    public void removeBefore(DateTime moment) {
+        Key bound = new Key(moment.getMillis(), Long.MIN_VALUE);
+        for (ConcurrentNavigableMap<Key, Event> events : bySource.values()) {
+            events.headMap(bound).clear();
+        }
+        for (ConcurrentNavigableMap<Key, Event> events : byAttribute.values()) {
+            events.headMap(bound).clear();
+        }
+    }
+
+    public void clear() {
+        bySource.clear();
+        byAttribute.clear();
+    }
+
+    private static ConcurrentNavigableMap<Key, Event> events(ConcurrentMap<String, ConcurrentNavigableMap<Key, Event>> map,
+                                                            String key) {
+        ConcurrentNavigableMap<Key, Event> events = map.get(key);
+        if (events == null) {
+            ConcurrentNavigableMap<Key, Event> created = new ConcurrentSkipListMap<Key, Event>();
+            events = map.putIfAbsent(key, created);
+            if (events == null) {
+                events = created;
+            }
+        }
+        return events;
+    }
+
+    private static String attributeKey(String attribute, String value, String source) {
+        return EventDaoCassandraImpl.lookupKey(attribute, value, source);
+    }
+
+    public List<Event> findEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        return Lists.newArrayList(iterateEvents(source, from, till, max));
+    }
+
+    public List<Event> findEvents(String source,
+                                  @Nullable DateTime from,
+                                  @Nullable DateTime till,
+                                  int max,
+                                  @Nullable Set<String> fields) {
+        return Lists.newArrayList(iterateEvents(source, from, till, max, fields));
+    }
+
+    /**
+     * The continuation holds the timestamp and sequence of the last event of the page.
+     */
+    public EventPage findEventPage(String source,
+                                   @Nullable DateTime from,
+                                   @Nullable DateTime till,
+                                   int max,
+                                   @Nullable Set<String> fields,
+                                   @Nullable String continuation) {
+        ConcurrentNavigableMap<Key, Event> events = bySource.get(source);
+        if (events == null || max <= 0) {
+            return new EventPage(Collections.<Event>emptyList(), null);
+        }
+
+        Key after = null;
+        if (continuation != null) {
+            Continuation position = Continuation.decode(continuation);
+            after = new Key(position.millis, Long.parseLong(position.key));
+        }
+
+        List<Event> page = new ArrayList<Event>();
+        Key last = null;
+        Iterator<Map.Entry<Key, Event>> entries = range(events, from, till, after).entrySet().iterator();
+        while (page.size() < max && entries.hasNext()) {
+            Map.Entry<Key, Event> entry = entries.next();
+            page.add(entry.getValue());
+            last = entry.getKey();
+        }
+
+        String next = entries.hasNext() ? new Continuation(last.millis, Long.toString(last.sequence)).encode() : null;
+        return new EventPage(Lists.transform(page, EventProjection.projecting(fields)), next);
+    }
+
+    public List<Event> findEventsForLotnameAndSource(String lotname,
+                                                     String source,
+                                                     @Nullable DateTime from,
+                                                     @Nullable DateTime till,
+                                                     int max) {
+        return findEventsByAttribute(EventDaoCassandraImpl.LOTNAME, lotname, source, from, till, max);
+    }
+
+    public List<Event> findEventsForProcessIdAndSource(String processId,
+                                                       String source,
+                                                       @Nullable DateTime start,
+                                                       @Nullable DateTime end,
+                                                       int max) {
+        return findEventsByAttribute(EventDaoCassandraImpl.PROCESSID, processId, source, start, end, max);
+    }
+
+    public List<Event> findEventsByAttribute(String name,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime from,
+                                             @Nullable DateTime till,
+                                             int max) {
+        return Lists.newArrayList(iterateEventsByAttribute(name, value, source, from, till, max));
+    }
+
+    public SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity) {
+        return EventCounts.count(iterateEvents(source,
+                EventCounts.first(from, till, granularity), EventCounts.last(from, till, granularity),
+                Integer.MAX_VALUE), granularity);
+    }
+
+    public SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                        String value,
+                                                        String source,
+                                                        DateTime from,
+                                                        DateTime till,
+                                                        Granularity granularity) {
+        return EventCounts.count(iterateEventsByAttribute(name, value, source,
+                EventCounts.first(from, till, granularity), EventCounts.last(from, till, granularity),
+                Integer.MAX_VALUE), granularity);
+    }
+
+    public Iterable<Event> iterateEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        return range(bySource.get(source), from, till, max);
+    }
+
+    public Iterable<Event> iterateEvents(String source,
+                                         @Nullable DateTime from,
+                                         @Nullable DateTime till,
+                                         int max,
+                                         @Nullable Set<String> fields) {
+        return Iterables.transform(iterateEvents(source, from, till, max), EventProjection.projecting(fields));
+    }
+
+    /**
+     * Indexed attributes are read from their own skip list, the events of the source are
+     * scanned for other attributes.
+     */
+    public Iterable<Event> iterateEventsByAttribute(final String name,
+                                                    final String value,
+                                                    String source,
+                                                    @Nullable DateTime from,
+                                                    @Nullable DateTime till,
+                                                    int max) {
+        if (indexedAttributes.contains(name)) {
+            return range(byAttribute.get(attributeKey(name, value, source)), from, till, max);
+        }
+        Iterable<Event> matching = Iterables.filter(range(bySource.get(source), from, till, Integer.MAX_VALUE),
+                new Predicate<Event>() {
+                    @Override
+                    public boolean apply(@Nullable Event event) {
+                        return value.equals(event.get(name));
+                    }
+                });
+        return Iterables.limit(matching, Math.max(max, 0));
+    }
+
+    public Iterable<Event> iterateEventsForLotnameAndSource(String lotname,
+                                                            String source,
+                                                            @Nullable DateTime from,
+                                                            @Nullable DateTime till,
+                                                            int max) {
+        return iterateEventsByAttribute(EventDaoCassandraImpl.LOTNAME, lotname, source, from, till, max);
+    }
+
+    public Iterable<Event> iterateEventsForProcessIdAndSource(String processId,
+                                                              String source,
+                                                              @Nullable DateTime start,
+                                                              @Nullable DateTime end,
+                                                              int max) {
+        return iterateEventsByAttribute(EventDaoCassandraImpl.PROCESSID, processId, source, start, end, max);
+    }
+
+    /**
+     * The events between the inclusive bounds, in reverse order when from is after till.
+     */
+    private static Iterable<Event> range(@Nullable ConcurrentNavigableMap<Key, Event> events,
+                                         @Nullable DateTime from,
+                                         @Nullable DateTime till,
+                                         final int max) {
+        if (events == null || max <= 0) {
+            return Collections.emptyList();
+        }
+
+        final Collection<Event> values = range(events, from, till, null).values();
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return Iterators.limit(values.iterator(), max);
+            }
+        };
+    }
+
+    /**
+     * The events between the inclusive bounds and after the given key, in reverse order
+     * when from is after till.
+     */
+    private static NavigableMap<Key, Event> range(NavigableMap<Key, Event> events,
+                                                  @Nullable DateTime from,
+                                                  @Nullable DateTime till,
+                                                  @Nullable Key after) {
+        boolean reversed = from != null && till != null && from.isAfter(till);
+        DateTime lo = reversed ? till : from;
+        DateTime hi = reversed ? from : till;
+
+        Key loKey = lo == null ? null : new Key(lo.getMillis(), Long.MIN_VALUE);
+        Key hiKey = hi == null ? null : new Key(hi.getMillis(), Long.MAX_VALUE);
+        boolean loInclusive = true;
+        boolean hiInclusive = true;
+        if (after != null && reversed && after.compareTo(hiKey) <= 0) {
+            hiKey = after;
+            hiInclusive = false;
+        } else if (after != null && !reversed && (loKey == null || after.compareTo(loKey) >= 0)) {
+            loKey = after;
+            loInclusive = false;
+        }
+        if (loKey != null && hiKey != null && loKey.compareTo(hiKey) > 0) {
+            return new TreeMap<Key, Event>();
+        }
+
+        NavigableMap<Key, Event> range = events;
+        if (loKey != null) {
+            range = range.tailMap(loKey, loInclusive);
+        }
+        if (hiKey != null) {
+            range = range.headMap(hiKey, hiInclusive);
+        }
+        return reversed ? range.descendingMap() : range;
+    }
+
+    /**
+     * The position of an event in a skip list: its timestamp and the order it was stored in.
+     */
+    private static final class Key implements Comparable<Key> {
+        final long millis;
+        final long sequence;
+
+        Key(long millis, long sequence) {
+            this.millis = millis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (millis != other.millis) {
+                return millis < other.millis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return millis == key.millis && sequence == key.sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (millis ^ (millis >>> 32));
+            result = 31 * result + (int) (sequence ^ (sequence >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.melexis.esb.eventstore.Event;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restricts events to a set of attributes, for stores which cannot read single attributes.
+ */
+final class EventProjection {
+
+    private EventProjection() {
+    }
+
+    static Event project(Event event, @Nullable Set<String> fields) {
+        if (fields == null) {
+            return event;
+        }
+        Event.Builder projected = Event.builder(event.getTimestamp(), event.getSource());
+        for (Map.Entry<String, String> attribute : event.getAttributes().entrySet()) {
+            if (fields.contains(attribute.getKey())) {
+                projected.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return projected.build();
+    }
+
+    static Function<Event, Event> projecting(@Nullable final Set<String> fields) {
+        if (fields == null) {
+            return Functions.identity();
+        }
+        return new Function<Event, Event>() {
+            @Override
+            public Event apply(@Nullable Event event) {
+                return project(event, fields);
+            }
+        };
+    }
+}
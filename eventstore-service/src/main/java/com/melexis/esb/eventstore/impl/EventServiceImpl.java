@@ -17,28 +17,152 @@
 package com.melexis.esb.eventstore.impl;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.PeekingIterator;
 import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
 import com.melexis.esb.eventstore.EventService;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.esb.eventstore.Summary;
 import com.melexis.foundation.util.DateTimeHelper;
 import org.joda.time.DateTime;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class EventServiceImpl implements EventService {
 
     public static final int DEFAULT_LIMIT = 1000000;
+    public static final int DEFAULT_QUERY_THREADS = 8;
+    public static final String TYPE = "EventService";
+
+    /** order of events from different sources with the same timestamp */
+    private static final Ordering<Event> TIME_ORDER = new Ordering<Event>() {
+        @Override
+        public int compare(Event left, Event right) {
+            return left.compareTo(right);
+        }
+    };
 
     private EventDao eventDao;
     private DateTimeHelper dateTimeHelper;
+    private WriteBehindBuffer writeBehindBuffer;
+    private final ThreadPoolExecutor queryExecutor;
+
+    private OperationStats storeStats;
+    private OperationStats storeAllStats;
+    private OperationStats findStats;
+    private OperationStats findSourcesStats;
+    private OperationStats findPageStats;
+    private OperationStats findForLotNameStats;
+    private OperationStats findForProcessIdStats;
+    private OperationStats findByAttributeStats;
+    private OperationStats countStats;
+    private OperationStats countByAttributeStats;
+    private OperationStats summarizeStats;
 
     public EventServiceImpl(EventDao eventDao, DateTimeHelper dateTimeHelper) {
         this.eventDao = eventDao;
         this.dateTimeHelper = dateTimeHelper;
+        this.queryExecutor = new ThreadPoolExecutor(DEFAULT_QUERY_THREADS, DEFAULT_QUERY_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new QueryThreadFactory());
+        this.queryExecutor.allowCoreThreadTimeOut(true);
+        setMetrics(new EventStoreMetrics());
+    }
+
+    /**
+     * Publish the statistics of the calls to this service with the type EventService.
+     *
+     * With write-behind the store statistics are those of adding to the buffer. The iterate
+     * methods return before the events are read, they are only measured by MetricsEventDao.
+     */
+    public void setMetrics(EventStoreMetrics metrics) {
+        storeStats = metrics.stats(TYPE, "store");
+        storeAllStats = metrics.stats(TYPE, "storeAll");
+        findStats = metrics.stats(TYPE, "findEvents");
+        findSourcesStats = metrics.stats(TYPE, "findEventsForSources");
+        findPageStats = metrics.stats(TYPE, "findEventPage");
+        findForLotNameStats = metrics.stats(TYPE, "findEventsForLotName");
+        findForProcessIdStats = metrics.stats(TYPE, "findEventsForProcessId");
+        findByAttributeStats = metrics.stats(TYPE, "findEventsByAttribute");
+        countStats = metrics.stats(TYPE, "countEvents");
+        countByAttributeStats = metrics.stats(TYPE, "countEventsByAttribute");
+        summarizeStats = metrics.stats(TYPE, "summarize");
+    }
+
+    /**
+     * Set the maximum number of per source queries of a multi-source query which run concurrently.
+     */
+    public void setQueryThreads(int queryThreads) {
+        if (queryThreads > queryExecutor.getMaximumPoolSize()) {
+            queryExecutor.setMaximumPoolSize(queryThreads);
+            queryExecutor.setCorePoolSize(queryThreads);
+        } else {
+            queryExecutor.setCorePoolSize(queryThreads);
+            queryExecutor.setMaximumPoolSize(queryThreads);
+        }
+    }
+
+    public void shutdown() {
+        queryExecutor.shutdown();
+    }
+
+    /**
+     * Buffer stores in a write-behind queue instead of writing them synchronously.
+     */
+    public void setWriteBehindBuffer(WriteBehindBuffer writeBehindBuffer) {
+        this.writeBehindBuffer = writeBehindBuffer;
+    }
+
+    public boolean isReady() {
+        return eventDao.isReady();
+    }
+
+    public void store(final Event event) {
+        storeStats.record(new OperationStats.Call<Void>() {
+            @Override
+            protected Void call() {
+                if (writeBehindBuffer != null) {
+                    writeBehindBuffer.add(event);
+                } else {
+                    eventDao.store(event);
+                }
+                return null;
+            }
+
+            @Override
+            protected int rows(Void result) {
+                return 1;
+            }
+        });
+    }
+
+    public void storeAll(final Collection<Event> events) {
+        storeAllStats.record(new OperationStats.Call<Void>() {
+            @Override
+            protected Void call() {
+                if (writeBehindBuffer != null) {
+                    writeBehindBuffer.addAll(events);
+                } else {
+                    eventDao.storeAll(events);
+                }
+                return null;
+            }
+
+            @Override
+            protected int rows(Void result) {
+                return events.size();
+            }
+        });
     }
 
-    public void store(Event event) {
-        eventDao.store(event);
+    public void flush() {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.flush();
+        }
     }
 
     public void store(Date timestamp, String source, Map<String, String> attributes) {
@@ -62,7 +186,46 @@ public class EventServiceImpl implements EventService {
     }
 
     public List<Event> findEvents(String source, DateTime from, DateTime till, int limit) {
-        return eventDao.findEvents(source, from, till, limit);
+        return findEvents(source, from, till, limit, null);
+    }
+
+    public List<Event> findEvents(final String source,
+                                  final DateTime from,
+                                  final DateTime till,
+                                  final int limit,
+                                  final Set<String> fields) {
+        return findStats.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return query(source, from, till, limit, fields);
+            }
+        });
+    }
+
+    private List<Event> query(String source, DateTime from, DateTime till, int limit, Set<String> fields) {
+        if (fields == null) {
+            return eventDao.findEvents(source, from, till, limit);
+        }
+        return eventDao.findEvents(source, from, till, limit, fields);
+    }
+
+    public EventPage findEventPage(final String source,
+                                   final DateTime from,
+                                   final DateTime till,
+                                   final int limit,
+                                   final Set<String> fields,
+                                   final String continuation) {
+        return findPageStats.record(new OperationStats.Call<EventPage>() {
+            @Override
+            protected EventPage call() {
+                return eventDao.findEventPage(source, from, till, limit, fields, continuation);
+            }
+
+            @Override
+            protected int rows(EventPage page) {
+                return page.getEvents().size();
+            }
+        });
     }
 
     public List<Event> findEvents(String source, Date from, Date till, int limit) {
@@ -98,11 +261,96 @@ public class EventServiceImpl implements EventService {
     }
 
     public List<Event> findEvents(Collection<String> sources, DateTime from, DateTime till, int limit) {
-        SortedSet<Event> events = new TreeSet<Event>();
-        for(String source : sources) {
-            events.addAll(findEvents(source,from,till,limit));
+        return findEvents(sources, from, till, limit, null);
+    }
+
+    /**
+     * Query the sources concurrently and merge their results in time order.
+     *
+     * Every source returns at most limit events in order, so the merge can stop after
+     * limit events.
+     */
+    public List<Event> findEvents(final Collection<String> sources,
+                                  final DateTime from,
+                                  final DateTime till,
+                                  final int limit,
+                                  final Set<String> fields) {
+        return findSourcesStats.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return query(sources, from, till, limit, fields);
+            }
+        });
+    }
+
+    private List<Event> query(Collection<String> sources,
+                              final DateTime from,
+                              final DateTime till,
+                              final int limit,
+                              final Set<String> fields) {
+        List<Future<List<Event>>> futures = new ArrayList<Future<List<Event>>>(sources.size());
+        for (final String source : sources) {
+            futures.add(queryExecutor.submit(new Callable<List<Event>>() {
+                @Override
+                public List<Event> call() {
+                    return query(source, from, till, limit, fields);
+                }
+            }));
+        }
+
+        List<List<Event>> results = new ArrayList<List<Event>>(futures.size());
+        try {
+            for (Future<List<Event>> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while querying sources " + sources, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Failed to query sources " + sources, e.getCause());
+        } finally {
+            for (Future<List<Event>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        boolean reversed = from != null && till != null && from.isAfter(till);
+        return merge(results, reversed ? TIME_ORDER.reverse() : TIME_ORDER, limit);
+    }
+
+    /**
+     * K-way merge of sorted lists with a heap of their heads, keeping events which compare equal.
+     */
+    static List<Event> merge(List<? extends Iterable<Event>> sorted, final Comparator<Event> order, int limit) {
+        PriorityQueue<PeekingIterator<Event>> heads = new PriorityQueue<PeekingIterator<Event>>(
+                Math.max(1, sorted.size()),
+                new Comparator<PeekingIterator<Event>>() {
+                    @Override
+                    public int compare(PeekingIterator<Event> left, PeekingIterator<Event> right) {
+                        return order.compare(left.peek(), right.peek());
+                    }
+                });
+        for (Iterable<Event> events : sorted) {
+            PeekingIterator<Event> iterator = Iterators.peekingIterator(events.iterator());
+            if (iterator.hasNext()) {
+                heads.add(iterator);
+            }
+        }
+
+        ImmutableList.Builder<Event> merged = ImmutableList.builder();
+        int count = 0;
+        while (count < limit && !heads.isEmpty()) {
+            PeekingIterator<Event> head = heads.poll();
+            merged.add(head.next());
+            count++;
+            if (head.hasNext()) {
+                heads.add(head);
+            }
         }
-        return ImmutableList.copyOf(events).subList(0,Math.min(events.size(),limit));
+        return merged.build();
     }
 
     public List<Event> findEvents(Collection<String> sources, Date from, Date till, int limit) {
@@ -114,10 +362,109 @@ public class EventServiceImpl implements EventService {
     }
 
     public List<Event> findEventsForLotNameAndSource(final String lotname, final String source, final int limit) {
-        return eventDao.findEventsForLotnameAndSource(lotname, source, null, null, limit);
+        return findForLotNameStats.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return eventDao.findEventsForLotnameAndSource(lotname, source, null, null, limit);
+            }
+        });
+    }
+
+    public List<Event> findEventsForProcessIdAndSource(final String processId, final String source, final int limit) {
+        return findForProcessIdStats.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return eventDao.findEventsForProcessIdAndSource(processId, source, null, null, limit);
+            }
+        });
+    }
+
+    public List<Event> findEventsByAttribute(final String name,
+                                             final String value,
+                                             final String source,
+                                             final DateTime from,
+                                             final DateTime till,
+                                             final int limit) {
+        return findByAttributeStats.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return eventDao.findEventsByAttribute(name, value, source, from, till, limit);
+            }
+        });
+    }
+
+    public SortedMap<Long, Long> countEvents(final String source,
+                                             final DateTime from,
+                                             final DateTime till,
+                                             final Granularity granularity) {
+        return countStats.record(new OperationStats.SortedMapCall<Long, Long>() {
+            @Override
+            protected SortedMap<Long, Long> call() {
+                return eventDao.countEvents(source, from, till, granularity);
+            }
+        });
     }
 
-    public List<Event> findEventsForProcessIdAndSource(String processId, String source, int limit) {
-        return eventDao.findEventsForProcessIdAndSource(processId, source, null, null, limit);
+    public SortedMap<Long, Long> countEventsByAttribute(final String name,
+                                                        final String value,
+                                                        final String source,
+                                                        final DateTime from,
+                                                        final DateTime till,
+                                                        final Granularity granularity) {
+        return countByAttributeStats.record(new OperationStats.SortedMapCall<Long, Long>() {
+            @Override
+            protected SortedMap<Long, Long> call() {
+                return eventDao.countEventsByAttribute(name, value, source, from, till, granularity);
+            }
+        });
+    }
+
+    public SortedMap<Long, Summary> summarize(final String source,
+                                              final String attribute,
+                                              final DateTime from,
+                                              final DateTime till,
+                                              final Granularity granularity) {
+        return summarizeStats.record(new OperationStats.SortedMapCall<Long, Summary>() {
+            @Override
+            protected SortedMap<Long, Summary> call() {
+                Iterable<Event> events = eventDao.iterateEvents(source,
+                        EventCounts.first(from, till, granularity),
+                        EventCounts.last(from, till, granularity),
+                        Integer.MAX_VALUE,
+                        Collections.singleton(attribute));
+                return EventSummaries.summarize(events, attribute, granularity);
+            }
+        });
+    }
+
+    public Iterable<Event> iterateEvents(String source, DateTime from, DateTime till, int limit) {
+        return eventDao.iterateEvents(source, from, till, limit);
+    }
+
+    public Iterable<Event> iterateEvents(String source, DateTime from, DateTime till, int limit, Set<String> fields) {
+        if (fields == null) {
+            return iterateEvents(source, from, till, limit);
+        }
+        return eventDao.iterateEvents(source, from, till, limit, fields);
+    }
+
+    public Iterable<Event> iterateEventsForLotNameAndSource(String lotname, String source, int limit) {
+        return eventDao.iterateEventsForLotnameAndSource(lotname, source, null, null, limit);
+    }
+
+    public Iterable<Event> iterateEventsForProcessIdAndSource(String processId, String source, int limit) {
+        return eventDao.iterateEventsForProcessIdAndSource(processId, source, null, null, limit);
+    }
+
+    private static class QueryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "eventstore-query-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
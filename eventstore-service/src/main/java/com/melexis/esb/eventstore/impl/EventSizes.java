@@ -0,0 +1,44 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.Event;
+
+import java.util.Map;
+
+/**
+ * Cheap estimates of the serialized size of events, used to bound batches and caches.
+ */
+final class EventSizes {
+
+    /** row key, source and timestamp columns */
+    static final int ROW_OVERHEAD = 128;
+
+    /** thrift column struct, timestamp and ttl per column */
+    static final int COLUMN_OVERHEAD = 24;
+
+    private EventSizes() {
+    }
+
+    static int estimate(Event event) {
+        int size = ROW_OVERHEAD + event.getSource().length();
+        for (Map.Entry<String, String> entry : event.getAttributes().entrySet()) {
+            size += COLUMN_OVERHEAD + entry.getKey().length() + entry.getValue().length();
+        }
+        return size;
+    }
+}
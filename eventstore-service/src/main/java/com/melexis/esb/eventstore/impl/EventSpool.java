@@ -0,0 +1,594 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.base.Charsets;
+import com.melexis.esb.eventstore.Event;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of events in memory-mapped segment files, to hold events which cannot
+ * be written to the event store yet.
+ *
+ * Appended events are forced to disk by a single sync thread, an fsync covers all events
+ * appended while the previous one ran (group commit). {@link #awaitSync} blocks until an
+ * append is on disk. The events are read back in order with {@link #read} and removed with
+ * {@link #commit} once they are stored, a checkpoint file records how far the log was
+ * committed. Segments which are completely committed are deleted.
+ *
+ * A record is its length, a CRC32, the time it was appended and the encoded event. When
+ * the spool is opened the records after the checkpoint are verified, a torn record at
+ * the end of the last segment is discarded.
+ *
+ * Appending is thread-safe, reading and committing must be done by a single thread.
+ */
+public class EventSpool {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 10;
+
+    private final static Logger log = Logger.getLogger(EventSpool.class);
+
+    /** length, crc and append time */
+    private static final int HEADER = 16;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final File directory;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    /** the segment appended to and the position after the last record, guarded by this */
+    private long writeSeq;
+    private MappedByteBuffer writeBuffer;
+    private volatile long written;
+    private long pendingEvents;
+    private long oldestPending;
+
+    /** the position up to which the log is on disk, guarded by syncLock */
+    private final Object syncLock = new Object();
+    private long synced;
+    private volatile boolean open;
+    private Thread syncThread;
+
+    /** the reader, only used by the replaying thread */
+    private long checkpoint;
+    private long readSeq = -1;
+    private MappedByteBuffer readBuffer;
+
+    public EventSpool(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set the size of new segment files in bytes, an event must fit in a segment.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set the minimum time in milliseconds between two syncs of the log.
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Open the log, recovering the events which were not committed before it was closed.
+     */
+    public synchronized void open() throws IOException {
+        if (open) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the spool directory " + directory);
+        }
+
+        List<Long> segments = listSegments();
+        long position = readCheckpoint();
+        if (position < 0 || !segments.contains(seq(position))) {
+            position = position(segments.isEmpty() ? 0 : segments.get(0), 0);
+        }
+        for (Long seq : segments) {
+            if (seq < seq(position)) {
+                deleteSegment(seq);
+            }
+        }
+
+        long count = 0;
+        long oldest = 0;
+        long seq = seq(position);
+        int offset = offset(position);
+        MappedByteBuffer buffer = map(seq);
+        while (true) {
+            byte[] record = record(buffer, offset);
+            if (record == null) {
+                if (segments.contains(seq + 1)) {
+                    if (isCorrupt(buffer, offset)) {
+                        log.error(String.format("Skipping the corrupt end of spool segment %s from offset %d.",
+                                segmentFile(seq), offset));
+                    }
+                    buffer = map(++seq);
+                    offset = 0;
+                    continue;
+                }
+                break;
+            }
+            if (count == 0) {
+                oldest = ByteBuffer.wrap(record).getLong();
+            }
+            count++;
+            offset += HEADER + record.length - 8;
+        }
+
+        // discard a torn record so appends do not run into its remains
+        for (int i = offset; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                log.warn(String.format("Discarding the torn end of spool segment %s from offset %d.",
+                        segmentFile(seq), offset));
+                for (int j = offset; j < buffer.capacity(); j++) {
+                    buffer.put(j, (byte) 0);
+                }
+                buffer.force();
+                break;
+            }
+        }
+
+        writeSeq = seq;
+        writeBuffer = buffer;
+        written = position(seq, offset);
+        pendingEvents = count;
+        oldestPending = oldest;
+        synced = written;
+        checkpoint = position;
+        readSeq = -1;
+        readBuffer = null;
+        open = true;
+
+        if (count > 0) {
+            log.info(String.format("Recovered %d spooled events from %s.", count, directory));
+        }
+
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "eventstore-spool-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Sync the log and stop, appends fail after this.
+     */
+    public void close() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            thread = syncThread;
+            syncThread = null;
+        }
+        synchronized (syncLock) {
+            open = false;
+            syncLock.notifyAll();
+        }
+        thread.join();
+        sync();
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Append the events to the log.
+     *
+     * @return the position after the events, see {@link #awaitSync}
+     */
+    public long append(Collection<Event> events) throws IOException {
+        List<byte[]> payloads = new ArrayList<byte[]>(events.size());
+        for (Event event : events) {
+            payloads.add(encode(event));
+        }
+
+        long now = System.currentTimeMillis();
+        long position;
+        synchronized (this) {
+            if (!open) {
+                throw new IOException("The spool in " + directory + " is closed.");
+            }
+            for (byte[] payload : payloads) {
+                int size = HEADER + payload.length;
+                if (size > segmentSize) {
+                    throw new IOException(String.format("An event of %d bytes does not fit in a spool segment.", size));
+                }
+                if (offset(written) + size > writeBuffer.capacity()) {
+                    roll();
+                }
+                int offset = offset(written);
+
+                CRC32 crc = new CRC32();
+                byte[] appended = ByteBuffer.allocate(8).putLong(now).array();
+                crc.update(appended);
+                crc.update(payload);
+
+                ByteBuffer record = writeBuffer.duplicate();
+                record.position(offset + 4);
+                record.putInt((int) crc.getValue());
+                record.put(appended);
+                record.put(payload);
+                writeBuffer.putInt(offset, payload.length);
+
+                written = position(writeSeq, offset + size);
+                if (pendingEvents == 0) {
+                    oldestPending = now;
+                }
+                pendingEvents++;
+            }
+            position = written;
+        }
+
+        synchronized (syncLock) {
+            syncLock.notifyAll();
+        }
+        return position;
+    }
+
+    /**
+     * Block until the log is on disk up to the position.
+     */
+    public void awaitSync(long position) throws IOException {
+        synchronized (syncLock) {
+            while (synced < position) {
+                if (!open) {
+                    throw new IOException("The spool in " + directory + " was closed before it was synced.");
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the spool to sync.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new segment, the full segment is synced first.
+     */
+    private void roll() throws IOException {
+        writeBuffer.force();
+        writeSeq++;
+        writeBuffer = map(writeSeq);
+        written = position(writeSeq, 0);
+    }
+
+    private void syncLoop() {
+        long lastSync = 0;
+        while (true) {
+            synchronized (syncLock) {
+                while (open && written <= synced) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!open) {
+                    return;
+                }
+            }
+
+            long wait = lastSync + syncInterval - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            lastSync = System.currentTimeMillis();
+            sync();
+        }
+    }
+
+    private void sync() {
+        MappedByteBuffer buffer;
+        long position;
+        synchronized (this) {
+            buffer = writeBuffer;
+            position = written;
+        }
+        buffer.force();
+        synchronized (syncLock) {
+            synced = Math.max(synced, position);
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Read the oldest events which are not committed. Only synced events are read.
+     */
+    public Batch read(int max) throws IOException {
+        long limit;
+        synchronized (syncLock) {
+            limit = synced;
+        }
+
+        List<Event> events = new ArrayList<Event>();
+        long position = checkpoint;
+        while (events.size() < max) {
+            position = seek(position, limit);
+            if (position >= limit) {
+                break;
+            }
+            byte[] record = record(readBuffer, offset(position));
+            events.add(decode(record));
+            position = position(seq(position), offset(position) + HEADER + record.length - 8);
+        }
+        return new Batch(events, position);
+    }
+
+    /**
+     * Remove the events of the batch from the log.
+     */
+    public void commit(Batch batch) throws IOException {
+        if (batch.events.isEmpty()) {
+            return;
+        }
+        writeCheckpoint(batch.end);
+        long previous = seq(checkpoint);
+        checkpoint = batch.end;
+        for (long seq = previous; seq < seq(checkpoint); seq++) {
+            deleteSegment(seq);
+        }
+
+        long limit;
+        synchronized (syncLock) {
+            limit = synced;
+        }
+        long next = seek(checkpoint, limit);
+        long appended = next < limit ? ByteBuffer.wrap(record(readBuffer, offset(next))).getLong() : 0;
+        synchronized (this) {
+            pendingEvents -= batch.events.size();
+            // events appended after the sync are not visible to the reader yet
+            oldestPending = appended > 0 ? appended : System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the position of the first record at or after the position, or the limit
+     */
+    private long seek(long position, long limit) throws IOException {
+        while (position < limit) {
+            long seq = seq(position);
+            if (readSeq != seq) {
+                readBuffer = map(seq);
+                readSeq = seq;
+            }
+            if (record(readBuffer, offset(position)) != null) {
+                return position;
+            }
+            if (isCorrupt(readBuffer, offset(position))) {
+                log.error(String.format("Skipping the corrupt end of spool segment %s from offset %d.",
+                        segmentFile(seq), offset(position)));
+            }
+            position = position(seq + 1, 0);
+        }
+        return limit;
+    }
+
+    /**
+     * @return the number of events which are not committed
+     */
+    public synchronized long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return the time in milliseconds the oldest event which is not committed was
+     *         appended, 0 when there are none
+     */
+    public synchronized long getOldestPending() {
+        return pendingEvents > 0 ? oldestPending : 0;
+    }
+
+    public boolean isEmpty() {
+        return getPendingEvents() == 0;
+    }
+
+    /**
+     * @return the append time and event of the record, or null when there is no valid
+     *         record at the offset
+     */
+    private static byte[] record(ByteBuffer buffer, int offset) {
+        if (offset + HEADER > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || length > buffer.capacity() - offset - HEADER) {
+            return null;
+        }
+
+        byte[] record = new byte[length + 8];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset + 8);
+        slice.get(record);
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? record : null;
+    }
+
+    /**
+     * @return whether there is data at the offset which is not a valid record
+     */
+    private static boolean isCorrupt(ByteBuffer buffer, int offset) {
+        return offset + 4 <= buffer.capacity() && buffer.getInt(offset) != 0;
+    }
+
+    private static byte[] encode(Event event) {
+        byte[] source = event.getSource().getBytes(Charsets.UTF_8);
+        byte[] attributes = AttributeCodec.encode(event.getAttributes());
+        return ByteBuffer.allocate(12 + source.length + attributes.length)
+                .putLong(event.getTimestamp().getMillis())
+                .putInt(source.length)
+                .put(source)
+                .put(attributes)
+                .array();
+    }
+
+    private static Event decode(byte[] record) {
+        ByteBuffer in = ByteBuffer.wrap(record);
+        in.getLong();
+        DateTime timestamp = new DateTime(in.getLong());
+        byte[] source = new byte[in.getInt()];
+        in.get(source);
+        byte[] attributes = new byte[in.remaining()];
+        in.get(attributes);
+        return AttributeCodec.decode(attributes, Event.builder(timestamp, new String(source, Charsets.UTF_8))).build();
+    }
+
+    /**
+     * A position is the sequence number of a segment in the high and the offset in the
+     * segment in the low 32 bits.
+     */
+    private static long position(long seq, int offset) {
+        return (seq << 32) | offset;
+    }
+
+    private static long seq(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(directory, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unknown file in the spool directory: " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Map a segment, a missing segment is created with the configured size.
+     */
+    private MappedByteBuffer map(long seq) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "rw");
+        try {
+            if (file.length() == 0) {
+                file.setLength(segmentSize);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void deleteSegment(long seq) {
+        File file = segmentFile(seq);
+        if (file.exists() && !file.delete()) {
+            log.warn("Cannot delete the replayed spool segment " + file);
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists()) {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCheckpoint(long position) throws IOException {
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            new DataOutputStream(out).writeLong(position);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        File file = new File(directory, CHECKPOINT);
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            throw new IOException("Cannot write the spool checkpoint " + file);
+        }
+    }
+
+    /**
+     * Events read from the spool and the position after them.
+     */
+    public static final class Batch {
+        private final List<Event> events;
+        private final long end;
+
+        Batch(List<Event> events, long end) {
+            this.events = Collections.unmodifiableList(events);
+            this.end = end;
+        }
+
+        public List<Event> getEvents() {
+            return events;
+        }
+
+        public boolean isEmpty() {
+            return events.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The statistics of the operations of the event store, published as MBeans named
+ *
+ *   com.melexis.esb.eventstore:type=&lt;type&gt;,name=&lt;operation&gt;
+ *
+ * where type is EventService, EventDao or Scan. The names of Scan are the kinds of scan
+ * of the cassandra DAOs rather than the queried attributes, so there is a fixed number of
+ * MBeans. Statistics can be taken before start, they are registered when the metrics are
+ * started. Without an MBeanServer they are kept but not published, which is what the
+ * components use when none is configured.
+ */
+public class EventStoreMetrics {
+
+    private final static Logger log = Logger.getLogger(EventStoreMetrics.class);
+
+    public static final String DOMAIN = "com.melexis.esb.eventstore";
+
+    private final MBeanServer mbeanServer;
+    private final ConcurrentMap<ObjectName, OperationStats> stats = new ConcurrentHashMap<ObjectName, OperationStats>();
+    private volatile boolean started;
+
+    public EventStoreMetrics() {
+        this(null);
+    }
+
+    public EventStoreMetrics(MBeanServer mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * @return the statistics of the operation, created on first use
+     */
+    public OperationStats stats(String type, String operation) {
+        ObjectName name = objectName(type, operation);
+        OperationStats operationStats = stats.get(name);
+        if (operationStats == null) {
+            OperationStats created = new OperationStats(type + "." + operation);
+            operationStats = stats.putIfAbsent(name, created);
+            if (operationStats == null) {
+                operationStats = created;
+                if (started) {
+                    register(name, created);
+                }
+            }
+        }
+        return operationStats;
+    }
+
+    public List<OperationStats> getStats() {
+        return new ArrayList<OperationStats>(stats.values());
+    }
+
+    public synchronized void start() {
+        started = true;
+        for (ObjectName name : stats.keySet()) {
+            register(name, stats.get(name));
+        }
+    }
+
+    public synchronized void stop() {
+        started = false;
+        if (mbeanServer == null) {
+            return;
+        }
+        for (ObjectName name : stats.keySet()) {
+            try {
+                if (mbeanServer.isRegistered(name)) {
+                    mbeanServer.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                log.warn("Failed to unregister " + name, e);
+            }
+        }
+    }
+
+    private void register(ObjectName name, OperationStats operationStats) {
+        if (mbeanServer == null) {
+            return;
+        }
+        try {
+            if (!mbeanServer.isRegistered(name)) {
+                mbeanServer.registerMBean(operationStats, name);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to register " + name, e);
+        }
+    }
+
+    private static ObjectName objectName(String type, String operation) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(operation));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid operation name " + operation, e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.esb.eventstore.Summary;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Summarizes the numeric values of an attribute per time bucket in a single pass over
+ * the events.
+ */
+final class EventSummaries {
+
+    private EventSummaries() {
+    }
+
+    /**
+     * Events without the attribute or with a value which is not a finite number are skipped,
+     * NaN and the infinities would spoil the summary and cannot be written as JSON.
+     */
+    static SortedMap<Long, Summary> summarize(Iterable<Event> events, String attribute, Granularity granularity) {
+        SortedMap<Long, Summary> summaries = new TreeMap<Long, Summary>();
+        Summary current = null;
+        long currentBucket = 0;
+        for (Event event : events) {
+            String text = event.get(attribute);
+            if (text == null) {
+                continue;
+            }
+            double value;
+            try {
+                value = Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                continue;
+            }
+
+            long millis = event.getTimestamp().getMillis();
+            long bucket = granularity.bucketStart(millis);
+            // the events arrive in time order, so the bucket rarely changes
+            if (current == null || bucket != currentBucket) {
+                current = summaries.get(bucket);
+                if (current == null) {
+                    current = new Summary();
+                    summaries.put(bucket, current);
+                }
+                currentBucket = bucket;
+            }
+            current.add(millis, value);
+        }
+        return summaries;
+    }
+}
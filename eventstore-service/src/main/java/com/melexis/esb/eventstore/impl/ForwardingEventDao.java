@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * An EventDao which forwards all calls to another EventDao.
+ *
+ * Decorators extend this class and override the methods they change.
+ */
+public abstract class ForwardingEventDao implements EventDao {
+
+    protected final EventDao delegate;
+
+    protected ForwardingEventDao(EventDao delegate) {
+        this.delegate = delegate;
+    }
+
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    public void store(Event event) {
+        delegate.store(event);
+    }
+
+    public void storeAll(Collection<Event> events) {
+        delegate.storeAll(events);
+    }
+
+    public List<Event> findEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        return delegate.findEvents(source, from, till, max);
+    }
+
+    public List<Event> findEvents(String source,
+                                  @Nullable DateTime from,
+                                  @Nullable DateTime till,
+                                  int max,
+                                  @Nullable Set<String> fields) {
+        return delegate.findEvents(source, from, till, max, fields);
+    }
+
+    public EventPage findEventPage(String source,
+                                   @Nullable DateTime from,
+                                   @Nullable DateTime till,
+                                   int max,
+                                   @Nullable Set<String> fields,
+                                   @Nullable String continuation) {
+        return delegate.findEventPage(source, from, till, max, fields, continuation);
+    }
+
+    public List<Event> findEventsForLotnameAndSource(String lotname,
+                                                     String source,
+                                                     @Nullable DateTime from,
+                                                     @Nullable DateTime till,
+                                                     int max) {
+        return delegate.findEventsForLotnameAndSource(lotname, source, from, till, max);
+    }
+
+    public List<Event> findEventsForProcessIdAndSource(String processId,
+                                                       String source,
+                                                       @Nullable DateTime start,
+                                                       @Nullable DateTime end,
+                                                       int max) {
+        return delegate.findEventsForProcessIdAndSource(processId, source, start, end, max);
+    }
+
+    public Iterable<Event> iterateEvents(String source, @Nullable DateTime from, @Nullable DateTime till, int max) {
+        return delegate.iterateEvents(source, from, till, max);
+    }
+
+    public Iterable<Event> iterateEvents(String source,
+                                         @Nullable DateTime from,
+                                         @Nullable DateTime till,
+                                         int max,
+                                         @Nullable Set<String> fields) {
+        return delegate.iterateEvents(source, from, till, max, fields);
+    }
+
+    public List<Event> findEventsByAttribute(String name,
+                                             String value,
+                                             String source,
+                                             @Nullable DateTime from,
+                                             @Nullable DateTime till,
+                                             int max) {
+        return delegate.findEventsByAttribute(name, value, source, from, till, max);
+    }
+
+    public SortedMap<Long, Long> countEvents(String source, DateTime from, DateTime till, Granularity granularity) {
+        return delegate.countEvents(source, from, till, granularity);
+    }
+
+    public SortedMap<Long, Long> countEventsByAttribute(String name,
+                                                        String value,
+                                                        String source,
+                                                        DateTime from,
+                                                        DateTime till,
+                                                        Granularity granularity) {
+        return delegate.countEventsByAttribute(name, value, source, from, till, granularity);
+    }
+
+    public Iterable<Event> iterateEventsByAttribute(String name,
+                                                    String value,
+                                                    String source,
+                                                    @Nullable DateTime from,
+                                                    @Nullable DateTime till,
+                                                    int max) {
+        return delegate.iterateEventsByAttribute(name, value, source, from, till, max);
+    }
+
+    public Iterable<Event> iterateEventsForLotnameAndSource(String lotname,
+                                                            String source,
+                                                            @Nullable DateTime from,
+                                                            @Nullable DateTime till,
+                                                            int max) {
+        return delegate.iterateEventsForLotnameAndSource(lotname, source, from, till, max);
+    }
+
+    public Iterable<Event> iterateEventsForProcessIdAndSource(String processId,
+                                                              String source,
+                                                              @Nullable DateTime start,
+                                                              @Nullable DateTime end,
+                                                              int max) {
+        return delegate.iterateEventsForProcessIdAndSource(processId, source, start, end, max);
+    }
+}
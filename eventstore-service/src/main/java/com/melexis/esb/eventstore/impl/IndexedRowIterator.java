@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import me.prettyprint.cassandra.model.IndexedSlicesQuery;
+import me.prettyprint.hector.api.beans.Row;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over all rows matching an indexed slices query, fetching a page of rows at
+ * a time.
+ *
+ * Every page starts at the key of the last row of the previous page. That row is returned
+ * again by cassandra and skipped. Rows are returned in token order.
+ */
+final class IndexedRowIterator extends AbstractIterator<Row<String, String, String>> {
+
+    private final IndexedSlicesQuery<String, String, String> query;
+    private final int pageSize;
+
+    private Iterator<Row<String, String, String>> page = Iterators.emptyIterator();
+    private String lastKey;
+    private boolean exhausted;
+
+    IndexedRowIterator(IndexedSlicesQuery<String, String, String> query, int pageSize) {
+        this.query = query;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    protected Row<String, String, String> computeNext() {
+        while (true) {
+            while (!page.hasNext()) {
+                if (exhausted) {
+                    return endOfData();
+                }
+                fetchPage();
+            }
+
+            Row<String, String, String> row = page.next();
+            lastKey = row.getKey();
+            // skip deleted rows which are still visible as keys without columns
+            if (!row.getColumnSlice().getColumns().isEmpty()) {
+                return row;
+            }
+        }
+    }
+
+    private void fetchPage() {
+        boolean continuing = lastKey != null;
+        int rowCount = continuing ? pageSize + 1 : pageSize;
+
+        query.setStartKey(continuing ? lastKey : "");
+        query.setRowCount(rowCount);
+        List<Row<String, String, String>> rows = query.execute().get().getList();
+
+        exhausted = rows.size() < rowCount;
+        if (continuing && !rows.isEmpty() && rows.get(0).getKey().equals(lastKey)) {
+            rows = rows.subList(1, rows.size());
+        }
+        page = rows.iterator();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import me.prettyprint.cassandra.service.ThriftKsDef;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.ddl.ColumnFamilyDefinition;
+import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
+import me.prettyprint.hector.api.factory.HFactory;
+import org.apache.log4j.Logger;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to a keyspace in the background and creates the column families a DAO needs
+ * when they are missing.
+ *
+ * Failed attempts are retried with an exponential backoff up to a maximum interval, until
+ * the schema is verified or the connector is stopped.
+ */
+final class KeyspaceConnector {
+
+    static final long INITIAL_RETRY_INTERVAL = 100;
+    static final long MAX_RETRY_INTERVAL = 60000;
+
+    private final static Logger log = Logger.getLogger(KeyspaceConnector.class);
+
+    private final Cluster cluster;
+    private final String keyspaceName;
+    private final int replicationFactor;
+    private final List<ColumnFamilyDefinition> columnFamilies;
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private Thread thread;
+
+    KeyspaceConnector(Cluster cluster,
+                      String keyspaceName,
+                      int replicationFactor,
+                      List<ColumnFamilyDefinition> columnFamilies) {
+        this.cluster = cluster;
+        this.keyspaceName = keyspaceName;
+        this.replicationFactor = replicationFactor;
+        this.columnFamilies = columnFamilies;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        }, "eventstore-connect-" + keyspaceName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * @return whether the keyspace became ready within the timeout in milliseconds
+     */
+    boolean awaitReady(long timeout) throws InterruptedException {
+        return ready.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void connect() {
+        long millis = INITIAL_RETRY_INTERVAL;
+        while (true) {
+            try {
+                ensureSchema(cluster, keyspaceName, replicationFactor, columnFamilies);
+                ready.countDown();
+                log.info(String.format("Connected to keyspace %s.", keyspaceName));
+                return;
+            } catch (Exception e) {
+                log.warn(String.format("Exception while trying to connect to cassandra.  Retrying in %d ms.", millis), e);
+            }
+
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                log.info(String.format("Stopped connecting to keyspace %s.", keyspaceName));
+                return;
+            }
+            millis = Math.min(millis * 2, MAX_RETRY_INTERVAL);
+        }
+    }
+
+    private static void ensureSchema(Cluster cluster,
+                                     String keyspaceName,
+                                     int replicationFactor,
+                                     List<ColumnFamilyDefinition> columnFamilies) {
+        KeyspaceDefinition keyspaceDef = cluster.describeKeyspace(keyspaceName);
+
+        if (keyspaceDef == null) {
+            KeyspaceDefinition newKeyspace = HFactory.createKeyspaceDefinition(keyspaceName,
+                    ThriftKsDef.DEF_STRATEGY_CLASS,
+                    replicationFactor,
+                    columnFamilies);
+            cluster.addKeyspace(newKeyspace);
+            return;
+        }
+
+        // the keyspace can be shared by several DAOs, add the column families which are missing
+        Set<String> existing = new HashSet<String>();
+        for (ColumnFamilyDefinition cfDef : keyspaceDef.getCfDefs()) {
+            existing.add(cfDef.getName());
+        }
+        for (ColumnFamilyDefinition cfDef : columnFamilies) {
+            if (!existing.contains(cfDef.getName())) {
+                log.info(String.format("Adding column family %s to keyspace %s.", cfDef.getName(), keyspaceName));
+                cluster.addColumnFamily(cfDef);
+            }
+        }
+    }
+}
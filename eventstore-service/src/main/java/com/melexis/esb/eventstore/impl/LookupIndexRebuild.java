@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.SERIALIZER;
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.SOURCE;
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.TIMESTAMP;
+
+/**
+ * Writes the lookup rows of indexed attributes of an EventDaoCassandraImpl for all events
+ * in its column family.
+ *
+ * Rewriting an existing lookup column changes nothing, so the rebuild can run while
+ * events are stored. When it has finished the DAO uses the lookup rows of the attributes.
+ * The DAO starts a rebuild itself for attributes added to its indexed attributes.
+ *
+ * Run it with
+ *
+ *   java com.melexis.esb.eventstore.impl.LookupIndexRebuild hosts cluster keyspace columnfamily [threads [attributes]]
+ *
+ * where attributes is a comma separated list, LOTNAME,PROCESSID by default.
+ */
+public class LookupIndexRebuild extends RowScanJob {
+
+    private final static Logger log = Logger.getLogger(LookupIndexRebuild.class);
+
+    private final EventDaoCassandraImpl eventDao;
+    private final List<String> attributes;
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong indexed = new AtomicLong();
+
+    public LookupIndexRebuild(EventDaoCassandraImpl eventDao) {
+        this(eventDao, eventDao.getIndexedAttributes());
+    }
+
+    public LookupIndexRebuild(EventDaoCassandraImpl eventDao, Collection<String> attributes) {
+        super(eventDao.getKeyspace(), eventDao.getColumnFamily(), columns(attributes));
+        this.eventDao = eventDao;
+        this.attributes = new ArrayList<String>(attributes);
+    }
+
+    private static String[] columns(Collection<String> attributes) {
+        List<String> columns = new ArrayList<String>();
+        columns.add(SOURCE);
+        columns.add(TIMESTAMP);
+        columns.addAll(attributes);
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * Scan the column family and write the lookup columns of all events.
+     *
+     * @return the number of lookup columns written
+     */
+    public long run() throws InterruptedException {
+        scan();
+        eventDao.markBuilt(attributes);
+        log.info(String.format("Wrote %d lookup columns of %s for %d events in %s.",
+                indexed.get(), attributes, scanned.get(), columnFamily));
+        return indexed.get();
+    }
+
+    @Override
+    protected void process(List<Row<String, String, String>> rows) {
+        Mutator<String> mutator = HFactory.createMutator(keyspace, SERIALIZER);
+        int count = 0;
+        for (Row<String, String, String> row : rows) {
+            ColumnSlice<String, String> columns = row.getColumnSlice();
+            HColumn<String, String> source = columns.getColumnByName(SOURCE);
+            HColumn<String, String> timestamp = columns.getColumnByName(TIMESTAMP);
+            if (source == null || timestamp == null) {
+                continue;
+            }
+            scanned.incrementAndGet();
+
+            String ts = TimestampCodec.encode(TimestampCodec.decode(timestamp.getValue()));
+            for (String attribute : attributes) {
+                HColumn<String, String> value = columns.getColumnByName(attribute);
+                if (value != null) {
+                    eventDao.addLookupInsertion(mutator, attribute, value.getValue(), source.getValue(), ts, row.getKey());
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            mutator.execute();
+            indexed.addAndGet(count);
+        }
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.err.println("usage: LookupIndexRebuild hosts cluster keyspace columnfamily [threads [attributes]]");
+            System.exit(1);
+        }
+
+        Cluster cluster = HFactory.getOrCreateCluster(args[1], args[0]);
+        try {
+            EventDaoCassandraImpl eventDao = new EventDaoCassandraImpl(cluster, args[2], args[3]);
+            eventDao.awaitReady(Long.MAX_VALUE);
+            if (args.length > 5) {
+                eventDao.setIndexedAttributes(args[5]);
+            }
+            LookupIndexRebuild rebuild = new LookupIndexRebuild(eventDao);
+            if (args.length > 4) {
+                rebuild.setThreads(Integer.parseInt(args[4]));
+            }
+            long indexed = rebuild.run();
+            System.out.println(String.format("Wrote %d lookup columns for %d events.", indexed, rebuild.getScanned()));
+        } finally {
+            HFactory.shutdownCluster(cluster);
+        }
+    }
+}
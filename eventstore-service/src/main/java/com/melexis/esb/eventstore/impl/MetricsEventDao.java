@@ -0,0 +1,327 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import com.google.common.collect.ForwardingIterator;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.Granularity;
+import org.joda.time.DateTime;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Keeps the statistics of every call to another EventDao per type of query, published
+ * with the type EventDao.
+ *
+ * The iterate methods return before the events are read, so their latency is the time
+ * to start the query and their rows are counted as the events are read.
+ */
+public class MetricsEventDao extends ForwardingEventDao {
+
+    public static final String TYPE = "EventDao";
+
+    private final OperationStats store;
+    private final OperationStats storeAll;
+    private final OperationStats find;
+    private final OperationStats findPage;
+    private final OperationStats findForLotname;
+    private final OperationStats findForProcessId;
+    private final OperationStats findByAttribute;
+    private final OperationStats count;
+    private final OperationStats countByAttribute;
+    private final OperationStats iterate;
+    private final OperationStats iterateForLotname;
+    private final OperationStats iterateForProcessId;
+    private final OperationStats iterateByAttribute;
+
+    public MetricsEventDao(EventDao delegate, EventStoreMetrics metrics) {
+        super(delegate);
+        store = metrics.stats(TYPE, "store");
+        storeAll = metrics.stats(TYPE, "storeAll");
+        find = metrics.stats(TYPE, "findEvents");
+        findPage = metrics.stats(TYPE, "findEventPage");
+        findForLotname = metrics.stats(TYPE, "findEventsForLotname");
+        findForProcessId = metrics.stats(TYPE, "findEventsForProcessId");
+        findByAttribute = metrics.stats(TYPE, "findEventsByAttribute");
+        count = metrics.stats(TYPE, "countEvents");
+        countByAttribute = metrics.stats(TYPE, "countEventsByAttribute");
+        iterate = metrics.stats(TYPE, "iterateEvents");
+        iterateForLotname = metrics.stats(TYPE, "iterateEventsForLotname");
+        iterateForProcessId = metrics.stats(TYPE, "iterateEventsForProcessId");
+        iterateByAttribute = metrics.stats(TYPE, "iterateEventsByAttribute");
+    }
+
+    @Override
+    public void store(final Event event) {
+        store.record(new OperationStats.Call<Void>() {
+            @Override
+            protected Void call() {
+                MetricsEventDao.super.store(event);
+                return null;
+            }
+
+            @Override
+            protected int rows(Void result) {
+                return 1;
+            }
+        });
+    }
+
+    @Override
+    public void storeAll(final Collection<Event> events) {
+        storeAll.record(new OperationStats.Call<Void>() {
+            @Override
+            protected Void call() {
+                MetricsEventDao.super.storeAll(events);
+                return null;
+            }
+
+            @Override
+            protected int rows(Void result) {
+                return events.size();
+            }
+        });
+    }
+
+    @Override
+    public List<Event> findEvents(final String source,
+                                  @Nullable final DateTime from,
+                                  @Nullable final DateTime till,
+                                  final int max) {
+        return find.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return MetricsEventDao.super.findEvents(source, from, till, max);
+            }
+        });
+    }
+
+    @Override
+    public List<Event> findEvents(final String source,
+                                  @Nullable final DateTime from,
+                                  @Nullable final DateTime till,
+                                  final int max,
+                                  @Nullable final Set<String> fields) {
+        return find.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return MetricsEventDao.super.findEvents(source, from, till, max, fields);
+            }
+        });
+    }
+
+    @Override
+    public EventPage findEventPage(final String source,
+                                   @Nullable final DateTime from,
+                                   @Nullable final DateTime till,
+                                   final int max,
+                                   @Nullable final Set<String> fields,
+                                   @Nullable final String continuation) {
+        return findPage.record(new OperationStats.Call<EventPage>() {
+            @Override
+            protected EventPage call() {
+                return MetricsEventDao.super.findEventPage(source, from, till, max, fields, continuation);
+            }
+
+            @Override
+            protected int rows(EventPage page) {
+                return page.getEvents().size();
+            }
+        });
+    }
+
+    @Override
+    public List<Event> findEventsForLotnameAndSource(final String lotname,
+                                                     final String source,
+                                                     @Nullable final DateTime from,
+                                                     @Nullable final DateTime till,
+                                                     final int max) {
+        return findForLotname.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return MetricsEventDao.super.findEventsForLotnameAndSource(lotname, source, from, till, max);
+            }
+        });
+    }
+
+    @Override
+    public List<Event> findEventsForProcessIdAndSource(final String processId,
+                                                       final String source,
+                                                       @Nullable final DateTime start,
+                                                       @Nullable final DateTime end,
+                                                       final int max) {
+        return findForProcessId.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return MetricsEventDao.super.findEventsForProcessIdAndSource(processId, source, start, end, max);
+            }
+        });
+    }
+
+    @Override
+    public List<Event> findEventsByAttribute(final String name,
+                                             final String value,
+                                             final String source,
+                                             @Nullable final DateTime from,
+                                             @Nullable final DateTime till,
+                                             final int max) {
+        return findByAttribute.record(new OperationStats.ListCall<Event>() {
+            @Override
+            protected List<Event> call() {
+                return MetricsEventDao.super.findEventsByAttribute(name, value, source, from, till, max);
+            }
+        });
+    }
+
+    @Override
+    public SortedMap<Long, Long> countEvents(final String source,
+                                             final DateTime from,
+                                             final DateTime till,
+                                             final Granularity granularity) {
+        return count.record(new OperationStats.SortedMapCall<Long, Long>() {
+            @Override
+            protected SortedMap<Long, Long> call() {
+                return MetricsEventDao.super.countEvents(source, from, till, granularity);
+            }
+        });
+    }
+
+    @Override
+    public SortedMap<Long, Long> countEventsByAttribute(final String name,
+                                                        final String value,
+                                                        final String source,
+                                                        final DateTime from,
+                                                        final DateTime till,
+                                                        final Granularity granularity) {
+        return countByAttribute.record(new OperationStats.SortedMapCall<Long, Long>() {
+            @Override
+            protected SortedMap<Long, Long> call() {
+                return MetricsEventDao.super.countEventsByAttribute(name, value, source, from, till, granularity);
+            }
+        });
+    }
+
+    @Override
+    public Iterable<Event> iterateEvents(final String source,
+                                         @Nullable final DateTime from,
+                                         @Nullable final DateTime till,
+                                         final int max) {
+        return counting(iterate.record(new Iterated() {
+            @Override
+            protected Iterable<Event> call() {
+                return MetricsEventDao.super.iterateEvents(source, from, till, max);
+            }
+        }), iterate);
+    }
+
+    @Override
+    public Iterable<Event> iterateEvents(final String source,
+                                         @Nullable final DateTime from,
+                                         @Nullable final DateTime till,
+                                         final int max,
+                                         @Nullable final Set<String> fields) {
+        return counting(iterate.record(new Iterated() {
+            @Override
+            protected Iterable<Event> call() {
+                return MetricsEventDao.super.iterateEvents(source, from, till, max, fields);
+            }
+        }), iterate);
+    }
+
+    @Override
+    public Iterable<Event> iterateEventsByAttribute(final String name,
+                                                    final String value,
+                                                    final String source,
+                                                    @Nullable final DateTime from,
+                                                    @Nullable final DateTime till,
+                                                    final int max) {
+        return counting(iterateByAttribute.record(new Iterated() {
+            @Override
+            protected Iterable<Event> call() {
+                return MetricsEventDao.super.iterateEventsByAttribute(name, value, source, from, till, max);
+            }
+        }), iterateByAttribute);
+    }
+
+    @Override
+    public Iterable<Event> iterateEventsForLotnameAndSource(final String lotname,
+                                                            final String source,
+                                                            @Nullable final DateTime from,
+                                                            @Nullable final DateTime till,
+                                                            final int max) {
+        return counting(iterateForLotname.record(new Iterated() {
+            @Override
+            protected Iterable<Event> call() {
+                return MetricsEventDao.super.iterateEventsForLotnameAndSource(lotname, source, from, till, max);
+            }
+        }), iterateForLotname);
+    }
+
+    @Override
+    public Iterable<Event> iterateEventsForProcessIdAndSource(final String processId,
+                                                              final String source,
+                                                              @Nullable final DateTime start,
+                                                              @Nullable final DateTime end,
+                                                              final int max) {
+        return counting(iterateForProcessId.record(new Iterated() {
+            @Override
+            protected Iterable<Event> call() {
+                return MetricsEventDao.super.iterateEventsForProcessIdAndSource(processId, source, start, end, max);
+            }
+        }), iterateForProcessId);
+    }
+
+    /**
+     * The rows of an iterable are counted as they are read.
+     */
+    private abstract static class Iterated extends OperationStats.Call<Iterable<Event>> {
+
+        @Override
+        protected int rows(Iterable<Event> result) {
+            return 0;
+        }
+    }
+
+    private static Iterable<Event> counting(final Iterable<Event> events, final OperationStats stats) {
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                final Iterator<Event> iterator = events.iterator();
+                return new ForwardingIterator<Event>() {
+                    @Override
+                    protected Iterator<Event> delegate() {
+                        return iterator;
+                    }
+
+                    @Override
+                    public Event next() {
+                        Event event = super.next();
+                        stats.returned(1);
+                        return event;
+                    }
+                };
+            }
+        };
+    }
+}
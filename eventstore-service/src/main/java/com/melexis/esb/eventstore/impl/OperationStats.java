@@ -0,0 +1,266 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls, errors and rows of an operation and keeps a histogram of its latencies.
+ *
+ * The histogram counts latencies in microseconds in buckets which are exact below 16us
+ * and grow with the latency above, each power of two is split into 8 buckets. So a
+ * percentile is off by at most an eighth of its value, and recording is a few atomic
+ * increments without locks.
+ */
+public class OperationStats implements OperationStatsMBean {
+
+    private static final int EXACT = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** the exponents of the power of two buckets, from 2^4 up to 2^63 */
+    private static final int BUCKETS = EXACT + (64 - 4) * SUB_BUCKETS;
+
+    private final String name;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rowsReturned = new AtomicLong();
+    private final AtomicLong rowsScanned = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public OperationStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a call which succeeded.
+     *
+     * @param startNanos the System.nanoTime at the start of the call
+     * @param rows the number of rows returned or stored
+     */
+    public void success(long startNanos, int rows) {
+        record(startNanos);
+        rowsReturned.addAndGet(rows);
+    }
+
+    /**
+     * Record a call which failed.
+     *
+     * @param startNanos the System.nanoTime at the start of the call
+     */
+    public void failure(long startNanos) {
+        record(startNanos);
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Record the rows read by a call of which only some are returned.
+     */
+    public void scanned(long rows) {
+        rowsScanned.addAndGet(rows);
+    }
+
+    /**
+     * Record rows returned after the call, by an iterable which is read lazily.
+     */
+    public void returned(long rows) {
+        rowsReturned.addAndGet(rows);
+    }
+
+    /**
+     * Make a call and record it as a success with the rows of its result, or as a failure
+     * when it throws.
+     */
+    public <T> T record(Call<T> call) {
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            success(start, call.rows(result));
+            return result;
+        } catch (RuntimeException e) {
+            failure(start);
+            throw e;
+        }
+    }
+
+    private void record(long startNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        histogram.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < EXACT) {
+            return (int) Math.max(micros, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest latency in microseconds counted in the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        int exponent = (bucket - EXACT) / SUB_BUCKETS + 4;
+        long sub = (bucket - EXACT) % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * @return the latency in milliseconds below which the given fraction of the calls lie
+     */
+    public double getPercentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getRowsReturned() {
+        return rowsReturned.get();
+    }
+
+    public long getRowsScanned() {
+        return rowsScanned.get();
+    }
+
+    public double getScanRatio() {
+        long returned = rowsReturned.get();
+        return returned == 0 ? 0 : (double) rowsScanned.get() / returned;
+    }
+
+    public double getMeanLatency() {
+        long calls = count.get();
+        return calls == 0 ? 0 : totalMicros.get() / 1000.0 / calls;
+    }
+
+    public double getMaxLatency() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    public double get50thPercentile() {
+        return getPercentile(0.5);
+    }
+
+    public double get99thPercentile() {
+        return getPercentile(0.99);
+    }
+
+    public double get999thPercentile() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * Start counting from zero, e.g. after a load test.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+        count.set(0);
+        errors.set(0);
+        rowsReturned.set(0);
+        rowsScanned.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d calls, %d errors, p50 %.3fms, p99 %.3fms, p999 %.3fms",
+                name, getCount(), getErrors(), get50thPercentile(), get99thPercentile(), get999thPercentile());
+    }
+
+    /**
+     * A call recorded by {@link OperationStats#record}.
+     */
+    public abstract static class Call<T> {
+
+        protected abstract T call();
+
+        /**
+         * @return the number of rows returned or stored by the call
+         */
+        protected abstract int rows(T result);
+    }
+
+    /**
+     * A call which returns a list, of which the rows are the elements.
+     */
+    public abstract static class ListCall<E> extends Call<List<E>> {
+
+        @Override
+        protected int rows(List<E> result) {
+            return result.size();
+        }
+    }
+
+    /**
+     * A call which returns a map, of which the rows are the entries.
+     */
+    public abstract static class SortedMapCall<K, V> extends Call<SortedMap<K, V>> {
+
+        @Override
+        protected int rows(SortedMap<K, V> result) {
+            return result.size();
+        }
+    }
+}
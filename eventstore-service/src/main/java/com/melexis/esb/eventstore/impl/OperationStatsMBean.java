@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb.eventstore.impl;
+
+/**
+ * The JMX view of the statistics of an operation. Latencies are in milliseconds.
+ */
+public interface OperationStatsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    long getRowsReturned();
+
+    long getRowsScanned();
+
+    /**
+     * @return the number of rows scanned per row returned, 0 when nothing was returned
+     */
+    double getScanRatio();
+
+    double getMeanLatency();
+
+    double getMaxLatency();
+
+    double get50thPercentile();
+
+    double get99thPercentile();
+
+    double get999thPercentile();
+
+    void reset();
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.query.RangeSlicesQuery;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.SERIALIZER;
+import static me.prettyprint.hector.api.factory.HFactory.createRangeSlicesQuery;
+
+/**
+ * Scans all rows of a column family a page at a time and processes the pages in parallel.
+ *
+ * Only the given columns are read. The pages are handed to a pool of workers while the
+ * next page is read, at most two pages per worker are read ahead.
+ */
+public abstract class RowScanJob {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    protected final Keyspace keyspace;
+    protected final String columnFamily;
+    private final String[] columns;
+
+    private int threads = DEFAULT_THREADS;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+    protected RowScanJob(Keyspace keyspace, String columnFamily, String... columns) {
+        this.keyspace = keyspace;
+        this.columnFamily = columnFamily;
+        this.columns = columns;
+    }
+
+    /**
+     * Process a page of rows. Called concurrently by the workers.
+     */
+    protected abstract void process(List<Row<String, String, String>> rows);
+
+    /**
+     * Scan all rows, stopping at the first page which fails.
+     */
+    protected void scan() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final Semaphore pending = new Semaphore(threads * 2);
+
+        try {
+            RangeSlicesQuery<String, String, String> query =
+                    createRangeSlicesQuery(keyspace, SERIALIZER, SERIALIZER, SERIALIZER);
+            query.setColumnFamily(columnFamily);
+            query.setColumnNames(columns);
+
+            String lastKey = null;
+            boolean exhausted = false;
+            while (!exhausted && failure.get() == null) {
+                boolean continuing = lastKey != null;
+                int rowCount = continuing ? pageSize + 1 : pageSize;
+                query.setKeys(continuing ? lastKey : "", "");
+                query.setRowCount(rowCount);
+
+                List<Row<String, String, String>> rows = query.execute().get().getList();
+                exhausted = rows.size() < rowCount;
+                if (rows.isEmpty()) {
+                    break;
+                }
+                // every page starts with the last row of the previous page
+                final List<Row<String, String, String>> page =
+                        continuing && rows.get(0).getKey().equals(lastKey)
+                                ? rows.subList(1, rows.size())
+                                : rows;
+                lastKey = rows.get(rows.size() - 1).getKey();
+
+                pending.acquire();
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            process(page);
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            pending.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+}
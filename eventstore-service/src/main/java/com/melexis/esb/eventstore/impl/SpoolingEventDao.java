@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spools the events which cannot be stored to a local {@link EventSpool} and replays
+ * them in the background.
+ *
+ * Events are stored directly while the spool is empty. When a store fails the events are
+ * appended to the spool, and the store returns once they are synced to disk. While the
+ * spool holds events new events are appended to it as well, so a slow or unavailable
+ * store is not waited for. A replay thread writes the spooled events in batches and
+ * removes them from the spool once they are stored. The events of a failed batch are
+ * stored one at a time, those which still fail are spooled again and retried after the
+ * retry interval. An event which failed the configured number of times while the store
+ * accepted other events is moved to the dead letter spool, which is not replayed.
+ *
+ * This DAO has to sit above the {@link CachingEventDao}, so the replayed events pass the
+ * cache and invalidate the windows they fall in.
+ *
+ * Events are delivered at least once, also across restarts: a batch which was stored
+ * just before a crash is replayed again.
+ */
+public class SpoolingEventDao extends ForwardingEventDao {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_RETRY_INTERVAL = 5000;
+    public static final long DEFAULT_POLL_INTERVAL = 100;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    /** consecutive failures after which the store is taken to be down for the rest of a batch */
+    private static final int MAX_PROBES = 3;
+
+    private final static Logger log = Logger.getLogger(SpoolingEventDao.class);
+
+    private final EventSpool spool;
+    private EventSpool deadLetters;
+
+    private boolean enabled = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    /** the failed attempts of the spooled events, only used by the replay thread */
+    private final Map<Event, Integer> attempts = new HashMap<Event, Integer>();
+    /** moves the start of the events tried one at a time, only used by the replay thread */
+    private long probes;
+
+    private volatile boolean running;
+    private Thread replayThread;
+
+    public SpoolingEventDao(EventDao delegate, EventSpool spool) {
+        super(delegate);
+        this.spool = spool;
+    }
+
+    public synchronized void start() throws IOException {
+        if (!enabled || running) {
+            return;
+        }
+        spool.open();
+        if (deadLetters != null) {
+            deadLetters.open();
+        }
+        running = true;
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "eventstore-spool-replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    /**
+     * Stop replaying and close the spool, the events left in it are replayed after the
+     * next start.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        replayThread.interrupt();
+        replayThread.join();
+        replayThread = null;
+        spool.close();
+        if (deadLetters != null) {
+            deadLetters.close();
+        }
+
+        if (!spool.isEmpty()) {
+            log.info(String.format("Stopped with %d events in the spool.", spool.getPendingEvents()));
+        }
+    }
+
+    @Override
+    public void store(Event event) {
+        if (!running) {
+            super.store(event);
+            return;
+        }
+
+        if (spool.isEmpty()) {
+            try {
+                super.store(event);
+                return;
+            } catch (RuntimeException e) {
+                log.warn("Failed to store an event, spooling it.", e);
+            }
+        }
+        spool(Collections.singletonList(event));
+    }
+
+    @Override
+    public void storeAll(Collection<Event> events) {
+        if (!running) {
+            super.storeAll(events);
+            return;
+        }
+
+        Collection<Event> failed = events;
+        if (spool.isEmpty()) {
+            try {
+                super.storeAll(events);
+                return;
+            } catch (BatchStoreException e) {
+                log.warn(String.format("Failed to store %d events, spooling them.", e.getFailedEvents().size()), e);
+                failed = e.getFailedEvents();
+            } catch (RuntimeException e) {
+                log.warn(String.format("Failed to store %d events, spooling them.", events.size()), e);
+            }
+        }
+        spool(failed);
+    }
+
+    private void spool(Collection<Event> events) {
+        try {
+            spool.awaitSync(spool.append(events));
+            spooled.addAndGet(events.size());
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Cannot spool %d events to %s.",
+                    events.size(), spool.getDirectory()), e);
+        }
+    }
+
+    private void replay() {
+        while (running) {
+            try {
+                EventSpool.Batch batch = spool.read(batchSize);
+                if (batch.isEmpty()) {
+                    Thread.sleep(DEFAULT_POLL_INTERVAL);
+                    continue;
+                }
+
+                List<Event> events = batch.getEvents();
+                List<Event> failed = new ArrayList<Event>();
+                boolean storeAvailable = true;
+                RuntimeException cause = null;
+                try {
+                    super.storeAll(events);
+                } catch (BatchStoreException e) {
+                    cause = e;
+                    boolean partial = e.getFailedEvents().size() < events.size();
+                    storeAvailable = storeEach(e.getFailedEvents(), partial, failed) > 0 || partial;
+                } catch (RuntimeException e) {
+                    cause = e;
+                    storeAvailable = storeEach(events, false, failed) > 0;
+                }
+
+                if (!storeAvailable) {
+                    // nothing of the batch was stored, leave it in the spool and try it again
+                    log.warn(String.format("Failed to replay %d spooled events, retrying in %d ms.",
+                            events.size(), retryInterval), cause);
+                    Thread.sleep(retryInterval);
+                    continue;
+                }
+
+                if (!failed.isEmpty()) {
+                    respool(failed, cause);
+                }
+                spool.commit(batch);
+                replayed.addAndGet(events.size() - failed.size());
+
+                if (!failed.isEmpty()) {
+                    log.warn(String.format("Failed to replay %d spooled events, retrying in %d ms.",
+                            failed.size(), retryInterval), cause);
+                    Thread.sleep(retryInterval);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                log.error(String.format("Failed to replay the spool in %s, retrying in %d ms.",
+                        spool.getDirectory(), retryInterval), e);
+                try {
+                    Thread.sleep(retryInterval);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the events of a failed batch one at a time, so an event which cannot be stored
+     * does not hold back the others.
+     *
+     * When the store is not known to be available, it is taken to be down after a few
+     * failures without a success and the other events are not tried. The events are tried
+     * from another position every time, so events which always fail at the start of the
+     * batch cannot keep the others from being tried.
+     *
+     * @param failed receives the events which were not stored
+     * @return the number of events stored
+     */
+    private int storeEach(List<Event> events, boolean storeAvailable, List<Event> failed) {
+        int stored = 0;
+        int first = (int) (probes++ % events.size());
+        for (int n = 0; n < events.size(); n++) {
+            Event event = events.get((first + n) % events.size());
+            if (!storeAvailable && stored == 0 && failed.size() >= MAX_PROBES) {
+                failed.add(event);
+                continue;
+            }
+            try {
+                super.store(event);
+                stored++;
+                attempts.remove(event);
+            } catch (RuntimeException e) {
+                failed.add(event);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Spool the events which failed while the store accepted others again, or move them to
+     * the dead letters after too many attempts.
+     */
+    private void respool(List<Event> failed, RuntimeException cause) throws IOException {
+        List<Event> retry = new ArrayList<Event>();
+        List<Event> dead = new ArrayList<Event>();
+        for (Event event : failed) {
+            Integer previous = attempts.get(event);
+            int count = previous == null ? 1 : previous + 1;
+            if (count >= maxAttempts) {
+                attempts.remove(event);
+                dead.add(event);
+            } else {
+                attempts.put(event, count);
+                retry.add(event);
+            }
+        }
+
+        if (!retry.isEmpty()) {
+            spool.awaitSync(spool.append(retry));
+        }
+        if (!dead.isEmpty()) {
+            deadLetter(dead, cause);
+        }
+    }
+
+    private void deadLetter(List<Event> events, RuntimeException cause) throws IOException {
+        deadLettered.addAndGet(events.size());
+        if (deadLetters == null) {
+            log.error(String.format("Dropping %d events which failed to be stored %d times: %s",
+                    events.size(), maxAttempts, events), cause);
+            return;
+        }
+        deadLetters.awaitSync(deadLetters.append(events));
+        log.error(String.format("Moved %d events which failed to be stored %d times to the dead letters in %s.",
+                events.size(), maxAttempts, deadLetters.getDirectory()), cause);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of events in the spool waiting to be replayed
+     */
+    public long getSpoolDepth() {
+        return spool.getPendingEvents();
+    }
+
+    /**
+     * @return the time in milliseconds the oldest event in the spool is waiting, 0 when
+     *         the spool is empty
+     */
+    public long getReplayLag() {
+        long oldest = spool.getOldestPending();
+        return oldest > 0 ? System.currentTimeMillis() - oldest : 0;
+    }
+
+    public long getSpooled() {
+        return spooled.get();
+    }
+
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the number of events given up and moved to the dead letters
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Set the maximum number of spooled events replayed in a single storeAll.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the time in milliseconds to wait before retrying a failed replay.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    /**
+     * Set the number of failed replays after which an event is moved to the dead letters.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Set the spool receiving the events which cannot be stored, they are dropped when none
+     * is set.
+     */
+    public void setDeadLetters(EventSpool deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Version 1 UUIDs for an arbitrary moment in time.
+ *
+ * Unlike the generators in hector these do not move the time forward to guarantee
+ * uniqueness, so events stored with a timestamp in the past keep their timestamp. The
+ * clock sequence and node are random instead.
+ *
+ * The start and end UUIDs sort before and after every UUID of the same millisecond with
+ * the cassandra TimeUUIDType comparator, which compares the low bytes as signed values.
+ */
+final class TimeUUIDs {
+
+    /** 100ns intervals between 1582-10-15 and 1970-01-01 */
+    private static final long UUID_EPOCH_OFFSET = 0x01b21dd213814000L;
+
+    private static final long MIN_CLOCK_SEQ_AND_NODE = 0x8080808080808080L;
+    private static final long MAX_CLOCK_SEQ_AND_NODE = 0x7f7f7f7f7f7f7f7fL;
+
+    private static final Random random = new SecureRandom();
+
+    private TimeUUIDs() {
+    }
+
+    static UUID newTimeUUID(long millis) {
+        long clockSeqAndNode = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(mostSignificantBits(millis), clockSeqAndNode);
+    }
+
+    static UUID startOf(long millis) {
+        return new UUID(mostSignificantBits(millis), MIN_CLOCK_SEQ_AND_NODE);
+    }
+
+    static UUID endOf(long millis) {
+        return new UUID(mostSignificantBits(millis), MAX_CLOCK_SEQ_AND_NODE);
+    }
+
+    static long getMillis(UUID uuid) {
+        return (uuid.timestamp() - UUID_EPOCH_OFFSET) / 10000;
+    }
+
+    /**
+     * Compare like the cassandra TimeUUIDType comparator: by time, then by the bytes as
+     * signed values.
+     */
+    static int compare(UUID a, UUID b) {
+        long ta = a.timestamp();
+        long tb = b.timestamp();
+        if (ta != tb) {
+            return ta < tb ? -1 : 1;
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            byte ba = (byte) (a.getMostSignificantBits() >>> shift);
+            byte bb = (byte) (b.getMostSignificantBits() >>> shift);
+            if (ba != bb) {
+                return ba < bb ? -1 : 1;
+            }
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            byte ba = (byte) (a.getLeastSignificantBits() >>> shift);
+            byte bb = (byte) (b.getLeastSignificantBits() >>> shift);
+            if (ba != bb) {
+                return ba < bb ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long mostSignificantBits(long millis) {
+        long time = millis * 10000 + UUID_EPOCH_OFFSET;
+        long msb = 0L;
+        msb |= (0x00000000ffffffffL & time) << 32;
+        msb |= (0x0000ffff00000000L & time) >>> 16;
+        msb |= (0x0fff000000000000L & time) >>> 48;
+        msb |= 0x0000000000001000L; // version 1
+        return msb;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * The string form of the TIMESTAMP column.
+ *
+ * Timestamps are written in UTC with a fixed width, e.g. 2010-01-02T12:34:56.789Z, so the
+ * string order of the column is the time order. This format is parsed by hand. Values in
+ * any other ISO format, like the local time with an offset which was written before, are
+ * parsed by joda.
+ */
+final class TimestampCodec {
+
+    private static final DateTimeFormatter FORMAT = ISODateTimeFormat.dateTime().withZoneUTC();
+
+    private static final int LENGTH = "2010-01-02T12:34:56.789Z".length();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private TimestampCodec() {
+    }
+
+    static String encode(DateTime timestamp) {
+        return FORMAT.print(timestamp);
+    }
+
+    static DateTime decode(String value) {
+        return new DateTime(decodeMillis(value));
+    }
+
+    static long decodeMillis(String value) {
+        if (!isCanonical(value)) {
+            return new DateTime(value).getMillis();
+        }
+
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        int millis = digits(value, 20, 3);
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour > 23 || minute > 59 || second > 59) {
+            // let joda report the invalid value
+            return new DateTime(value).getMillis();
+        }
+
+        return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60 + minute) * 60 + second) * 1000L
+                + millis;
+    }
+
+    /**
+     * @return true when the value is in the fixed width UTC format written by encode
+     */
+    static boolean isCanonical(String value) {
+        if (value.length() != LENGTH
+                || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':' || value.charAt(19) != '.'
+                || value.charAt(23) != 'Z') {
+            return false;
+        }
+        for (int i = 0; i < 23; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && i != 4 && i != 7 && i != 10 && i != 13 && i != 16 && i != 19) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(String value, int offset, int length) {
+        int result = 0;
+        for (int i = offset; i < offset + length; i++) {
+            result = result * 10 + (value.charAt(i) - '0');
+        }
+        return result;
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * The days since 1970-01-01 of a date in the proleptic gregorian calendar, which joda
+     * uses for the ISO chronology.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // count years from march so the leap day is the last day of the year
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.SERIALIZER;
+import static com.melexis.esb.eventstore.impl.EventDaoCassandraImpl.TIMESTAMP;
+import static me.prettyprint.hector.api.factory.HFactory.createStringColumn;
+
+/**
+ * Rewrites the TIMESTAMP column of the rows of an EventDaoCassandraImpl column family
+ * which are not yet in the fixed width UTC format.
+ *
+ * The rows are scanned a page at a time, reading only the TIMESTAMP column, and the pages
+ * are rewritten by a pool of writers. The new value is the same instant, so the migration
+ * can run while events are stored and queried. Until it finishes, range queries may miss
+ * old events stored with a zone offset other than UTC.
+ *
+ * Run it with
+ *
+ *   java com.melexis.esb.eventstore.impl.TimestampMigration hosts cluster keyspace columnfamily [threads]
+ */
+public class TimestampMigration extends RowScanJob {
+
+    private final static Logger log = Logger.getLogger(TimestampMigration.class);
+
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong rewritten = new AtomicLong();
+
+    public TimestampMigration(Keyspace keyspace, String columnFamily) {
+        super(keyspace, columnFamily, TIMESTAMP);
+    }
+
+    /**
+     * Scan the column family and rewrite all timestamps in another format.
+     *
+     * @return the number of rewritten rows
+     */
+    public long run() throws InterruptedException {
+        scan();
+        log.info(String.format("Rewrote %d of %d timestamps in %s.", rewritten.get(), scanned.get(), columnFamily));
+        return rewritten.get();
+    }
+
+    @Override
+    protected void process(List<Row<String, String, String>> rows) {
+        Mutator<String> mutator = HFactory.createMutator(keyspace, SERIALIZER);
+        int count = 0;
+        for (Row<String, String, String> row : rows) {
+            // rows without a timestamp are deleted, writing would bring them back
+            HColumn<String, String> column = row.getColumnSlice().getColumnByName(TIMESTAMP);
+            if (column == null) {
+                continue;
+            }
+            scanned.incrementAndGet();
+            if (!TimestampCodec.isCanonical(column.getValue())) {
+                String value = TimestampCodec.encode(TimestampCodec.decode(column.getValue()));
+                mutator.addInsertion(row.getKey(), columnFamily, createStringColumn(TIMESTAMP, value));
+                count++;
+            }
+        }
+        if (count > 0) {
+            mutator.execute();
+            rewritten.addAndGet(count);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Scanned %d rows, rewrote %d timestamps.", scanned.get(), rewritten.get()));
+        }
+    }
+
+    public long getScanned() {
+        return scanned.get();
+    }
+
+    public long getRewritten() {
+        return rewritten.get();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.err.println("usage: TimestampMigration hosts cluster keyspace columnfamily [threads]");
+            System.exit(1);
+        }
+
+        Cluster cluster = HFactory.getOrCreateCluster(args[1], args[0]);
+        try {
+            TimestampMigration migration = new TimestampMigration(HFactory.createKeyspace(args[2], cluster), args[3]);
+            if (args.length > 4) {
+                migration.setThreads(Integer.parseInt(args[4]));
+            }
+            long rewritten = migration.run();
+            System.out.println(String.format("Rewrote %d of %d timestamps.", rewritten, migration.getScanned()));
+        } finally {
+            HFactory.shutdownCluster(cluster);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb.eventstore.impl;
+
+import com.melexis.esb.eventstore.BatchStoreException;
+import com.melexis.esb.eventstore.Event;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded in-memory queue in front of an {@link EventDao}.
+ *
+ * Events are added to the queue and written in batches by a number of writer threads. A
+ * batch is written when it reaches the batch size or when its oldest event waited for
+ * the flush interval. When the queue is full the {@link OverflowPolicy} decides whether
+ * the caller blocks, the event is dropped or an exception is thrown.
+ *
+ * Events which fail to be written are retried after the flush interval, an event is
+ * given up and counted as failed after the configured number of attempts.
+ *
+ * When the buffer is disabled or not started events are written synchronously. Stopping
+ * the buffer drains the queue before returning.
+ */
+public class WriteBehindBuffer {
+
+    public enum OverflowPolicy {
+        /** wait until there is room in the queue */
+        BLOCK,
+        /** discard the event and log a warning */
+        DROP,
+        /** throw an IllegalStateException */
+        FAIL
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 30000;
+    public static final int DEFAULT_ATTEMPTS = 3;
+
+    private final static Logger log = Logger.getLogger(WriteBehindBuffer.class);
+
+    private final EventDao eventDao;
+    private final BlockingQueue<Entry> queue;
+    /** failed events waiting for their next attempt, in the order they are due */
+    private final Queue<Entry> retries = new ConcurrentLinkedQueue<Entry>();
+
+    private boolean enabled = true;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private int attempts = DEFAULT_ATTEMPTS;
+    private int writers = 1;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    /** sequence numbers of the events accepted in the queue but not yet written or given up */
+    private final ConcurrentSkipListSet<Long> unwritten = new ConcurrentSkipListSet<Long>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger liveWriters = new AtomicInteger();
+    private final Object flushLock = new Object();
+
+    /** held for reading while an event is queued, so stop() cannot slip in between the check and the put */
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock();
+    private volatile boolean running;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    public WriteBehindBuffer(EventDao eventDao, int capacity) {
+        this.eventDao = eventDao;
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+    }
+
+    public synchronized void start() {
+        if (!enabled || running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < writers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "eventstore-write-behind-" + i);
+            thread.setDaemon(true);
+            liveWriters.incrementAndGet();
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Stop accepting events and wait until the writer threads emptied the queue.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        runningLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            runningLock.writeLock().unlock();
+        }
+
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        try {
+            for (Thread thread : threads) {
+                thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        threads.clear();
+
+        List<Entry> left = new ArrayList<Entry>();
+        queue.drainTo(left);
+        left.addAll(retries);
+        retries.clear();
+        if (!left.isEmpty()) {
+            log.error(String.format("Write-behind buffer stopped with %d unwritten events.", left.size()));
+            for (Entry entry : left) {
+                done(entry);
+            }
+        }
+    }
+
+    public void add(Event event) {
+        runningLock.readLock().lock();
+        try {
+            if (running) {
+                enqueue(event);
+                return;
+            }
+        } finally {
+            runningLock.readLock().unlock();
+        }
+        eventDao.store(event);
+    }
+
+    public void addAll(Collection<Event> events) {
+        if (!running) {
+            eventDao.storeAll(events);
+            return;
+        }
+        for (Event event : events) {
+            add(event);
+        }
+    }
+
+    private void enqueue(Event event) {
+        Entry entry = new Entry(sequence.incrementAndGet(), event);
+        unwritten.add(entry.sequence);
+        boolean accepted = false;
+        try {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    queue.put(entry);
+                    accepted = true;
+                    break;
+                case DROP:
+                    accepted = queue.offer(entry);
+                    if (!accepted) {
+                        dropped.incrementAndGet();
+                        log.warn("Write-behind queue is full, dropping event " + event);
+                    }
+                    break;
+                case FAIL:
+                    accepted = queue.offer(entry);
+                    if (!accepted) {
+                        throw new IllegalStateException("Write-behind queue is full, cannot store event " + event);
+                    }
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for room in the write-behind queue.", e);
+        } finally {
+            if (!accepted) {
+                done(entry);
+            }
+        }
+    }
+
+    /**
+     * Block until all events added before this call are written or given up. Events added
+     * during the flush are not waited for.
+     *
+     * @throws IllegalStateException when no writer thread is left to write the events
+     */
+    public void flush() {
+        long last = sequence.get();
+        synchronized (flushLock) {
+            Long oldest;
+            while ((oldest = unwritten.ceiling(Long.MIN_VALUE)) != null && oldest <= last) {
+                if (liveWriters.get() == 0) {
+                    throw new IllegalStateException(String.format(
+                            "Write-behind buffer has no writers left, %d events are not written.", unwritten.size()));
+                }
+                try {
+                    flushLock.wait(flushInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while flushing the write-behind queue.", e);
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            while (running || !queue.isEmpty() || !retries.isEmpty()) {
+                List<Entry> batch = new ArrayList<Entry>(batchSize);
+                boolean interrupted = false;
+                try {
+                    takeDueRetries(batch);
+                    if (batch.isEmpty()) {
+                        Entry first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            continue;
+                        }
+                        batch.add(first);
+                    }
+
+                    long deadline = System.currentTimeMillis() + flushInterval;
+                    while (batch.size() < batchSize) {
+                        queue.drainTo(batch, batchSize - batch.size());
+                        long wait = deadline - System.currentTimeMillis();
+                        if (batch.size() >= batchSize || wait <= 0 || !running) {
+                            break;
+                        }
+                        Entry next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    // only this writer stops, the others keep draining the queue
+                    interrupted = true;
+                }
+
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                if (interrupted) {
+                    log.warn(Thread.currentThread().getName() + " was interrupted and stops writing.");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            liveWriters.decrementAndGet();
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private void takeDueRetries(List<Entry> batch) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while (batch.size() < batchSize && (entry = retries.peek()) != null && entry.retryAt <= now) {
+            // another writer may have taken it between the peek and the remove
+            if (retries.remove(entry)) {
+                batch.add(entry);
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) {
+        List<Event> events = new ArrayList<Event>(batch.size());
+        for (Entry entry : batch) {
+            events.add(entry.event);
+        }
+
+        Set<Event> failedEvents = Collections.emptySet();
+        try {
+            eventDao.storeAll(events);
+        } catch (BatchStoreException e) {
+            failedEvents = new HashSet<Event>(e.getFailedEvents());
+            log.warn(String.format("Write-behind failed to store %d events, retrying them later.", failedEvents.size()), e);
+        } catch (RuntimeException e) {
+            failedEvents = new HashSet<Event>(events);
+            log.warn(String.format("Write-behind failed to store %d events, retrying them later.", events.size()), e);
+        }
+
+        long retryAt = System.currentTimeMillis() + flushInterval;
+        for (Entry entry : batch) {
+            if (!failedEvents.contains(entry.event)) {
+                done(entry);
+            } else if (++entry.attempts < attempts) {
+                entry.retryAt = retryAt;
+                retries.add(entry);
+            } else {
+                failed.incrementAndGet();
+                log.error(String.format("Write-behind gave up on event %s after %d attempts.", entry.event, entry.attempts));
+                done(entry);
+            }
+        }
+    }
+
+    private void done(Entry entry) {
+        unwritten.remove(entry.sequence);
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set the maximum time in milliseconds an event waits in the queue before its batch is
+     * written, and the time a failed event waits before it is retried.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Set the maximum time in milliseconds stop() waits for the queue to drain.
+     */
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    /**
+     * Set the number of times an event is written before it is given up.
+     */
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    private static final class Entry {
+        final long sequence;
+        final Event event;
+        /** only touched by the writer holding the entry */
+        int attempts;
+        long retryAt;
+
+        Entry(long sequence, Event event) {
+            this.sequence = sequence;
+            this.event = event;
+        }
+    }
+}
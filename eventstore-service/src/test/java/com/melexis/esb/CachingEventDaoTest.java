@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.impl.CachingEventDao;
+import com.melexis.esb.eventstore.impl.EventDao;
+import com.melexis.foundation.util.DateTimeHelper;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class CachingEventDaoTest {
+
+    public static final DateTime NOW = new DateTime("2010-01-02T12:00:00,000Z");
+    public static final DateTime OLD_START = NOW.minusDays(1);
+    public static final DateTime OLD_END = NOW.minusHours(2);
+    public static final String TEST_SOURCE = "test-source";
+    public static final int MAX = 100;
+
+    private EventDao delegate;
+    private DateTimeHelper dateTimeHelper;
+    private CachingEventDao cachingEventDao;
+    private List<Event> events;
+
+    @Before
+    public void setUp() {
+        delegate = mock(EventDao.class);
+        dateTimeHelper = mock(DateTimeHelper.class);
+        when(dateTimeHelper.now()).thenReturn(NOW);
+
+        cachingEventDao = new CachingEventDao(delegate, dateTimeHelper);
+        cachingEventDao.setClosedAfter(60 * 60 * 1000);
+
+        events = Lists.newArrayList(createEvent(OLD_START.plusHours(1)), createEvent(OLD_START.plusHours(2)));
+        when(delegate.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX)).thenReturn(events);
+    }
+
+    private Event createEvent(DateTime ts) {
+        return Event.createEvent(ts, TEST_SOURCE, ImmutableMap.of("key", "value"));
+    }
+
+    @Test
+    public void testClosedWindowIsCached() {
+        assertEquals(events, cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX));
+        assertEquals(events, cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX));
+
+        verify(delegate, times(1)).findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        assertEquals(1, cachingEventDao.getHits());
+        assertEquals(1, cachingEventDao.getMisses());
+    }
+
+    @Test
+    public void testOpenWindowIsNotCached() {
+        DateTime end = NOW.minusMinutes(5);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, end, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, end, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, null, MAX);
+
+        verify(delegate, times(2)).findEvents(TEST_SOURCE, OLD_START, end, MAX);
+        assertEquals(0, cachingEventDao.getSize());
+    }
+
+    @Test
+    public void testLateEventInvalidatesWindow() {
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+
+        // an event in another window or for another source leaves the entry alone
+        cachingEventDao.store(createEvent(OLD_START.minusHours(1)));
+        cachingEventDao.store(Event.createEvent(OLD_START.plusHours(3), "other-source", ImmutableMap.of("key", "value")));
+        assertEquals(1, cachingEventDao.getSize());
+
+        cachingEventDao.store(createEvent(OLD_START.plusHours(3)));
+        assertEquals(0, cachingEventDao.getSize());
+
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        verify(delegate, times(2)).findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+    }
+
+    @Test
+    public void testResultReadDuringLateEventIsNotCached() {
+        // the late event is stored while the delegate is queried
+        when(delegate.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX)).thenAnswer(new Answer<List<Event>>() {
+            @Override
+            public List<Event> answer(InvocationOnMock invocation) {
+                cachingEventDao.store(createEvent(OLD_START.plusHours(3)));
+                return events;
+            }
+        });
+
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+
+        assertEquals(0, cachingEventDao.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedWindowIsEvicted() {
+        cachingEventDao.setMaxEntries(2);
+        DateTime otherStart = OLD_START.minusDays(1);
+        DateTime anotherStart = OLD_START.minusDays(2);
+
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, otherStart, OLD_END, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, anotherStart, OLD_END, MAX);
+        assertEquals(2, cachingEventDao.getSize());
+        assertEquals(1, cachingEventDao.getEvictions());
+
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, otherStart, OLD_END, MAX);
+        verify(delegate, times(1)).findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        verify(delegate, times(2)).findEvents(TEST_SOURCE, otherStart, OLD_END, MAX);
+    }
+
+    @Test
+    public void testDisabledCache() {
+        cachingEventDao.setMaxEntries(0);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+        cachingEventDao.findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+
+        verify(delegate, times(2)).findEvents(TEST_SOURCE, OLD_START, OLD_END, MAX);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableMap;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.impl.EventDaoBucketedImpl;
+import com.melexis.esb.eventstore.impl.EventStoreMetrics;
+import com.melexis.esb.eventstore.impl.OperationStats;
+import me.prettyprint.hector.api.Cluster;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/beans.xml"})
+public class EventDaoBucketedTest extends BaseCassandraTest {
+
+    public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_SOURCE = "test_source";
+
+    // with buckets of a minute the events span 9 buckets
+    public static final int NR_EVENTS = 100;
+    public static final int INTERVAL_MS = 5000;
+
+    @Autowired
+    Cluster cluster;
+
+    @Autowired
+    EventDaoBucketedImpl dao;
+
+    @Before
+    public void initEvents() {
+        for (int i = 0; i < NR_EVENTS; i++) {
+            dao.store(createEvent(TEST_TS.plus(i * INTERVAL_MS), i));
+        }
+    }
+
+    @After
+    public void cleanEvents() {
+        cluster.truncate("EventStore", "EventBuckets");
+        cluster.truncate("EventStore", "EventBucketsIndex");
+    }
+
+    private Event createEvent(DateTime ts, int i) {
+        return Event.createEvent(ts, TEST_SOURCE, ImmutableMap.of(
+                "key1", "value1 - #" + i,
+                "LOTNAME", "LOT" + (i % 2)));
+    }
+
+    private void checkEvent(int i, Event ev) {
+        assertEquals(TEST_TS.plus(i * INTERVAL_MS), ev.getTimestamp());
+        assertEquals("value1 - #" + i, ev.get("key1"));
+    }
+
+    @Test @DirtiesContext
+    public void testCountsScannedRows() {
+        EventStoreMetrics metrics = new EventStoreMetrics();
+        dao.setMetrics(metrics);
+
+        List<Event> events = dao.findEventsByAttribute("LOTNAME", "LOT0", TEST_SOURCE,
+                TEST_TS.plus(10 * INTERVAL_MS), TEST_TS.plus(40 * INTERVAL_MS), 10000);
+
+        OperationStats scan = metrics.stats(EventDaoBucketedImpl.SCAN_TYPE, EventDaoBucketedImpl.BUCKET_SCAN);
+        assertEquals(16, events.size());
+        assertEquals(1, scan.getCount());
+        assertEquals(31, scan.getRowsScanned());
+        assertEquals(16, scan.getRowsReturned());
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsAcrossBuckets() {
+        List<Event> events = dao.findEvents(TEST_SOURCE, TEST_TS.plus(10 * INTERVAL_MS), TEST_TS.plus(40 * INTERVAL_MS), 10000);
+
+        assertEquals(31, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            checkEvent(10 + i, events.get(i));
+        }
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsOpenEnded() {
+        assertEquals(NR_EVENTS, dao.findEvents(TEST_SOURCE, null, null, 10000).size());
+        assertEquals(51, dao.findEvents(TEST_SOURCE, null, TEST_TS.plus(50 * INTERVAL_MS), 10000).size());
+        assertEquals(50, dao.findEvents(TEST_SOURCE, TEST_TS.plus(50 * INTERVAL_MS), null, 10000).size());
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsReverseOrderLimited() {
+        List<Event> events = dao.findEvents(TEST_SOURCE, TEST_TS.plus(40 * INTERVAL_MS), TEST_TS, 15);
+
+        assertEquals(15, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            checkEvent(40 - i, events.get(i));
+        }
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsByLotname() {
+        List<Event> events = dao.findEventsForLotnameAndSource("LOT1", TEST_SOURCE, null, null, 10000);
+
+        assertEquals(NR_EVENTS / 2, events.size());
+        checkEvent(1, events.get(0));
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsInOverlappingBuckets() {
+        // buckets of 61 seconds overlap the buckets of a minute without sharing a start
+        dao.setBucketSizes(TEST_SOURCE + "=61000");
+        for (int i = 0; i < NR_EVENTS; i++) {
+            dao.store(createEvent(TEST_TS.plus(i * INTERVAL_MS + 1000), NR_EVENTS + i));
+        }
+
+        List<Event> events = dao.findEvents(TEST_SOURCE, null, null, 10000);
+        assertEquals(2 * NR_EVENTS, events.size());
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(events.get(i - 1).getTimestamp().isBefore(events.get(i).getTimestamp()));
+        }
+
+        List<Event> paged = new ArrayList<Event>();
+        EventPage page = dao.findEventPage(TEST_SOURCE, TEST_TS.plus(NR_EVENTS * INTERVAL_MS), TEST_TS, 7, null, null);
+        paged.addAll(page.getEvents());
+        while (page.getContinuation() != null) {
+            page = dao.findEventPage(TEST_SOURCE, TEST_TS.plus(NR_EVENTS * INTERVAL_MS), TEST_TS, 7, null, page.getContinuation());
+            paged.addAll(page.getEvents());
+        }
+        assertEquals(2 * NR_EVENTS, paged.size());
+        for (int i = 1; i < paged.size(); i++) {
+            assertTrue(paged.get(i - 1).getTimestamp().isAfter(paged.get(i).getTimestamp()));
+        }
+    }
+}
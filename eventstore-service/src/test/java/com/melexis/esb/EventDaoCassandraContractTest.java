@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.melexis.esb.eventstore.impl.EventDao;
+import com.melexis.esb.eventstore.impl.EventDaoCassandraImpl;
+import me.prettyprint.hector.api.Cluster;
+import org.apache.cassandra.config.ConfigurationException;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(locations = {"classpath:/beans.xml"})
+public class EventDaoCassandraContractTest extends EventDaoContractTest {
+
+    @Autowired
+    Cluster cluster;
+
+    @Autowired
+    EventDaoCassandraImpl dao;
+
+    @BeforeClass
+    public static void startCassandra() throws TTransportException, IOException, InterruptedException, ConfigurationException {
+        BaseCassandraTest.setup();
+    }
+
+    @AfterClass
+    public static void stopCassandra() throws IOException {
+        BaseCassandraTest.teardown();
+    }
+
+    @Override
+    protected EventDao getDao() {
+        return dao;
+    }
+
+    /**
+     * The indexed layout cannot page, see {@link EventDaoCassandraImpl#findEventPage}.
+     */
+    @Override
+    @Test(expected = UnsupportedOperationException.class)
+    public void testPages() {
+        super.testPages();
+    }
+
+    @Test
+    public void testLookupRowsWithSeparators() {
+        dao.setLookupQueries(true);
+        try {
+            testAttributeValuesWithSeparators();
+        } finally {
+            dao.setLookupQueries(false);
+        }
+    }
+
+    @After
+    public void cleanEvents() {
+        cluster.truncate("EventStore", "Events");
+        cluster.truncate("EventStore", "EventsLookup");
+        cluster.truncate("EventStore", "EventsCounts");
+    }
+}
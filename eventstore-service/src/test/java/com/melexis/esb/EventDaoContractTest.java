@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.impl.EventDao;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * The behaviour documented on EventDao, run against every implementation.
+ */
+public abstract class EventDaoContractTest {
+
+    public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_SOURCE = "contract_source";
+    public static final String OTHER_SOURCE = "contract_other";
+
+    public static final int NR_EVENTS = 20;
+    public static final int INTERVAL_MS = 1000;
+
+    protected abstract EventDao getDao();
+
+    @Before
+    public void initEvents() {
+        for (int i = 0; i < NR_EVENTS; i++) {
+            getDao().store(createEvent(TEST_SOURCE, i));
+        }
+        getDao().store(createEvent(OTHER_SOURCE, 0));
+    }
+
+    private Event createEvent(String source, int i) {
+        return Event.createEvent(ts(i), source, ImmutableMap.of(
+                "key1", "value1 - #" + i,
+                "LOTNAME", "LOT" + (i % 2),
+                "PROCESSID", "P" + (i % 4)));
+    }
+
+    private static DateTime ts(int i) {
+        return TEST_TS.plus(i * INTERVAL_MS);
+    }
+
+    private void checkEvents(List<Event> events, int... expected) {
+        assertEquals(expected.length, events.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(ts(expected[i]), events.get(i).getTimestamp());
+            assertEquals("value1 - #" + expected[i], events.get(i).get("key1"));
+            assertEquals(TEST_SOURCE, events.get(i).getSource());
+        }
+    }
+
+    @Test
+    public void testBoundsAreInclusive() {
+        checkEvents(getDao().findEvents(TEST_SOURCE, ts(3), ts(6), 100), 3, 4, 5, 6);
+    }
+
+    @Test
+    public void testOpenEnds() {
+        checkEvents(getDao().findEvents(TEST_SOURCE, null, ts(2), 100), 0, 1, 2);
+        checkEvents(getDao().findEvents(TEST_SOURCE, ts(17), null, 100), 17, 18, 19);
+        assertEquals(NR_EVENTS, getDao().findEvents(TEST_SOURCE, null, null, 100).size());
+    }
+
+    @Test
+    public void testReverseOrder() {
+        checkEvents(getDao().findEvents(TEST_SOURCE, ts(6), ts(3), 100), 6, 5, 4, 3);
+    }
+
+    @Test
+    public void testMax() {
+        checkEvents(getDao().findEvents(TEST_SOURCE, ts(3), ts(10), 2), 3, 4);
+        checkEvents(getDao().findEvents(TEST_SOURCE, ts(10), ts(3), 2), 10, 9);
+    }
+
+    @Test
+    public void testNoMatchingEvents() {
+        assertTrue(getDao().findEvents(TEST_SOURCE, ts(NR_EVENTS), null, 100).isEmpty());
+        assertTrue(getDao().findEvents("unknown_source", null, null, 100).isEmpty());
+    }
+
+    @Test
+    public void testLotnameAndProcessId() {
+        checkEvents(getDao().findEventsForLotnameAndSource("LOT1", TEST_SOURCE, ts(2), ts(8), 100), 3, 5, 7);
+        checkEvents(getDao().findEventsForProcessIdAndSource("P2", TEST_SOURCE, ts(10), null, 100), 10, 14, 18);
+        checkEvents(getDao().findEventsForProcessIdAndSource("P2", TEST_SOURCE, ts(18), ts(0), 2), 18, 14);
+    }
+
+    @Test
+    public void testFindEventsByAttribute() {
+        checkEvents(getDao().findEventsByAttribute("key1", "value1 - #4", TEST_SOURCE, null, null, 100), 4);
+        checkEvents(getDao().findEventsByAttribute("LOTNAME", "LOT0", TEST_SOURCE, ts(15), ts(9), 2), 14, 12);
+    }
+
+    @Test
+    public void testAttributeValuesWithSeparators() {
+        // both would share a lookup row when the parts of its key were only joined with ':'
+        getDao().store(Event.createEvent(ts(1), "a:b", ImmutableMap.of("LOTNAME", "c")));
+        getDao().store(Event.createEvent(ts(2), "a", ImmutableMap.of("LOTNAME", "b:c")));
+
+        List<Event> events = getDao().findEventsByAttribute("LOTNAME", "b:c", "a", null, null, 100);
+        assertEquals(1, events.size());
+        assertEquals(ts(2), events.get(0).getTimestamp());
+        assertEquals(1, getDao().findEventsForLotnameAndSource("c", "a:b", null, null, 100).size());
+    }
+
+    @Test
+    public void testIterateEvents() {
+        checkEvents(Lists.newArrayList(getDao().iterateEvents(TEST_SOURCE, ts(5), ts(2), 100)), 5, 4, 3, 2);
+        checkEvents(Lists.newArrayList(getDao().iterateEventsForLotnameAndSource("LOT0", TEST_SOURCE, null, ts(4), 100)), 0, 2, 4);
+    }
+
+    @Test
+    public void testPages() {
+        EventPage page = getDao().findEventPage(TEST_SOURCE, ts(3), ts(9), 3, null, null);
+        checkEvents(page.getEvents(), 3, 4, 5);
+        page = getDao().findEventPage(TEST_SOURCE, ts(3), ts(9), 3, null, page.getContinuation());
+        checkEvents(page.getEvents(), 6, 7, 8);
+        page = getDao().findEventPage(TEST_SOURCE, ts(3), ts(9), 3, null, page.getContinuation());
+        checkEvents(page.getEvents(), 9);
+        assertNull(page.getContinuation());
+
+        page = getDao().findEventPage(TEST_SOURCE, ts(9), ts(4), 3, null, null);
+        checkEvents(page.getEvents(), 9, 8, 7);
+        page = getDao().findEventPage(TEST_SOURCE, ts(9), ts(4), 3, null, page.getContinuation());
+        checkEvents(page.getEvents(), 6, 5, 4);
+        assertNull(page.getContinuation());
+    }
+
+    @Test
+    public void testFields() {
+        List<Event> events = getDao().findEvents(TEST_SOURCE, ts(1), ts(2), 100, ImmutableSet.of("LOTNAME"));
+        assertEquals(2, events.size());
+        assertEquals(ts(1), events.get(0).getTimestamp());
+        assertEquals(TEST_SOURCE, events.get(0).getSource());
+        assertEquals(ImmutableMap.of("LOTNAME", "LOT1"), events.get(0).getAttributes());
+        assertNull(events.get(1).get("key1"));
+    }
+}
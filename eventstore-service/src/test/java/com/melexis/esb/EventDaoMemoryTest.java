@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.EventPage;
+import com.melexis.esb.eventstore.impl.EventDao;
+import com.melexis.esb.eventstore.impl.EventDaoMemoryImpl;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class EventDaoMemoryTest extends EventDaoContractTest {
+
+    private final EventDaoMemoryImpl dao = new EventDaoMemoryImpl();
+
+    @Override
+    protected EventDao getDao() {
+        return dao;
+    }
+
+    @Test
+    public void testEventsWithTheSameTimestampAreKept() {
+        DateTime ts = new DateTime("2011-01-01T00:00:00Z");
+        for (int i = 0; i < 3; i++) {
+            dao.store(Event.builder(ts, "same_ts").put("n", "" + i).build());
+        }
+
+        assertEquals(3, dao.findEvents("same_ts", ts, ts, 100).size());
+        assertEquals("0", dao.findEvents("same_ts", ts, ts, 100).get(0).get("n"));
+    }
+
+    @Test
+    public void testPagesSplitEventsWithTheSameTimestamp() {
+        DateTime ts = new DateTime("2011-01-01T00:00:00Z");
+        for (int i = 0; i < 5; i++) {
+            dao.store(Event.builder(ts, "same_ts").put("n", "" + i).build());
+        }
+
+        EventPage page = dao.findEventPage("same_ts", ts, ts, 2, null, null);
+        assertEquals("1", page.getEvents().get(1).get("n"));
+        page = dao.findEventPage("same_ts", ts, ts, 2, null, page.getContinuation());
+        assertEquals("2", page.getEvents().get(0).get("n"));
+        assertEquals("3", page.getEvents().get(1).get("n"));
+        page = dao.findEventPage("same_ts", ts, ts, 2, null, page.getContinuation());
+        assertEquals(1, page.getEvents().size());
+        assertEquals("4", page.getEvents().get(0).get("n"));
+        assertNull(page.getContinuation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidContinuation() {
+        dao.findEventPage(TEST_SOURCE, null, null, 10, null, "not a continuation");
+    }
+
+    @Test
+    public void testRemoveBefore() {
+        dao.removeBefore(TEST_TS.plus(10 * INTERVAL_MS));
+
+        assertEquals(10, dao.findEvents(TEST_SOURCE, null, null, 100).size());
+        assertEquals(5, dao.findEventsForLotnameAndSource("LOT0", TEST_SOURCE, null, null, 100).size());
+    }
+}
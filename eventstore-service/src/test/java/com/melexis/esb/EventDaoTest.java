@@ -17,10 +17,15 @@
 package com.melexis.esb;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.Granularity;
 import com.melexis.esb.eventstore.impl.EventDaoCassandraImpl;
+import com.melexis.esb.eventstore.impl.LookupIndexRebuild;
+import com.melexis.esb.eventstore.impl.TimestampMigration;
 import me.prettyprint.cassandra.model.IndexedSlicesQuery;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.Keyspace;
@@ -28,6 +33,7 @@ import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.HSuperColumn;
 import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SuperColumnQuery;
 import org.joda.time.DateTime;
@@ -43,14 +49,19 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.UUID;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static me.prettyprint.hector.api.factory.HFactory.createIndexedSlicesQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createStringColumn;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = {"classpath:/beans.xml"})
@@ -58,6 +69,7 @@ public class EventDaoTest extends BaseCassandraTest {
     private static Logger log = LoggerFactory.getLogger(EventDaoTest.class);
 
     public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_TS_UTC = "2010-01-02T12:34:56.789Z";
     public static final String TEST_SOURCE = "test_source";
 
     public static final int NR_EVENTS = 100;
@@ -91,6 +103,9 @@ public class EventDaoTest extends BaseCassandraTest {
         HColumn<String, String> column2 = findColumnWithName("key2", columns);
         assertEquals("key2", column2.getName());
         assertEquals("value2 - #0", column2.getValue());
+
+        // timestamps are stored in UTC so they sort in time order
+        assertEquals(TEST_TS_UTC, findColumnWithName(EventDaoCassandraImpl.TIMESTAMP, columns).getValue());
     }
 
     private HColumn<String, String> findColumnWithName(final String name,
@@ -109,7 +124,7 @@ public class EventDaoTest extends BaseCassandraTest {
         query.setColumnFamily(dao.getColumnFamily());
 
         query.addEqualsExpression(EventDaoCassandraImpl.SOURCE, TEST_SOURCE);
-        query.addEqualsExpression(EventDaoCassandraImpl.TIMESTAMP, TEST_TS.toString());
+        query.addEqualsExpression(EventDaoCassandraImpl.TIMESTAMP, TEST_TS_UTC);
 
         query.setRange("A", "z", false, 1000);
 
@@ -151,6 +166,8 @@ public class EventDaoTest extends BaseCassandraTest {
     @After
     public void cleanEvents() {
         cluster.truncate("EventStore", "Events");
+        cluster.truncate("EventStore", "EventsLookup");
+        cluster.truncate("EventStore", "EventsCounts");
     }
 
     private void checkEvent(int i, Event ev) {
@@ -221,6 +238,55 @@ public class EventDaoTest extends BaseCassandraTest {
 
     }
 
+    @Test @DirtiesContext
+    public void testStoreAll() {
+        List<Event> batch = new ArrayList<Event>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(createEvent(TEST_TS.plus(i * INTERVAL_MS), "batch_source", i));
+        }
+        dao.setMaxBatchSize(3);
+        dao.storeAll(batch);
+
+        List<Event> events = dao.findEvents("batch_source", TEST_TS, null, 10000);
+        assertEquals(batch, events);
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsPagesPastDefaultRowCount() {
+        for (int i = NR_EVENTS; i < 3 * NR_EVENTS; i++) {
+            dao.store(createEvent(TEST_TS.plus(i * INTERVAL_MS), TEST_SOURCE, i));
+        }
+
+        List<Event> events = dao.findEvents(TEST_SOURCE, TEST_TS, null, 10000);
+
+        assertEquals(3 * NR_EVENTS, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            checkEvent(i, events.get(i));
+        }
+    }
+
+    @Test @DirtiesContext
+    public void testIterateEvents() {
+        int count = 0;
+        for (Event ev : dao.iterateEvents(TEST_SOURCE, TEST_TS, TEST_TS.plus(49 * INTERVAL_MS), 10000)) {
+            checkEvent(count, ev);
+            count++;
+        }
+        assertEquals(50, count);
+
+        assertEquals(7, Iterables.size(dao.iterateEvents(TEST_SOURCE, TEST_TS, null, 7)));
+    }
+
+    @Test @DirtiesContext
+    public void testIterateEventsReverseOrder() {
+        int count = 0;
+        for (Event ev : dao.iterateEvents(TEST_SOURCE, TEST_TS.plus(99 * INTERVAL_MS), TEST_TS, NR_LIMITED)) {
+            checkEvent(99 - count, ev);
+            count++;
+        }
+        assertEquals(NR_LIMITED, count);
+    }
+
     @Test @DirtiesContext
     public void findEventsByLotname() {
         for (int i=0; i<50; i++) {
@@ -251,5 +317,188 @@ public class EventDaoTest extends BaseCassandraTest {
         List<Event> events = dao.findEventsForProcessIdAndSource("123", "audit_log", null, null, 100);
         assertEquals(50, events.size());
     }
-}
 
+    @Test @DirtiesContext
+    public void testMigrateTimestamps() throws InterruptedException {
+        // a row written with the local time and an offset, as before
+        String key = UUID.randomUUID().toString();
+        Mutator<String> mutator = HFactory.createMutator(dao.getKeyspace(), STRING_SERIALIZER);
+        mutator.addInsertion(key, dao.getColumnFamily(), createStringColumn(EventDaoCassandraImpl.SOURCE, "old_source"));
+        mutator.addInsertion(key, dao.getColumnFamily(),
+                createStringColumn(EventDaoCassandraImpl.TIMESTAMP, "2010-01-02T13:34:56.789+01:00"));
+        mutator.addInsertion(key, dao.getColumnFamily(), createStringColumn("key1", "value1 - #0"));
+        mutator.addInsertion(key, dao.getColumnFamily(), createStringColumn("key2", "value2 - #0"));
+        mutator.execute();
+
+        TimestampMigration migration = new TimestampMigration(dao.getKeyspace(), dao.getColumnFamily());
+        migration.setPageSize(2);
+        assertEquals(1, migration.run());
+        assertEquals(NR_EVENTS + 1, migration.getScanned());
+
+        List<Event> events = dao.findEvents("old_source", TEST_TS, TEST_TS, 10);
+        assertEquals(1, events.size());
+        checkEvent(0, events.get(0));
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsWithFields() {
+        List<Event> events = dao.findEvents(TEST_SOURCE, TEST_TS, TEST_TS.plus(5 * INTERVAL_MS), 10000,
+                ImmutableSet.of("key1", "missing"));
+
+        assertEquals(6, events.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(TEST_TS.plus(i * INTERVAL_MS), events.get(i).getTimestamp());
+            assertEquals(TEST_SOURCE, events.get(i).getSource());
+            assertEquals(ImmutableMap.of("key1", "value1 - #" + i), events.get(i).getAttributes());
+        }
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsReadsAllAttributeNames() {
+        Map<String, String> attributes = ImmutableMap.of("0count", "1", "key1", "value", "~tilde", "2");
+        dao.store(Event.createEvent(TEST_TS, "names_source", attributes));
+
+        List<Event> events = dao.findEvents("names_source", null, null, 10);
+        assertEquals(1, events.size());
+        assertEquals(attributes, events.get(0).getAttributes());
+    }
+
+    @Test @DirtiesContext
+    public void findEventsByLotnameWithLookup() {
+        dao.setLookupQueries(true);
+        final DateTime start = new DateTime();
+        for (int i=0; i<50; i++) {
+            dao.store(new Event(start.plusSeconds(i * 10), "audit_log", ImmutableMap.of("LOTNAME", "A12345")));
+        }
+        dao.store(new Event(start, "other_log", ImmutableMap.of("LOTNAME", "A12345")));
+
+        List<Event> events = dao.findEventsForLotnameAndSource("A12345", "audit_log", start.plusSeconds(30), null, 100);
+        assertEquals(47, events.size());
+        assertEquals(start.plusSeconds(30), events.get(0).getTimestamp());
+
+        events = dao.findEventsForLotnameAndSource("A12345", "audit_log", start.plusSeconds(100), start, 3);
+        assertEquals(3, events.size());
+        assertEquals(start.plusSeconds(100), events.get(0).getTimestamp());
+        assertEquals(start.plusSeconds(80), events.get(2).getTimestamp());
+    }
+
+    @Test @DirtiesContext
+    public void testRebuildLookupIndex() throws InterruptedException {
+        for (int i=0; i<50; i++) {
+            dao.store(new Event(TEST_TS.plusSeconds(i), "audit_log", ImmutableMap.of("LOTNAME", "A12345", "PROCESSID", "123")));
+        }
+        cluster.truncate("EventStore", "EventsLookup");
+        dao.setLookupQueries(true);
+        assertEquals(0, dao.findEventsForProcessIdAndSource("123", "audit_log", null, null, 100).size());
+
+        LookupIndexRebuild rebuild = new LookupIndexRebuild(dao);
+        rebuild.setPageSize(7);
+        assertEquals(100, rebuild.run());
+
+        assertEquals(50, dao.findEventsForProcessIdAndSource("123", "audit_log", null, null, 100).size());
+        assertEquals(50, dao.findEventsForLotnameAndSource("A12345", "audit_log", null, null, 100).size());
+    }
+
+    @Test @DirtiesContext
+    public void testFindEventsByAttribute() throws InterruptedException {
+        for (int i=0; i<20; i++) {
+            dao.store(new Event(TEST_TS.plusSeconds(i), "wafer_log",
+                    ImmutableMap.of("WAFERID", "W" + (i % 2), "RECIPE", "R" + (i % 4))));
+        }
+
+        // not indexed, found by scanning the source
+        List<Event> events = dao.findEventsByAttribute("RECIPE", "R1", "wafer_log", null, null, 100);
+        assertEquals(5, events.size());
+        assertEquals(TEST_TS.plusSeconds(1), events.get(0).getTimestamp());
+
+        // newly indexed, the events stored before are only found through the lookup rows after a rebuild
+        dao.setIndexedAttributes("LOTNAME,PROCESSID,WAFERID");
+        new LookupIndexRebuild(dao, ImmutableList.of("WAFERID")).run();
+
+        events = dao.findEventsByAttribute("WAFERID", "W0", "wafer_log", TEST_TS.plusSeconds(10), TEST_TS, 100);
+        assertEquals(6, events.size());
+        assertEquals(TEST_TS.plusSeconds(10), events.get(0).getTimestamp());
+        assertEquals(TEST_TS, events.get(5).getTimestamp());
+    }
+
+    @Test @DirtiesContext
+    public void testUnindexedAttributeIsRebuilt() throws InterruptedException {
+        for (int i=0; i<20; i++) {
+            dao.store(new Event(TEST_TS.plusSeconds(i), "wafer_log", ImmutableMap.of("WAFERID", "W" + (i % 2))));
+        }
+        dao.setIndexedAttributes("LOTNAME,PROCESSID,WAFERID");
+        new LookupIndexRebuild(dao, ImmutableList.of("WAFERID")).run();
+
+        // dropped from the index, the start forgets its lookup rows
+        dao.setIndexedAttributes("LOTNAME,PROCESSID");
+        dao.setRebuildOnStart(false);
+        dao.start();
+        for (int i = 0; i < 100 && dao.getBuiltAttributes().contains("WAFERID"); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(dao.getBuiltAttributes().contains("WAFERID"));
+        dao.store(new Event(TEST_TS.plusSeconds(20), "wafer_log", ImmutableMap.of("WAFERID", "W0")));
+
+        // indexed again, the event without a lookup row is found by scanning until a rebuild
+        dao.setIndexedAttributes("LOTNAME,PROCESSID,WAFERID");
+        assertEquals(11, dao.findEventsByAttribute("WAFERID", "W0", "wafer_log", null, null, 100).size());
+    }
+
+    @Test @DirtiesContext
+    public void testCountEvents() {
+        long hour = Granularity.HOUR.bucketStart(TEST_TS.getMillis());
+
+        SortedMap<Long, Long> counts = dao.countEvents(TEST_SOURCE, TEST_TS, TEST_TS, Granularity.HOUR);
+        assertEquals(1, counts.size());
+        assertEquals(Long.valueOf(NR_EVENTS), counts.get(hour));
+
+        // the first event is in the last second of its minute, 12 events per minute follow
+        counts = dao.countEvents(TEST_SOURCE, TEST_TS.plusHours(1), TEST_TS.minusHours(1), Granularity.MINUTE);
+        assertEquals(10, counts.size());
+        assertEquals(Long.valueOf(1), counts.get(Granularity.MINUTE.bucketStart(TEST_TS.getMillis())));
+        assertEquals(Long.valueOf(12), counts.get(Granularity.MINUTE.bucketStart(TEST_TS.plusMinutes(1).getMillis())));
+
+        assertEquals(1, dao.countEvents(TEST_SOURCE, TEST_TS.plusHours(1), TEST_TS.plusHours(2), Granularity.DAY).size());
+        assertTrue(dao.countEvents(TEST_SOURCE, TEST_TS.plusDays(1), TEST_TS.plusDays(2), Granularity.DAY).isEmpty());
+    }
+
+    @Test @DirtiesContext
+    public void testCountEventsByAttribute() {
+        dao.setCountedAttributes("WAFERID");
+        for (int i=0; i<20; i++) {
+            dao.store(new Event(TEST_TS.plusMinutes(i), "wafer_log",
+                    ImmutableMap.of("WAFERID", "W" + (i % 2), "RECIPE", "R" + (i % 4))));
+        }
+        long hour = Granularity.HOUR.bucketStart(TEST_TS.getMillis());
+
+        // counted attribute, read from the counters
+        SortedMap<Long, Long> counts = dao.countEventsByAttribute("WAFERID", "W0", "wafer_log",
+                TEST_TS, TEST_TS.plusMinutes(19), Granularity.HOUR);
+        assertEquals(Long.valueOf(10), counts.get(hour));
+
+        // other attributes are counted by reading the events
+        counts = dao.countEventsByAttribute("RECIPE", "R1", "wafer_log",
+                TEST_TS, TEST_TS.plusMinutes(19), Granularity.HOUR);
+        assertEquals(Long.valueOf(5), counts.get(hour));
+    }
+
+    @Test @DirtiesContext
+    public void testCountsOfSeparatorsStaySeparate() {
+        dao.setCountedAttributes("LOT,a,a=b");
+        dao.store(new Event(TEST_TS, "A:LOT=1", Collections.<String, String>emptyMap()));
+        dao.store(new Event(TEST_TS, "A", ImmutableMap.of("LOT", "1")));
+        dao.store(new Event(TEST_TS, "A", ImmutableMap.of("a=b", "c")));
+        dao.store(new Event(TEST_TS.plus(1), "A", ImmutableMap.of("a", "b=c")));
+        dao.store(new Event(TEST_TS.plus(2), "A", ImmutableMap.of("a", "b=c")));
+        long hour = Granularity.HOUR.bucketStart(TEST_TS.getMillis());
+
+        assertEquals(Long.valueOf(1), dao.countEvents("A:LOT=1", TEST_TS, TEST_TS, Granularity.HOUR).get(hour));
+        assertEquals(Long.valueOf(4), dao.countEvents("A", TEST_TS, TEST_TS, Granularity.HOUR).get(hour));
+        assertEquals(Long.valueOf(1),
+                dao.countEventsByAttribute("LOT", "1", "A", TEST_TS, TEST_TS, Granularity.HOUR).get(hour));
+        assertEquals(Long.valueOf(1),
+                dao.countEventsByAttribute("a=b", "c", "A", TEST_TS, TEST_TS, Granularity.HOUR).get(hour));
+        assertEquals(Long.valueOf(2),
+                dao.countEventsByAttribute("a", "b=c", "A", TEST_TS, TEST_TS, Granularity.HOUR).get(hour));
+    }
+}
@@ -17,8 +17,11 @@
 package com.melexis.esb;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.melexis.esb.eventstore.Event;
 import com.melexis.esb.eventstore.EventService;
+import com.melexis.esb.eventstore.Granularity;
+import com.melexis.esb.eventstore.Summary;
 import com.melexis.esb.eventstore.impl.EventDao;
 import com.melexis.esb.eventstore.impl.EventServiceImpl;
 import com.melexis.foundation.util.DateTimeHelper;
@@ -108,6 +111,13 @@ public class EventServiceImplTest {
         verify(eventDao).store(event);
     }
 
+    @Test
+    public void testStoreAll() {
+        eventService.storeAll(eventList1);
+
+        verify(eventDao).storeAll(eventList1);
+    }
+
     @Test
     public void testStoreWithDate() {
         eventService.store(TEST_TS.toDate(), TEST_SOURCE, attributes);
@@ -290,6 +300,36 @@ public class EventServiceImplTest {
          assertEquals(eventListSummed.subList(0,3), result);
      }
 
+    @Test
+    public void testFindEventsForSourcesKeepsEqualEvents() {
+        Event other = Event.createEvent(eventList1.get(0).getTimestamp(), TEST_SOURCE_1,
+                Collections.singletonMap("key1", "other"));
+        List<Event> withDuplicateTime = new ArrayList<Event>(eventList1);
+        withDuplicateTime.add(1, other);
+
+        when(eventDao.findEvents(TEST_SOURCE_1, TEST_TS_START, TEST_TS_END, DEFAULT_LIMIT)).thenReturn(withDuplicateTime);
+        when(eventDao.findEvents(TEST_SOURCE_2, TEST_TS_START, TEST_TS_END, DEFAULT_LIMIT)).thenReturn(eventList2);
+        when(eventDao.findEvents(TEST_SOURCE_3, TEST_TS_START, TEST_TS_END, DEFAULT_LIMIT)).thenReturn(eventList3);
+
+        List<Event> result = eventService.findEvents(sources, TEST_TS_START, TEST_TS_END);
+
+        assertEquals(eventListSummed.size() + 1, result.size());
+        assertEquals(eventList1.get(0), result.get(0));
+        assertEquals(other, result.get(1));
+    }
+
+    @Test
+    public void testFindEventsForSourcesReverseOrder() {
+        int max = 3;
+        when(eventDao.findEvents(TEST_SOURCE_1, TEST_TS_END, TEST_TS_START, max)).thenReturn(Lists.reverse(eventList1).subList(0, max));
+        when(eventDao.findEvents(TEST_SOURCE_2, TEST_TS_END, TEST_TS_START, max)).thenReturn(Lists.reverse(eventList2).subList(0, max));
+        when(eventDao.findEvents(TEST_SOURCE_3, TEST_TS_END, TEST_TS_START, max)).thenReturn(Lists.reverse(eventList3).subList(0, max));
+
+        List<Event> result = eventService.findEvents(sources, TEST_TS_END, TEST_TS_START, max);
+
+        assertEquals(Lists.reverse(eventListSummed).subList(0, max), result);
+    }
+
     @Test
     public void findEventsForLotNameAndSource() {
         final String lotname = "A12345";
@@ -315,4 +355,60 @@ public class EventServiceImplTest {
 
         assertEquals(eventList1, events);
     }
+
+    @Test
+    public void findEventsByAttribute() {
+        when(eventDao.findEventsByAttribute("WAFERID", "W1", TEST_SOURCE, TEST_TS_START, TEST_TS_END, NR_LIMIT))
+                .thenReturn(eventList1);
+
+        List<Event> events = eventService.findEventsByAttribute("WAFERID", "W1", TEST_SOURCE,
+                TEST_TS_START, TEST_TS_END, NR_LIMIT);
+
+        assertEquals(eventList1, events);
+    }
+
+    @Test
+    public void countEvents() {
+        SortedMap<Long, Long> counts = new TreeMap<Long, Long>();
+        counts.put(TEST_TS_START.getMillis(), 3L);
+        when(eventDao.countEvents(TEST_SOURCE, TEST_TS_START, TEST_TS_END, Granularity.HOUR)).thenReturn(counts);
+
+        assertEquals(counts, eventService.countEvents(TEST_SOURCE, TEST_TS_START, TEST_TS_END, Granularity.HOUR));
+    }
+
+    @Test
+    public void summarize() {
+        List<Event> events = ImmutableList.of(
+                Event.builder(TEST_TS, TEST_SOURCE).put("TEMP", "3").build(),
+                Event.builder(TEST_TS.plusMinutes(1), TEST_SOURCE).put("TEMP", "1.5").build(),
+                Event.builder(TEST_TS.plusMinutes(2), TEST_SOURCE).put("TEMP", "n/a").build(),
+                Event.builder(TEST_TS.plusMinutes(3), TEST_SOURCE).build(),
+                Event.builder(TEST_TS.plusMinutes(4), TEST_SOURCE).put("TEMP", "NaN").build(),
+                Event.builder(TEST_TS.plusMinutes(5), TEST_SOURCE).put("TEMP", "-Infinity").build(),
+                Event.builder(TEST_TS.plusMinutes(6), TEST_SOURCE).put("TEMP", "1e400").build(),
+                Event.builder(TEST_TS.plusHours(1), TEST_SOURCE).put("TEMP", "5").build());
+        when(eventDao.iterateEvents(eq(TEST_SOURCE), any(DateTime.class), any(DateTime.class), anyInt(),
+                eq(Collections.singleton("TEMP")))).thenReturn(events);
+
+        SortedMap<Long, Summary> summaries = eventService.summarize(TEST_SOURCE, "TEMP",
+                TEST_TS, TEST_TS.plusHours(1), Granularity.HOUR);
+
+        assertEquals(2, summaries.size());
+        Summary first = summaries.get(Granularity.HOUR.bucketStart(TEST_TS.getMillis()));
+        assertEquals(2, first.getCount());
+        assertEquals(1.5, first.getMin(), 0.0);
+        assertEquals(3.0, first.getMax(), 0.0);
+        assertEquals(2.25, first.getAvg(), 0.0);
+        assertEquals(1.5, first.getLast(), 0.0);
+        assertEquals(5.0, summaries.get(summaries.lastKey()).getLast(), 0.0);
+    }
+
+    @Test
+    public void iterateEvents() {
+        when(eventDao.iterateEvents(TEST_SOURCE, TEST_TS_START, TEST_TS_END, NR_LIMIT)).thenReturn(eventList1);
+
+        Iterable<Event> events = eventService.iterateEvents(TEST_SOURCE, TEST_TS_START, TEST_TS_END, NR_LIMIT);
+
+        assertEquals(eventList1, events);
+    }
 }
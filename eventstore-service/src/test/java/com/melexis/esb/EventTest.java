@@ -22,6 +22,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.HashMap;
+import java.util.Map;
 
 import static junit.framework.Assert.*;
 
@@ -99,4 +100,37 @@ public class EventTest {
         assertTrue(ev.compareTo(other) < 0);
         assertTrue(other.compareTo(ev) > 0);
     }
+
+    @Test
+    public void testBuilderEqualsCreateEvent() {
+        attributes.put("another", "value 2");
+        ev = Event.createEvent(TIMESTAMP, source, attributes);
+        Event built = Event.builder(TIMESTAMP, source).put(TEST_KEY, TEST_VALUE).put("another", "value 2").build();
+
+        assertEquals(ev, built);
+        assertEquals(ev.hashCode(), built.hashCode());
+        assertEquals(attributes, built.getAttributes());
+        assertEquals(attributes.hashCode(), built.getAttributes().hashCode());
+        assertEquals("value 2", built.get("another"));
+        assertNull(built.get("missing"));
+    }
+
+    @Test
+    public void testAttributeKeysAreShared() {
+        Event other = Event.builder(TIMESTAMP, source).put(new String(TEST_KEY), TEST_VALUE).build();
+
+        Map.Entry<String, String> entry = ev.getAttributes().entrySet().iterator().next();
+        Map.Entry<String, String> otherEntry = other.getAttributes().entrySet().iterator().next();
+        assertSame(entry.getKey(), otherEntry.getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBuilderRejectsDuplicateKeys() {
+        Event.builder(TIMESTAMP, source).put(TEST_KEY, TEST_VALUE).put(TEST_KEY, "other").build();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAttributesAreUnmodifiable() {
+        ev.getAttributes().put("another", "value");
+    }
 }
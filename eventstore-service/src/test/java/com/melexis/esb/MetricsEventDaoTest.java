@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.impl.EventDaoMemoryImpl;
+import com.melexis.esb.eventstore.impl.EventStoreMetrics;
+import com.melexis.esb.eventstore.impl.MetricsEventDao;
+import com.melexis.esb.eventstore.impl.OperationStats;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class MetricsEventDaoTest {
+
+    public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_SOURCE = "test-source";
+
+    private EventStoreMetrics metrics;
+    private MetricsEventDao dao;
+    private boolean failing;
+
+    @Before
+    public void setUp() {
+        metrics = new EventStoreMetrics();
+        dao = new MetricsEventDao(new EventDaoMemoryImpl() {
+            @Override
+            public void storeAll(Collection<Event> events) {
+                if (failing) {
+                    throw new IllegalStateException("failing");
+                }
+                super.storeAll(events);
+            }
+        }, metrics);
+    }
+
+    private Event event(int i) {
+        return Event.createEvent(TEST_TS.plusSeconds(i), TEST_SOURCE, ImmutableMap.of("LOTNAME", "lot" + (i % 2)));
+    }
+
+    @Test
+    public void testCountsCallsAndRows() {
+        for (int i = 0; i < 10; i++) {
+            dao.store(event(i));
+        }
+        dao.findEvents(TEST_SOURCE, TEST_TS, TEST_TS.plusMinutes(1), 100);
+        dao.findEventsForLotnameAndSource("lot0", TEST_SOURCE, null, null, 100);
+
+        OperationStats store = metrics.stats(MetricsEventDao.TYPE, "store");
+        assertEquals(10, store.getCount());
+        assertEquals(10, store.getRowsReturned());
+        assertEquals(1, metrics.stats(MetricsEventDao.TYPE, "findEvents").getCount());
+        assertEquals(10, metrics.stats(MetricsEventDao.TYPE, "findEvents").getRowsReturned());
+        assertEquals(5, metrics.stats(MetricsEventDao.TYPE, "findEventsForLotname").getRowsReturned());
+    }
+
+    @Test
+    public void testCountsIteratedRows() {
+        for (int i = 0; i < 10; i++) {
+            dao.store(event(i));
+        }
+        Iterable<Event> events = dao.iterateEvents(TEST_SOURCE, TEST_TS, TEST_TS.plusMinutes(1), 100);
+
+        OperationStats iterate = metrics.stats(MetricsEventDao.TYPE, "iterateEvents");
+        assertEquals(1, iterate.getCount());
+        assertEquals(0, iterate.getRowsReturned());
+        assertEquals(3, Iterables.size(Iterables.limit(events, 3)));
+        assertEquals(3, iterate.getRowsReturned());
+    }
+
+    @Test
+    public void testCountsErrors() {
+        failing = true;
+        try {
+            dao.storeAll(Arrays.asList(event(1), event(2)));
+            fail("the store should fail");
+        } catch (IllegalStateException expected) {
+        }
+
+        OperationStats storeAll = metrics.stats(MetricsEventDao.TYPE, "storeAll");
+        assertEquals(1, storeAll.getCount());
+        assertEquals(1, storeAll.getErrors());
+        assertEquals(0, storeAll.getRowsReturned());
+    }
+
+    @Test
+    public void testRegistersMBeans() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        EventStoreMetrics published = new EventStoreMetrics(server);
+        published.stats(MetricsEventDao.TYPE, "store").success(System.nanoTime(), 1);
+        published.start();
+        published.stats(MetricsEventDao.TYPE, "findEvents");
+
+        ObjectName store = new ObjectName(EventStoreMetrics.DOMAIN + ":type=EventDao,name=\"store\"");
+        assertEquals(1L, server.getAttribute(store, "Count"));
+        assertTrue(server.isRegistered(new ObjectName(EventStoreMetrics.DOMAIN + ":type=EventDao,name=\"findEvents\"")));
+
+        published.stop();
+        assertFalse(server.isRegistered(store));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.melexis.esb.eventstore.impl.OperationStats;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class OperationStatsTest {
+
+    @Test
+    public void testPercentiles() {
+        OperationStats stats = new OperationStats("test");
+        long now = System.nanoTime();
+        for (int i = 1; i <= 1000; i++) {
+            // record latencies of 1ms up to 1s in the past
+            stats.success(now - i * 1000000L, 0);
+        }
+
+        // the buckets are at most an eighth of their value wide
+        assertTrue(stats.get50thPercentile() >= 500 && stats.get50thPercentile() < 500 * 1.125 + 5);
+        assertTrue(stats.get99thPercentile() >= 990 && stats.get99thPercentile() <= stats.getMaxLatency());
+        assertTrue(stats.getMaxLatency() >= 1000);
+    }
+
+    @Test
+    public void testRecordsCalls() {
+        OperationStats stats = new OperationStats("test");
+        List<String> result = stats.record(new OperationStats.ListCall<String>() {
+            @Override
+            protected List<String> call() {
+                return Arrays.asList("a", "b", "c");
+            }
+        });
+
+        assertEquals(3, result.size());
+        assertEquals(1, stats.getCount());
+        assertEquals(0, stats.getErrors());
+        assertEquals(3, stats.getRowsReturned());
+    }
+
+    @Test
+    public void testRecordsFailedCalls() {
+        OperationStats stats = new OperationStats("test");
+        try {
+            stats.record(new OperationStats.ListCall<String>() {
+                @Override
+                protected List<String> call() {
+                    throw new IllegalStateException("failing");
+                }
+            });
+            fail("the call should fail");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(1, stats.getCount());
+        assertEquals(1, stats.getErrors());
+        assertEquals(0, stats.getRowsReturned());
+    }
+
+    @Test
+    public void testScanRatio() {
+        OperationStats stats = new OperationStats("test");
+        stats.success(System.nanoTime(), 10);
+        stats.scanned(40);
+
+        assertEquals(4.0, stats.getScanRatio(), 0.001);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.impl.EventDaoMemoryImpl;
+import com.melexis.esb.eventstore.impl.EventSpool;
+import com.melexis.esb.eventstore.impl.SpoolingEventDao;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class SpoolingEventDaoTest {
+
+    public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_SOURCE = "test-source";
+
+    private File directory;
+    private FlakyEventDao eventDao;
+    private SpoolingEventDao dao;
+
+    /**
+     * Fails all stores while it is down, and every batch holding a poison event.
+     */
+    private static class FlakyEventDao extends EventDaoMemoryImpl {
+        volatile boolean down;
+
+        @Override
+        public void store(Event event) {
+            if (down || event.get("poison") != null) {
+                throw new IllegalStateException("down");
+            }
+            super.store(event);
+        }
+
+        @Override
+        public void storeAll(Collection<Event> events) {
+            if (down) {
+                throw new IllegalStateException("down");
+            }
+            for (Event event : events) {
+                if (event.get("poison") != null) {
+                    throw new IllegalStateException("poison");
+                }
+            }
+            super.storeAll(events);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("spool", "");
+        assertTrue(directory.delete());
+        eventDao = new FlakyEventDao();
+        dao = createDao();
+    }
+
+    private SpoolingEventDao createDao() throws IOException {
+        EventSpool spool = new EventSpool(directory);
+        // small segments, so the events span several of them
+        spool.setSegmentSize(4096);
+        SpoolingEventDao dao = new SpoolingEventDao(eventDao, spool);
+        dao.setRetryInterval(50);
+        dao.setMaxAttempts(3);
+        dao.setDeadLetters(new EventSpool(new File(directory, "dead")));
+        dao.start();
+        return dao;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        dao.stop();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private Event createEvent(int i) {
+        return Event.createEvent(TEST_TS.plusSeconds(i), TEST_SOURCE, ImmutableMap.of("key", "value " + i));
+    }
+
+    private List<Event> stored() {
+        return eventDao.findEvents(TEST_SOURCE, null, null, 10000);
+    }
+
+    private void awaitEmptySpool() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dao.getSpoolDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dao.getSpoolDepth());
+    }
+
+    @Test
+    public void testStoresDirectlyWhileTheSpoolIsEmpty() {
+        dao.store(createEvent(0));
+        dao.storeAll(ImmutableList.of(createEvent(1), createEvent(2)));
+
+        assertEquals(3, stored().size());
+        assertEquals(0, dao.getSpooled());
+    }
+
+    @Test
+    public void testReplaysSpooledEventsWhenTheStoreRecovers() throws InterruptedException {
+        eventDao.down = true;
+        for (int i = 0; i < 200; i++) {
+            dao.store(createEvent(i));
+        }
+        assertEquals(200, dao.getSpooled());
+        assertTrue(dao.getSpoolDepth() > 0);
+        assertTrue(stored().isEmpty());
+
+        eventDao.down = false;
+        awaitEmptySpool();
+
+        List<Event> events = stored();
+        assertEquals(200, events.size());
+        assertEquals(TEST_TS.getMillis(), events.get(0).getTimestamp().getMillis());
+        assertEquals("value 199", events.get(199).get("key"));
+        assertEquals(0, dao.getReplayLag());
+    }
+
+    @Test
+    public void testSpooledEventsSurviveARestart() throws Exception {
+        eventDao.down = true;
+        for (int i = 0; i < 100; i++) {
+            dao.store(createEvent(i));
+        }
+        dao.stop();
+
+        dao = createDao();
+        assertEquals(100, dao.getSpoolDepth());
+
+        eventDao.down = false;
+        awaitEmptySpool();
+        assertEquals(100, stored().size());
+    }
+
+    @Test
+    public void testPoisonEventIsMovedToTheDeadLetters() throws Exception {
+        eventDao.down = true;
+        for (int i = 0; i < 10; i++) {
+            dao.store(createEvent(i));
+        }
+        dao.store(Event.createEvent(TEST_TS, TEST_SOURCE, ImmutableMap.of("poison", "true")));
+        for (int i = 10; i < 20; i++) {
+            dao.store(createEvent(i));
+        }
+
+        // the poison event is only counted as failed while other events are stored
+        eventDao.down = false;
+        int i = 20;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dao.getDeadLettered() == 0 && System.currentTimeMillis() < deadline) {
+            dao.store(createEvent(i++));
+            Thread.sleep(20);
+        }
+        awaitEmptySpool();
+        assertEquals(1, dao.getDeadLettered());
+        assertEquals(i, stored().size());
+
+        // new events are stored directly again
+        dao.store(createEvent(i));
+        assertEquals(0, dao.getSpoolDepth());
+
+        dao.stop();
+        EventSpool deadLetters = new EventSpool(new File(directory, "dead"));
+        deadLetters.open();
+        try {
+            assertEquals(1, deadLetters.getPendingEvents());
+        } finally {
+            deadLetters.close();
+        }
+        dao = createDao();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 Melexis NV
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.melexis.esb;
+
+import com.google.common.collect.ImmutableMap;
+import com.melexis.esb.eventstore.Event;
+import com.melexis.esb.eventstore.impl.EventDao;
+import com.melexis.esb.eventstore.impl.WriteBehindBuffer;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.*;
+
+public class WriteBehindBufferTest {
+
+    public static final DateTime TEST_TS = new DateTime("2010-01-02T12:34:56,789Z");
+    public static final String TEST_SOURCE = "test-source";
+
+    private EventDao eventDao;
+    private WriteBehindBuffer buffer;
+    private List<Event> written;
+
+    @Before
+    public void setUp() {
+        eventDao = mock(EventDao.class);
+        written = Collections.synchronizedList(new ArrayList<Event>());
+        doAnswer(new WriteAnswer()).when(eventDao).storeAll(anyCollectionOf(Event.class));
+
+        buffer = new WriteBehindBuffer(eventDao, 100);
+        buffer.setBatchSize(10);
+        buffer.setFlushInterval(50);
+    }
+
+    @After
+    public void tearDown() {
+        buffer.stop();
+    }
+
+    /**
+     * Collects the events of a storeAll call in {@link #written}.
+     */
+    private class WriteAnswer implements Answer<Void> {
+        @Override
+        public Void answer(InvocationOnMock invocation) {
+            for (Object event : (Collection<?>) invocation.getArguments()[0]) {
+                written.add((Event) event);
+            }
+            return null;
+        }
+    }
+
+    private Event createEvent(int i) {
+        return Event.createEvent(TEST_TS.plus(i), TEST_SOURCE, ImmutableMap.of("key", "value " + i));
+    }
+
+    @Test
+    public void testFlushWritesAllEvents() {
+        buffer.start();
+        for (int i = 0; i < 55; i++) {
+            buffer.add(createEvent(i));
+        }
+        buffer.flush();
+
+        assertEquals(55, written.size());
+        verify(eventDao, never()).store(any(Event.class));
+    }
+
+    @Test
+    public void testStopDrainsQueue() {
+        buffer.setFlushInterval(10000);
+        buffer.start();
+        for (int i = 0; i < 5; i++) {
+            buffer.add(createEvent(i));
+        }
+        buffer.stop();
+
+        assertEquals(5, written.size());
+        assertFalse(buffer.isRunning());
+    }
+
+    @Test
+    public void testDisabledStoresSynchronously() {
+        buffer.setEnabled(false);
+        buffer.start();
+
+        Event event = createEvent(0);
+        buffer.add(event);
+
+        verify(eventDao).store(event);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailWhenFull() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                writing.countDown();
+                release.await();
+                return null;
+            }
+        }).when(eventDao).storeAll(anyCollectionOf(Event.class));
+
+        buffer = new WriteBehindBuffer(eventDao, 1);
+        buffer.setBatchSize(1);
+        buffer.setOverflowPolicy(WriteBehindBuffer.OverflowPolicy.FAIL);
+        buffer.start();
+
+        try {
+            buffer.add(createEvent(0));
+            writing.await();        // the writer is now blocked on the first event
+            buffer.add(createEvent(1));
+            buffer.add(createEvent(2));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testRetriesFailedBatch() {
+        doThrow(new RuntimeException("unavailable"))
+                .doAnswer(new WriteAnswer())
+                .when(eventDao).storeAll(anyCollectionOf(Event.class));
+        buffer.start();
+        for (int i = 0; i < 5; i++) {
+            buffer.add(createEvent(i));
+        }
+        buffer.flush();
+
+        assertEquals(5, written.size());
+        assertEquals(0, buffer.getFailed());
+    }
+
+    @Test
+    public void testGivesUpAfterAttempts() {
+        doThrow(new RuntimeException("poison")).when(eventDao).storeAll(anyCollectionOf(Event.class));
+        buffer.setAttempts(2);
+        buffer.start();
+        buffer.add(createEvent(0));
+        buffer.flush();
+
+        verify(eventDao, times(2)).storeAll(anyCollectionOf(Event.class));
+        assertEquals(1, buffer.getFailed());
+    }
+
+    @Test
+    public void testStoresSynchronouslyAfterStop() {
+        buffer.start();
+        buffer.stop();
+
+        Event event = createEvent(0);
+        buffer.add(event);
+        buffer.flush();
+
+        verify(eventDao).store(event);
+    }
+}